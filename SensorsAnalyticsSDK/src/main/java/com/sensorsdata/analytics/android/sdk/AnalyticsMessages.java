@@ -18,11 +18,11 @@
 package com.sensorsdata.analytics.android.sdk;
 
 import android.content.Context;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.sensorsdata.analytics.android.sdk.data.PFDbManager;
@@ -31,24 +31,12 @@ import com.sensorsdata.analytics.android.sdk.exceptions.ConnectErrorException;
 import com.sensorsdata.analytics.android.sdk.exceptions.DebugModeException;
 import com.sensorsdata.analytics.android.sdk.exceptions.InvalidDataException;
 import com.sensorsdata.analytics.android.sdk.exceptions.ResponseErrorException;
-import com.sensorsdata.analytics.android.sdk.util.Base64Coder;
-import com.sensorsdata.analytics.android.sdk.util.JSONUtils;
 import com.sensorsdata.analytics.android.sdk.util.NetworkUtils;
 
-import org.json.JSONObject;
-
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 import static com.sensorsdata.analytics.android.sdk.util.Base64Coder.CHARSET_UTF8;
 
@@ -62,11 +50,22 @@ class AnalyticsMessages {
     private static final String TAG = "SA.AnalyticsMessages";
     private static final int FLUSH_QUEUE = 3;
     private static final int DELETE_ALL = 4;
+    /* 由 FlushScheduler 安排的 flush，同一时间最多只有一个 */
+    private static final int SCHEDULED_FLUSH = 5;
+    /* FLUSH_QUEUE 消息的 arg1，表示由 flush() 主动触发 */
+    private static final int FLUSH_EXPLICIT = 1;
+    /* 单次 flush 最多发送的批次数 */
+    private static final int MAX_BATCHES_PER_FLUSH = 100;
     private static final Map<Context, AnalyticsMessages> S_INSTANCES = new HashMap<>();
     private final Worker mWorker;
     private final Context mContext;
     private final PFDbManager mPFDbManager;
     private SensorsDataAPI mSensorsDataAPI;
+    private final FlushPipeline mFlushPipeline;
+    private final BatchSizeController mBatchSizeController = new BatchSizeController();
+    private final UploadRetryScheduler mRetryScheduler;
+    private final FlushScheduler mFlushScheduler;
+    private final BatchUploader mUploader = new BatchUploader();
 
     /**
      * 不要直接调用，通过 getInstance 方法获取实例
@@ -74,8 +73,14 @@ class AnalyticsMessages {
     private AnalyticsMessages(final Context context, SensorsDataAPI sensorsDataAPI) {
         mContext = context;
         mPFDbManager = PFDbManager.getInstance();
+        mFlushPipeline = new FlushPipeline(mPFDbManager);
+        mRetryScheduler = new UploadRetryScheduler(context);
+        mFlushScheduler = new FlushScheduler(sensorsDataAPI.getFlushInterval(), sensorsDataAPI.getFlushMaxLatency(),
+                sensorsDataAPI.getFlushMaxPendingBytes(), sensorsDataAPI.getFlushBulkSize());
         mWorker = new Worker();
         mSensorsDataAPI = sensorsDataAPI;
+        // 上次进程退出时仍在退避或熔断中，到期后重试
+        scheduleRetry();
     }
 
     /**
@@ -97,27 +102,24 @@ class AnalyticsMessages {
         }
     }
 
-    private static byte[] slurp(final InputStream inputStream)
-            throws IOException {
-        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        int nRead;
-        byte[] data = new byte[8192];
-
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
-        }
-
-        buffer.flush();
-        return buffer.toByteArray();
-    }
-
-    void enqueueEventMessage(final String type, final JSONObject eventJson) {
+    /**
+     * 保存事件并按需触发 flush
+     *
+     * @param type 事件类型
+     * @param data 已编码的事件内容，UTF-8 字节
+     * @param length 事件内容的长度
+     * @param crc 事件内容的 CRC32 校验值
+     * @param commonId 引用的静态属性版本号，0 表示静态属性已内联
+     * @param priority 存储优先级，PFDbParams.PRIORITY_*
+     * @param durable 是否同步写入数据库，用于崩溃等进程即将退出的场景
+     */
+    void enqueueEventMessage(final String type, final byte[] data, final int length, final long crc, final long commonId,
+                             final int priority, final boolean durable) {
         try {
             synchronized (mPFDbManager) {
-                int ret = mPFDbManager.addJSON(eventJson);
+                int ret = mPFDbManager.addEvent(data, 0, length, crc, commonId, priority, durable);
                 if (ret < 0) {
-                    String error = "Failed to enqueue the event: " + eventJson;
+                    String error = "Failed to enqueue the event: " + new String(data, 0, length, CHARSET_UTF8);
                     if (mSensorsDataAPI.isDebugMode()) {
                         throw new DebugModeException(error);
                     } else {
@@ -125,19 +127,24 @@ class AnalyticsMessages {
                     }
                 }
 
+                if (!mRetryScheduler.isFlushAllowed(false)) {
+                    // 退避或熔断期间不由入库触发 flush，到期后由 scheduleRetry 重试
+                    return;
+                }
+
                 final Message m = Message.obtain();
                 m.what = FLUSH_QUEUE;
 
-                if (mSensorsDataAPI.isDebugMode() || ret ==
+                if (mSensorsDataAPI.isDebugMode() || durable || ret ==
                         PFDbParams.DB_OUT_OF_MEMORY_ERROR) {
+                    // debug 模式、track_signup 等需要同步落库的事件以及数据库已满时立即发送
                     mWorker.runMessage(m);
                 } else {
-                    // track_signup 立即发送
-                    if (ret > mSensorsDataAPI.getFlushBulkSize()) {
-                        mWorker.runMessage(m);
-                    }else {
-                        final int interval = 0;//设置两次数据发送的最小时间间隔，最小值 5 秒
-                        mWorker.runMessageOnce(m, interval);
+                    // 按最小间隔、最长等待时间和缓存大小合并成一次 flush
+                    long delay = mFlushScheduler.onEventQueued(ret, mPFDbManager.getQueuedEventBytes(), SystemClock.elapsedRealtime());
+                    if (delay >= 0) {
+                        m.what = SCHEDULED_FLUSH;
+                        mWorker.reschedule(m, delay);
                     }
                 }
             }
@@ -150,6 +157,7 @@ class AnalyticsMessages {
         try {
             final Message m = Message.obtain();
             m.what = FLUSH_QUEUE;
+            m.arg1 = FLUSH_EXPLICIT;
 
             mWorker.runMessage(m);
         } catch (Exception e) {
@@ -168,8 +176,14 @@ class AnalyticsMessages {
         }
     }
 
-    private void sendData() {
+    private void sendData(boolean explicit) {
         try {
+            mFlushScheduler.onFlush(SystemClock.elapsedRealtime());
+            if (!mRetryScheduler.isFlushAllowed(explicit)) {
+                SALog.i(TAG, String.format(Locale.CHINA, "Flush is backing off, retry in %d ms", mRetryScheduler.getRetryDelay()));
+                scheduleRetry();
+                return;
+            }
 
             if (TextUtils.isEmpty(mSensorsDataAPI.getServerUrl())) {
                 SALog.i(TAG, "Server url is null or empty.");
@@ -187,6 +201,7 @@ class AnalyticsMessages {
                 SALog.i(TAG, String.format("您当前网络为 %s，无法发送数据，请确认您的网络发送策略！", networkType));
                 return;
             }
+            mBatchSizeController.beginFlush(networkType, mSensorsDataAPI.isDebugMode(), mSensorsDataAPI.isFlushDrainMode());
 
             if (!SensorsDataAPI.getInstance().ismIsMainProcess()) {//不是主进程
                 return;
@@ -195,151 +210,83 @@ class AnalyticsMessages {
             SALog.printStackTrace(e);
             return;
         }
-        int count = 100;
-        while (count > 0) {
-            boolean deleteEvents = true;
-            String[] eventsData;
-            synchronized (mPFDbManager) {
-                if (mSensorsDataAPI.isDebugMode()) {
-                    /* debug 模式下服务器只允许接收 1 条数据 */
-                    eventsData = mPFDbManager.generateDataString(PFDbParams.TABLE_EVENTS, 1);
-                } else {
-                    eventsData = mPFDbManager.generateDataString(PFDbParams.TABLE_EVENTS, 50);
-                }
-            }
-
-            if (eventsData == null) {
-                return;
+        final int uploadMode = mUploader.isBinaryRejected() ? SAUploadMode.FORM : mSensorsDataAPI.getUploadMode();
+        /* debug 模式下逐条按顺序发送 */
+        final int maxConcurrency = mSensorsDataAPI.isDebugMode() ? 1 : mSensorsDataAPI.getMaxConcurrentUploads();
+        // 熔断到期后先用一批数据试探
+        final boolean probing = mRetryScheduler.isProbing();
+        mFlushPipeline.run(mBatchSizeController, probing ? 1 : MAX_BATCHES_PER_FLUSH, uploadMode, probing ? 1 : maxConcurrency, new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                return sendBatch(batch);
             }
+        });
+        scheduleRetry();
+    }
 
-            final String lastId = eventsData[0];
-            final String rawMessage = eventsData[1];
-            final String gzip = eventsData[2];
-            String errorMessage = null;
-
-            try {
-                String data = rawMessage;
-                if (PFDbParams.GZIP_DATA_EVENT.equals(gzip)) {
-                    data = encodeData(rawMessage);
-                }
-
-                if (!TextUtils.isEmpty(data)) {
-                    sendHttpRequest(mSensorsDataAPI.getServerUrl(), data, gzip, rawMessage, false);
-                }
-            } catch (ConnectErrorException e) {
-                deleteEvents = false;
-                errorMessage = "Connection error: " + e.getMessage();
-            } catch (InvalidDataException e) {
-                errorMessage = "Invalid data: " + e.getMessage();
-            } catch (ResponseErrorException e) {
-                deleteEvents = isDeleteEventsByCode(e.getHttpCode());
-                errorMessage = "ResponseErrorException: " + e.getMessage();
-            } catch (Exception e) {
-                deleteEvents = false;
-                errorMessage = "Exception: " + e.getMessage();
-            } finally {
-                boolean isDebugMode = mSensorsDataAPI.isDebugMode();
-                if (deleteEvents || isDebugMode) {
-                    count = mPFDbManager.cleanupEvents(lastId);
-                    SALog.i(TAG, String.format(Locale.CHINA, "Events flushed. [left = %d]", count));
-                } else {
-                    count = 0;
-                }
-
+    /**
+     * 处于退避或熔断状态时，在到期后安排一次 flush
+     */
+    private void scheduleRetry() {
+        final long retryDelay = mRetryScheduler.getRetryDelay();
+        if (retryDelay > 0) {
+            final long now = SystemClock.elapsedRealtime();
+            final long delay = mFlushScheduler.requestAt(now + retryDelay, now);
+            if (delay >= 0) {
+                final Message m = Message.obtain();
+                m.what = SCHEDULED_FLUSH;
+                mWorker.reschedule(m, delay);
             }
         }
     }
 
-    private void sendHttpRequest(String path, String data, String gzip, String rawMessage, boolean isRedirects) throws ConnectErrorException, ResponseErrorException {
-        HttpURLConnection connection = null;
-        InputStream in = null;
-        OutputStream out = null;
-        BufferedOutputStream bout = null;
+    /**
+     * 发送一批数据，成功或者数据无效时删除这批数据覆盖的 _id 范围。
+     * 在上报线程中执行，多个批次可能同时发送、乱序完成
+     *
+     * @param batch 编码完成的数据
+     * @return true 表示这批数据已经处理完成，false 表示发送失败
+     */
+    private boolean sendBatch(EncodedBatch batch) {
+        boolean deleteEvents = true;
+        boolean circuitFailure = false;
+        String errorMessage = null;
+        final long startTime = SystemClock.elapsedRealtime();
         try {
-            final URL url = new URL(path);
-            connection = (HttpURLConnection) url.openConnection();
-            if (connection == null) {
-                SALog.i(TAG, String.format("can not connect %s, it shouldn't happen", url.toString()), null);
-                return;
-            }
-
-            connection.setInstanceFollowRedirects(false);
-//            if (mSensorsDataAPI.getDebugMode() == SensorsDataAPI.DebugMode.DEBUG_ONLY) {
-//                connection.addRequestProperty("Dry-Run", "true");
-//            }
-
-            Uri.Builder builder = new Uri.Builder();
-            //先校验crc
-            if (!TextUtils.isEmpty(data)) {
-                builder.appendQueryParameter("crc", String.valueOf(data.hashCode()));
-            }
-
-            builder.appendQueryParameter("gzip", gzip);
-            builder.appendQueryParameter("data_list", data);
-
-            String query = builder.build().getEncodedQuery();
-            if (TextUtils.isEmpty(query)) {
-                return;
-            }
-
-            connection.setFixedLengthStreamingMode(query.getBytes(CHARSET_UTF8).length);
-            connection.setDoOutput(true);
-            connection.setRequestMethod("POST");
-            //设置连接超时时间
-            connection.setConnectTimeout(30 * 1000);
-            //设置读取超时时间
-            connection.setReadTimeout(30 * 1000);
-            out = connection.getOutputStream();
-            bout = new BufferedOutputStream(out);
-            bout.write(query.getBytes(CHARSET_UTF8));
-            bout.flush();
-
-            int responseCode = connection.getResponseCode();
-            SALog.i(TAG, "responseCode: " + responseCode);
-            if (!isRedirects && NetworkUtils.needRedirects(responseCode)) {
-                String location = NetworkUtils.getLocation(connection, path);
-                if (!TextUtils.isEmpty(location)) {
-                    closeStream(bout, out, null, connection);
-                    sendHttpRequest(location, data, gzip, rawMessage, true);
-                    return;
-                }
-            }
-            try {
-                in = connection.getInputStream();
-            } catch (FileNotFoundException e) {
-                in = connection.getErrorStream();
-            }
-            byte[] responseBody = slurp(in);
-            in.close();
-            in = null;
-
-            String response = new String(responseBody, CHARSET_UTF8);
-            if (SALog.isLogEnabled()) {
-                String jsonMessage = JSONUtils.formatJson(rawMessage);
-                // 状态码 200 - 300 间都认为正确
-                if (responseCode >= HttpURLConnection.HTTP_OK &&
-                        responseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
-                    SALog.i(TAG, "valid message: 上报成功");
-                } else {
-                    SALog.i(TAG, "invalid message: 上报失败");
-                    SALog.i(TAG, String.format(Locale.CHINA, "ret_code: %d", responseCode));
-                    SALog.i(TAG, String.format(Locale.CHINA, "ret_content: %s", response));
-                }
-            }
-            if (responseCode < HttpURLConnection.HTTP_OK || responseCode >= HttpURLConnection.HTTP_MULT_CHOICE) {
-                // 校验错误
-                throw new ResponseErrorException(String.format("flush failure with response '%s', the response code is '%d'",
-                        response, responseCode), responseCode);
-            }
-        } catch (IOException e) {
-            throw new ConnectErrorException(e);
-        } finally {
-            closeStream(bout, out, in, connection);
+            mUploader.send(mSensorsDataAPI.getServerUrl(), batch);
+        } catch (ConnectErrorException e) {
+            deleteEvents = false;
+            errorMessage = "Connection error: " + e.getMessage();
+        } catch (InvalidDataException e) {
+            errorMessage = "Invalid data: " + e.getMessage();
+        } catch (ResponseErrorException e) {
+            deleteEvents = isDeleteEventsByCode(e.getHttpCode());
+            circuitFailure = UploadRetryScheduler.isCircuitFailure(e.getHttpCode());
+            errorMessage = "ResponseErrorException: " + e.getMessage();
+        } catch (Exception e) {
+            deleteEvents = false;
+            errorMessage = "Exception: " + e.getMessage();
         }
+        if (deleteEvents) {
+            mRetryScheduler.onSuccess();
+        } else {
+            mRetryScheduler.onFailure(circuitFailure);
+        }
+        if (errorMessage != null) {
+            SALog.i(TAG, errorMessage);
+        }
+        // 连接失败或服务端 5xx 等不删数据的情况视为失败，批次大小减半
+        mBatchSizeController.onResult(batch.rawLength, batch.size(), SystemClock.elapsedRealtime() - startTime, deleteEvents);
+        if (deleteEvents || mSensorsDataAPI.isDebugMode()) {
+            int count = mPFDbManager.deleteEventRange(batch.firstId, batch.lastId);
+            SALog.i(TAG, String.format(Locale.CHINA, "Events flushed. [left = %d]", count));
+            return true;
+        }
+        return false;
     }
 
     /**
-     * 在服务器正常返回状态码的情况下，目前只有 (>= 500 && < 600) || 404 || 403 才不删数据
+     * 在服务器正常返回状态码的情况下，目前只有 (>= 500 && < 600) || 404 || 403 || 没有跟随的重定向才不删数据
      *
      * @param httpCode 状态码
      * @return true: 删除数据，false: 不删数据
@@ -348,70 +295,13 @@ class AnalyticsMessages {
         boolean shouldDelete = true;
         if (httpCode == HttpURLConnection.HTTP_NOT_FOUND ||
                 httpCode == HttpURLConnection.HTTP_FORBIDDEN ||
+                NetworkUtils.needRedirects(httpCode) ||
                 (httpCode >= HttpURLConnection.HTTP_INTERNAL_ERROR && httpCode < 600)) {
             shouldDelete = false;
         }
         return shouldDelete;
     }
 
-    private void closeStream(BufferedOutputStream bout, OutputStream out, InputStream in, HttpURLConnection connection) {
-        if (null != bout) {
-            try {
-                bout.close();
-            } catch (Exception e) {
-                SALog.i(TAG, e.getMessage());
-            }
-        }
-
-        if (null != out) {
-            try {
-                out.close();
-            } catch (Exception e) {
-                SALog.i(TAG, e.getMessage());
-            }
-        }
-
-        if (null != in) {
-            try {
-                in.close();
-            } catch (Exception e) {
-                SALog.i(TAG, e.getMessage());
-            }
-        }
-
-        if (null != connection) {
-            try {
-                connection.disconnect();
-            } catch (Exception e) {
-                SALog.i(TAG, e.getMessage());
-            }
-        }
-    }
-
-    private String encodeData(final String rawMessage) throws InvalidDataException {
-        GZIPOutputStream gos = null;
-        try {
-            ByteArrayOutputStream os = new ByteArrayOutputStream(rawMessage.getBytes(CHARSET_UTF8).length);
-            gos = new GZIPOutputStream(os);
-            gos.write(rawMessage.getBytes(CHARSET_UTF8));
-            gos.close();
-            byte[] compressed = os.toByteArray();
-            os.close();
-            return new String(Base64Coder.encode(compressed));
-        } catch (IOException exception) {
-            // 格式错误，直接将数据删除
-            throw new InvalidDataException(exception);
-        } finally {
-            if (gos != null) {
-                try {
-                    gos.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-        }
-    }
-
     // Worker will manage the (at most single) IO thread associated with
     // this AnalyticsMessages instance.
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
@@ -439,15 +329,17 @@ class AnalyticsMessages {
             }
         }
 
-        void runMessageOnce(Message msg, long delay) {
+        /**
+         * 替换之前安排的同类消息，在 delay 毫秒之后执行
+         */
+        void reschedule(Message msg, long delay) {
             synchronized (mHandlerLock) {
                 // We died under suspicious circumstances. Don't try to send any more events.
                 if (mHandler == null) {
                     SALog.i(TAG, "Dead worker dropping a message: " + msg.what);
                 } else {
-                    if (!mHandler.hasMessages(msg.what)) {
-                        mHandler.sendMessageDelayed(msg, delay);
-                    }
+                    mHandler.removeMessages(msg.what);
+                    mHandler.sendMessageDelayed(msg, delay);
                 }
             }
         }
@@ -461,8 +353,10 @@ class AnalyticsMessages {
             @Override
             public void handleMessage(Message msg) {
                 try {
-                    if (msg.what == FLUSH_QUEUE) {
-                        sendData();
+                    if (msg.what == FLUSH_QUEUE || msg.what == SCHEDULED_FLUSH) {
+                        // 本次 flush 会发送已缓存的数据，之前安排的 flush 不再需要
+                        removeMessages(SCHEDULED_FLUSH);
+                        sendData(msg.arg1 == FLUSH_EXPLICIT);
                     } else if (msg.what == DELETE_ALL) {
                         try {
                             mPFDbManager.deleteAllEvents();
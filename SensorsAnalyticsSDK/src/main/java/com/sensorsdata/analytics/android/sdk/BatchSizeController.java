@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 上报批次大小的控制器，按字节而不是按条数限制每批数据。
+ * 目标值是压缩后的请求体字节数，按照 AIMD 调整：请求成功且 RTT 正常时线性增加，
+ * 请求失败或者 RTT 过高时减半；同时不超过当前网络类型的上限，也不超过按观测吞吐量在限定时间内能发完的字节数。
+ * 未压缩的字节上限由目标值和观测到的压缩率换算得到。
+ * 排空模式下直接使用网络类型允许的上限，失败时仍然减半。
+ */
+final class BatchSizeController {
+    /* 每批的条数上限，实际主要由字节数限制 */
+    static final int MAX_ROWS = 500;
+    /* 未压缩字节数的绝对上限，避免一批数据占用过多内存 */
+    static final int MAX_RAW_BYTES = 4 * 1024 * 1024;
+    /* 压缩后字节数的下限 */
+    static final int MIN_TARGET_BYTES = 4 * 1024;
+    /* 线性增加的步长 */
+    private static final int ADDITIVE_STEP_BYTES = 8 * 1024;
+    /* RTT 不超过该值时才继续增加 */
+    private static final long TARGET_RTT_MS = 2000;
+    /* RTT 超过该值时减半 */
+    private static final long SLOW_RTT_MS = 10 * 1000;
+    /* 一个请求期望在该时间内发送完成，用于按吞吐量限制批次大小 */
+    private static final long MAX_TRANSFER_MS = 5000;
+    /* 错误率超过该值时只发送最小批次 */
+    private static final double MAX_ERROR_RATE = 0.5;
+    /* 指数加权平均的系数 */
+    private static final double EWMA_ALPHA = 0.2;
+
+    private int mTargetBytes = 16 * 1024;
+    private int mNetworkCeiling = ceilingOf(null);
+    private boolean mDebugMode = false;
+    private boolean mDrainMode = false;
+    /* 压缩后字节数 / 未压缩字节数 */
+    private double mCompressionRatio = 0.25;
+    /* 单位 字节/秒，0 表示尚未观测到 */
+    private double mThroughput = 0;
+    private double mRtt = 0;
+    private double mErrorRate = 0;
+
+    /**
+     * flush 开始时更新网络类型和模式
+     *
+     * @param networkType NetworkUtils.networkType 返回的网络类型
+     * @param debugMode 是否为 debug 模式，debug 模式下每批 1 条
+     * @param drainMode 是否为排空模式
+     */
+    synchronized void beginFlush(String networkType, boolean debugMode, boolean drainMode) {
+        mNetworkCeiling = ceilingOf(networkType);
+        mDebugMode = debugMode;
+        mDrainMode = drainMode;
+        if (drainMode) {
+            mTargetBytes = mNetworkCeiling;
+        } else if (mTargetBytes > mNetworkCeiling) {
+            mTargetBytes = mNetworkCeiling;
+        }
+    }
+
+    /**
+     * @return 下一批的条数上限
+     */
+    synchronized int getRowLimit() {
+        return mDebugMode ? 1 : MAX_ROWS;
+    }
+
+    /**
+     * @return 下一批未压缩的字节数上限，至少会读取一条数据
+     */
+    synchronized int getByteLimit() {
+        if (mDebugMode) {
+            return MAX_RAW_BYTES;
+        }
+        long target = mTargetBytes;
+        if (mErrorRate > MAX_ERROR_RATE) {
+            target = MIN_TARGET_BYTES;
+        } else if (!mDrainMode && mThroughput > 0) {
+            target = Math.min(target, Math.max(MIN_TARGET_BYTES, (long) (mThroughput * MAX_TRANSFER_MS / 1000)));
+        }
+        return (int) Math.min(MAX_RAW_BYTES, (long) (target / mCompressionRatio));
+    }
+
+    /**
+     * 记录一次请求的结果
+     *
+     * @param rawBytes 未压缩的字节数
+     * @param bodyBytes 请求体的字节数
+     * @param rttMs 请求耗时，单位毫秒
+     * @param success 请求是否成功
+     */
+    synchronized void onResult(int rawBytes, int bodyBytes, long rttMs, boolean success) {
+        mErrorRate = ewma(mErrorRate, success ? 0 : 1);
+        if (!success) {
+            mTargetBytes = Math.max(MIN_TARGET_BYTES, mTargetBytes / 2);
+            return;
+        }
+        if (rawBytes > 0 && bodyBytes > 0) {
+            mCompressionRatio = ewma(mCompressionRatio, (double) bodyBytes / rawBytes);
+        }
+        if (rttMs > 0) {
+            mRtt = mRtt == 0 ? rttMs : ewma(mRtt, rttMs);
+            double throughput = bodyBytes * 1000.0 / rttMs;
+            mThroughput = mThroughput == 0 ? throughput : ewma(mThroughput, throughput);
+        }
+        if (rttMs > SLOW_RTT_MS && !mDrainMode) {
+            mTargetBytes = Math.max(MIN_TARGET_BYTES, mTargetBytes / 2);
+        } else if (rttMs <= TARGET_RTT_MS || mDrainMode) {
+            mTargetBytes = Math.min(mNetworkCeiling, mTargetBytes + ADDITIVE_STEP_BYTES);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchSizeController{" +
+                "targetBytes=" + mTargetBytes +
+                ", networkCeiling=" + mNetworkCeiling +
+                ", compressionRatio=" + mCompressionRatio +
+                ", throughput=" + (long) mThroughput +
+                ", rtt=" + (long) mRtt +
+                ", errorRate=" + mErrorRate +
+                ", drainMode=" + mDrainMode +
+                '}';
+    }
+
+    private static double ewma(double average, double sample) {
+        return average + EWMA_ALPHA * (sample - average);
+    }
+
+    /**
+     * 不同网络类型下单个请求体的字节数上限
+     */
+    private static int ceilingOf(String networkType) {
+        if ("WIFI".equals(networkType)) {
+            return 512 * 1024;
+        } else if ("4G".equals(networkType) || "5G".equals(networkType)) {
+            return 128 * 1024;
+        } else if ("3G".equals(networkType)) {
+            return 32 * 1024;
+        } else if ("2G".equals(networkType)) {
+            return 8 * 1024;
+        }
+        return 32 * 1024;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.text.TextUtils;
+
+import com.sensorsdata.analytics.android.sdk.exceptions.ConnectErrorException;
+import com.sensorsdata.analytics.android.sdk.exceptions.InvalidDataException;
+import com.sensorsdata.analytics.android.sdk.exceptions.ResponseErrorException;
+import com.sensorsdata.analytics.android.sdk.util.NetworkUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+
+import static com.sensorsdata.analytics.android.sdk.util.Base64Coder.CHARSET_UTF8;
+
+/**
+ * 把编码完成的一批数据发送到服务端：处理重定向地址缓存、二进制格式被拒绝后的表单回退，
+ * 读完响应后不断开连接，让 HttpURLConnection 复用连接。可以在多个上报线程中同时使用。
+ */
+final class BatchUploader {
+    private static final String TAG = "SA.BatchUploader";
+    /* 服务端不支持二进制格式时返回的状态码 */
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    /* 二进制格式下存放数据 CRC32 的请求头 */
+    static final String HEADER_CRC = "X-Crc32";
+    /* 预置字典格式下存放字典版本号的请求头 */
+    static final String HEADER_DICTIONARY_ID = "X-Dictionary-Id";
+    /* 读取响应使用的缓冲区，每个上报线程一份 */
+    private static final ThreadLocal<ResponseBuffer> S_RESPONSE_BUFFER = new ThreadLocal<ResponseBuffer>() {
+        @Override
+        protected ResponseBuffer initialValue() {
+            return new ResponseBuffer();
+        }
+    };
+    private final RedirectCache mRedirectCache;
+    /* 服务端不支持二进制格式，之后的上报都使用表单格式 */
+    private volatile boolean mBinaryRejected = false;
+    /* 二进制格式被拒绝后转换成表单格式使用，每个上报线程一个 */
+    private final ThreadLocal<UploadBodyWriter> mFallbackWriter = new ThreadLocal<UploadBodyWriter>() {
+        @Override
+        protected UploadBodyWriter initialValue() {
+            return new UploadBodyWriter();
+        }
+    };
+
+    BatchUploader() {
+        this(new RedirectCache(RedirectCache.DEFAULT_TTL_MS));
+    }
+
+    BatchUploader(RedirectCache redirectCache) {
+        this.mRedirectCache = redirectCache;
+    }
+
+    /**
+     * @return 服务端是否拒绝过二进制格式，拒绝后新的批次直接编码成表单格式
+     */
+    boolean isBinaryRejected() {
+        return mBinaryRejected;
+    }
+
+    /**
+     * 发送一批数据
+     *
+     * @param path 服务端地址
+     * @param batch 编码完成的数据
+     * @throws ConnectErrorException 网络错误
+     * @throws ResponseErrorException 服务端返回错误的状态码
+     * @throws InvalidDataException 数据格式错误
+     */
+    void send(String path, EncodedBatch batch) throws ConnectErrorException, ResponseErrorException, InvalidDataException {
+        sendHttpRequest(path, batch, false);
+    }
+
+    private void sendHttpRequest(String path, EncodedBatch batch, boolean isRedirects) throws ConnectErrorException, ResponseErrorException, InvalidDataException {
+        if (!isRedirects) {
+            // 服务端地址之前返回过重定向，有效期内直接发往重定向后的地址
+            String location = mRedirectCache.get(path);
+            if (location != null) {
+                try {
+                    sendHttpRequest(location, batch, true);
+                    return;
+                } catch (ConnectErrorException e) {
+                    mRedirectCache.invalidate(path);
+                    throw e;
+                } catch (ResponseErrorException e) {
+                    mRedirectCache.invalidate(path);
+                    if (!NetworkUtils.needRedirects(e.getHttpCode())) {
+                        throw e;
+                    }
+                    // 缓存的地址已经失效，重新向原地址请求一次，按新的响应处理
+                    SALog.i(TAG, "Cached redirect location " + location + " redirects again, retry " + path);
+                }
+            }
+        }
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        OutputStream out = null;
+        /* 响应读取完整后连接可以复用，不调用 disconnect */
+        boolean reusable = false;
+        try {
+            final URL url = new URL(path);
+            connection = (HttpURLConnection) url.openConnection();
+            if (connection == null) {
+                SALog.i(TAG, String.format("can not connect %s, it shouldn't happen", url.toString()), null);
+                return;
+            }
+
+            connection.setInstanceFollowRedirects(false);
+//            if (mSensorsDataAPI.getDebugMode() == SensorsDataAPI.DebugMode.DEBUG_ONLY) {
+//                connection.addRequestProperty("Dry-Run", "true");
+//            }
+
+            if (batch.uploadMode != SAUploadMode.FORM && mBinaryRejected) {
+                // 已经编码好的二进制数据，在服务端拒绝后转换成表单格式
+                batch = toFormBatch(batch);
+            }
+            final boolean binary = batch.uploadMode != SAUploadMode.FORM;
+            // 请求体已经在编码线程中生成，长度确定
+            connection.setFixedLengthStreamingMode(batch.size());
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            if (binary) {
+                connection.setRequestProperty("Content-Type", "application/json");
+                if (batch.uploadMode == SAUploadMode.DEFLATE_DICTIONARY) {
+                    connection.setRequestProperty("Content-Encoding", "deflate");
+                    connection.setRequestProperty(HEADER_DICTIONARY_ID, CompressionDictionary.ID);
+                } else {
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+                connection.setRequestProperty(HEADER_CRC, String.valueOf(batch.crc));
+            } else {
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            }
+            //设置连接超时时间
+            connection.setConnectTimeout(30 * 1000);
+            //设置读取超时时间
+            connection.setReadTimeout(30 * 1000);
+            out = connection.getOutputStream();
+            out.write(batch.getBuffer(), 0, batch.size());
+            out.flush();
+            out.close();
+            out = null;
+
+            int responseCode = connection.getResponseCode();
+            SALog.i(TAG, "responseCode: " + responseCode);
+            in = getResponseStream(connection, responseCode);
+            if (binary && responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                // 服务端不支持二进制格式，回退到表单格式重新发送
+                SALog.i(TAG, "Server does not accept binary body, fall back to form body.");
+                mBinaryRejected = true;
+                slurp(in, false);
+                reusable = true;
+                closeStream(null, in, null);
+                in = null;
+                connection = null;
+                sendHttpRequest(path, batch, isRedirects);
+                return;
+            }
+            if (!isRedirects && NetworkUtils.needRedirects(responseCode)) {
+                String location = NetworkUtils.getLocation(connection, path);
+                if (!TextUtils.isEmpty(location)) {
+                    mRedirectCache.put(path, location);
+                    slurp(in, false);
+                    reusable = true;
+                    closeStream(null, in, null);
+                    in = null;
+                    connection = null;
+                    sendHttpRequest(location, batch, true);
+                    return;
+                }
+            }
+            final boolean success = responseCode >= HttpURLConnection.HTTP_OK &&
+                    responseCode < HttpURLConnection.HTTP_MULT_CHOICE;
+            // 成功且不输出日志时只需要读完响应，不保存内容
+            String response = slurp(in, !success || SALog.isLogEnabled());
+            // 没有响应体的错误响应 getErrorStream 返回 null
+            closeStream(null, in, null);
+            in = null;
+            reusable = true;
+
+            if (SALog.isLogEnabled()) {
+                // 状态码 200 - 300 间都认为正确
+                if (success) {
+                    SALog.i(TAG, "valid message: 上报成功");
+                } else {
+                    SALog.i(TAG, "invalid message: 上报失败");
+                    SALog.i(TAG, String.format(Locale.CHINA, "ret_code: %d", responseCode));
+                    SALog.i(TAG, String.format(Locale.CHINA, "ret_content: %s", response));
+                }
+            }
+            if (!success) {
+                // 校验错误
+                throw new ResponseErrorException(String.format("flush failure with response '%s', the response code is '%d'",
+                        response, responseCode), responseCode);
+            }
+        } catch (IOException e) {
+            throw new ConnectErrorException(e);
+        } finally {
+            // 出错时连接状态未知，断开连接，不放回连接池
+            closeStream(out, in, reusable ? null : connection);
+        }
+    }
+
+    /**
+     * 按状态码选择响应流。错误响应不能依赖 getInputStream 抛出 FileNotFoundException：
+     * 部分实现对 5xx 抛出的是普通 IOException，会被当成网络错误，响应也没有读完，连接无法复用
+     */
+    private static InputStream getResponseStream(HttpURLConnection connection, int responseCode) throws IOException {
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            return connection.getErrorStream();
+        }
+        return connection.getInputStream();
+    }
+
+    /**
+     * 把二进制格式的数据转换成表单格式
+     *
+     * @param batch 二进制格式的数据
+     * @return 表单格式的数据
+     * @throws InvalidDataException 转换失败，数据需要删除
+     */
+    private EncodedBatch toFormBatch(EncodedBatch batch) throws InvalidDataException {
+        try {
+            EncodedBatch formBatch = new EncodedBatch();
+            formBatch.encodeFormFrom(batch, mFallbackWriter.get());
+            return formBatch;
+        } catch (Exception e) {
+            // 格式错误，直接将数据删除
+            throw new InvalidDataException(e);
+        }
+    }
+
+    /**
+     * 读取完整的响应内容，读完后连接才能被复用
+     *
+     * @param inputStream 响应流
+     * @param keep 是否需要保留内容，为 false 时只读取不保存
+     * @return 响应内容，keep 为 false 时返回空字符串
+     */
+    private static String slurp(final InputStream inputStream, boolean keep)
+            throws IOException {
+        if (inputStream == null) {
+            return "";
+        }
+        final ResponseBuffer buffer = S_RESPONSE_BUFFER.get();
+        buffer.reset();
+
+        int nRead;
+        byte[] data = buffer.readBuffer;
+
+        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
+            if (keep) {
+                buffer.write(data, 0, nRead);
+            }
+        }
+
+        String response = keep ? buffer.toString(CHARSET_UTF8) : "";
+        buffer.trim();
+        return response;
+    }
+
+    private static void closeStream(OutputStream out, InputStream in, HttpURLConnection connection) {
+        if (null != out) {
+            try {
+                out.close();
+            } catch (Exception e) {
+                SALog.i(TAG, e.getMessage());
+            }
+        }
+
+        if (null != in) {
+            try {
+                in.close();
+            } catch (Exception e) {
+                SALog.i(TAG, e.getMessage());
+            }
+        }
+
+        if (null != connection) {
+            try {
+                connection.disconnect();
+            } catch (Exception e) {
+                SALog.i(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 可复用的响应缓冲区，内容超过上限时释放，避免长期占用内存
+     */
+    private static final class ResponseBuffer extends ByteArrayOutputStream {
+        private static final int READ_BUFFER_SIZE = 8192;
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+        final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+        ResponseBuffer() {
+            super(READ_BUFFER_SIZE);
+        }
+
+        void trim() {
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[READ_BUFFER_SIZE];
+            }
+            reset();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.util.JSONByteWriter;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 设备和 App 的静态属性，例如 $os、$model、$app_version、$device_id。
+ * 这些属性在进程运行期间不变，事件入库时只保存版本号，读取上报时再展开或者放入批次信封，
+ * 不再在每一行数据中保存一份。版本号由编码后内容的 CRC32 得到，内容不变时跨进程保持不变。
+ */
+final class CommonProperties {
+    private final long mId;
+    private final String[] mKeys;
+    private final Object[] mValues;
+    private final byte[][] mEncoded;
+    /* 所有属性以逗号分隔的 "key":value 片段，不含大括号 */
+    private final byte[] mBlock;
+
+    private CommonProperties(String[] keys, Object[] values, byte[][] encoded, byte[] block, long id) {
+        this.mKeys = keys;
+        this.mValues = values;
+        this.mEncoded = encoded;
+        this.mBlock = block;
+        this.mId = id;
+    }
+
+    /**
+     * @param properties 属性，值只能是 String、Number、Boolean 或 JSONArray
+     * @return CommonProperties
+     */
+    static CommonProperties create(JSONObject properties) {
+        List<String> keys = new ArrayList<>(properties.length());
+        List<Object> values = new ArrayList<>(properties.length());
+        List<byte[]> encoded = new ArrayList<>(properties.length());
+        ByteArrayOutputStream block = new ByteArrayOutputStream(512);
+        Iterator<String> iterator = properties.keys();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            byte[] member = JSONByteWriter.encodeMember(key, properties.opt(key));
+            if (block.size() > 0) {
+                block.write(',');
+            }
+            block.write(member, 0, member.length);
+            keys.add(key);
+            values.add(properties.opt(key));
+            encoded.add(member);
+        }
+        byte[] bytes = block.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        // 0 表示没有引用公共属性
+        long id = crc32.getValue() == 0 ? 1 : crc32.getValue();
+        return new CommonProperties(keys.toArray(new String[keys.size()]), values.toArray(),
+                encoded.toArray(new byte[encoded.size()][]), bytes, id);
+    }
+
+    /**
+     * @return 版本号，大于 0
+     */
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * @return 以逗号分隔的 "key":value 片段，调用方不能修改
+     */
+    byte[] getBlock() {
+        return mBlock;
+    }
+
+    /**
+     * 公共属性或者事件属性中是否有与静态属性同名的 key，有的话这条事件需要内联保存全部属性
+     *
+     * @param superProperties 公共属性
+     * @param eventProperties 事件属性
+     * @return true 表示有同名 key
+     */
+    boolean isOverridden(SuperPropertiesSnapshot superProperties, JSONObject eventProperties) {
+        for (String key : mKeys) {
+            if (eventProperties.has(key) || superProperties.has(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把静态属性内联写入事件的 properties，公共属性或者事件属性中存在同名 key 时跳过
+     *
+     * @param writer 事件编码器
+     * @param superProperties 公共属性
+     * @param eventProperties 事件属性
+     */
+    void writeTo(JSONByteWriter writer, SuperPropertiesSnapshot superProperties, JSONObject eventProperties) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (!eventProperties.has(mKeys[i]) && !superProperties.has(mKeys[i])) {
+                writer.rawMember(mEncoded[i], 0, mEncoded[i].length);
+            }
+        }
+    }
+
+    /**
+     * @param properties 写入的目标
+     */
+    void copyTo(JSONObject properties) {
+        try {
+            for (int i = 0; i < mKeys.length; i++) {
+                properties.put(mKeys[i], mValues[i]);
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+}
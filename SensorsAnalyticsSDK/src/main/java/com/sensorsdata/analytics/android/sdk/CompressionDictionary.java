@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.nio.charset.Charset;
+
+/**
+ * SAUploadMode.DEFLATE_DICTIONARY 使用的预置字典。
+ * 内容取自 SDK 生成的典型事件，deflate 优先匹配距离近的内容，出现越频繁的片段放得越靠后。
+ * 字典内容一旦发布就不能修改，需要调整时增加新的版本号，服务端按请求头中的版本号选择字典。
+ */
+final class CompressionDictionary {
+    /* 字典版本号，通过请求头 X-Dictionary-Id 发送 */
+    static final String ID = "1";
+
+    private static final byte[] DICTIONARY = ("\"$element_content\":\"\",\"$element_type\":\"\",\"$element_id\":\"\""
+            + ",\"$referrer\":\"\",\"$url\":\"\",\"$title\":\"\",\"$screen_name\":\"\",\"$is_first_day\":false"
+            + ",\"$AppClick\",\"$AppStart\",\"$AppEnd\",\"$SignUp\",\"$AppViewScreen\""
+            + ",\"$lib_plugin_version\":\"\",\"$anonymization_id\":\"\",\"$device_id\":\"\""
+            + ",\"$app_id\":\"\",\"$app_name\":\"\",\"$app_version\":\"\",\"$carrier\":\"\""
+            + ",\"$brand\":\"\",\"$model\":\"\",\"$manufacturer\":\"\",\"$os_version\":\"\",\"$os\":\"Android\""
+            + ",\"$screen_width\":1080,\"$screen_height\":2340,\"$timezone_offset\":-480"
+            + ",\"$network_type\":\"4G\",\"$wifi\":false,\"$network_type\":\"WIFI\",\"$wifi\":true"
+            + ",\"lib\":{\"$lib_method\":\"autoTrack\",\"$lib\":\"Android\",\"$lib_version\":\"\",\"$lib_detail\":\"\"}"
+            + ",\"_flush_time\":16"
+            + "},{\"_track_id\":7,\"time\":16,\"type\":\"track\",\"login_id\":\"login_id\""
+            + ",\"lib\":{\"$lib_method\":\"code\",\"$lib\":\"Android\",\"$lib_version\":\"\"}"
+            + ",\"event\":\"\",\"properties\":{").getBytes(Charset.forName("UTF-8"));
+
+    private CompressionDictionary() {
+    }
+
+    /**
+     * @return 字典内容，调用方不能修改
+     */
+    static byte[] get() {
+        return DICTIONARY;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.data.PFEventBatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * 编码完成、可以直接发送的一批数据，内容为完整的请求体。
+ * 缓冲区在多次 flush 之间复用。
+ */
+final class EncodedBatch extends ByteArrayOutputStream {
+    /* 本批数据覆盖的 _id 范围 */
+    long firstId;
+    long lastId;
+    int eventCount;
+    /* 未压缩的数据长度 */
+    int rawLength;
+    /* 请求体的格式，SAUploadMode 中定义的值 */
+    int uploadMode;
+    /* 非表单格式下原始数据的 CRC32 */
+    long crc;
+
+    EncodedBatch() {
+        super(8 * 1024);
+    }
+
+    /**
+     * 编码一批数据
+     *
+     * @param batch 从数据库读出的数据
+     * @param writer 当前线程的编码器
+     * @param uploadMode SAUploadMode 中定义的请求格式
+     * @throws IOException 编码失败
+     */
+    void encode(PFEventBatch batch, UploadBodyWriter writer, int uploadMode) throws IOException {
+        reset();
+        this.firstId = batch.getFirstId();
+        this.lastId = batch.getLastId();
+        this.eventCount = batch.getEventCount();
+        this.rawLength = batch.size();
+        this.uploadMode = uploadMode;
+        if (uploadMode == SAUploadMode.GZIP_JSON) {
+            this.crc = writer.crc32(batch.getBuffer(), 0, batch.size());
+            writer.writeGzipBody(batch.getBuffer(), 0, batch.size(), crc, this);
+        } else if (uploadMode == SAUploadMode.DEFLATE_DICTIONARY) {
+            this.crc = writer.crc32(batch.getBuffer(), 0, batch.size());
+            writer.writeDictionaryBody(batch.getBuffer(), 0, batch.size(), this);
+        } else {
+            this.crc = 0;
+            writer.writeFormBody(batch.getBuffer(), 0, batch.size(), this);
+        }
+    }
+
+    /**
+     * 把二进制格式的数据转换成表单格式，gzip 格式不需要重新压缩，预置字典格式需要先解压
+     *
+     * @param source 二进制格式的数据
+     * @param writer 当前线程的编码器
+     * @throws IOException 编码失败
+     */
+    void encodeFormFrom(EncodedBatch source, UploadBodyWriter writer) throws IOException {
+        reset();
+        this.firstId = source.firstId;
+        this.lastId = source.lastId;
+        this.eventCount = source.eventCount;
+        this.rawLength = source.rawLength;
+        this.uploadMode = SAUploadMode.FORM;
+        this.crc = 0;
+        if (source.uploadMode == SAUploadMode.DEFLATE_DICTIONARY) {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(Math.max(32, source.rawLength));
+            writer.inflateDictionaryBody(source.buf, 0, source.count, raw);
+            writer.writeFormBody(raw.toByteArray(), 0, raw.size(), this);
+        } else {
+            writer.writeFormBodyFromGzip(source.buf, 0, source.count, this);
+        }
+    }
+
+    /**
+     * @return 内部缓冲区，有效内容为 [0, size())，不会拷贝
+     */
+    synchronized byte[] getBuffer() {
+        return buf;
+    }
+}
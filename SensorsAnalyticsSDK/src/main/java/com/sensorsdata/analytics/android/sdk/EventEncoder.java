@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.util.JSONByteWriter;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * 事件编码器，把事件直接写成 UTF-8 字节，不再拼装中间的 JSONObject 再 toString。
+ * 字段顺序与原来的 dataObj 完全一致，每个线程复用同一个缓冲区，编码完成时同时算出 CRC32。
+ * 设备和 App 的静态属性不写入事件，只记录 {@link CommonProperties} 的版本号，
+ * 只有公共属性或者事件属性覆盖了其中的 key 时才内联写入。
+ */
+final class EventEncoder {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final ThreadLocal<EventEncoder> LOCAL = new ThreadLocal<EventEncoder>() {
+        @Override
+        protected EventEncoder initialValue() {
+            return new EventEncoder();
+        }
+    };
+
+    private final JSONByteWriter mWriter = new JSONByteWriter(INITIAL_CAPACITY);
+    private final CRC32 mCrc32 = new CRC32();
+    private long mCrc;
+    private long mCommonId;
+
+    private EventEncoder() {
+    }
+
+    /**
+     * @return 当前线程的编码器
+     */
+    static EventEncoder get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * 编码一条事件，结果通过 {@link #getBuffer()}、{@link #getLength()}、{@link #getCrc()}、{@link #getCommonId()} 获取，
+     * 在下一次调用 encode 之前有效
+     *
+     * @param trackId _track_id
+     * @param time 事件时间
+     * @param type 事件类型
+     * @param project 项目名，为 null 时不写入
+     * @param token token，为 null 时不写入
+     * @param libMethod $lib_method
+     * @param libVersion $lib_version
+     * @param libDetail $lib_detail，为空时不写入
+     * @param eventName 事件名，为 null 时不写入
+     * @param commonProperties 设备和 App 的静态属性，为 null 时不写入
+     * @param superProperties 公共属性，与事件属性同名时以事件属性为准
+     * @param properties 事件属性
+     */
+    void encode(long trackId, long time, String type, String project, String token, String libMethod, String libVersion,
+                String libDetail, String eventName, CommonProperties commonProperties, SuperPropertiesSnapshot superProperties,
+                JSONObject properties) {
+        final JSONByteWriter writer = mWriter;
+        writer.reset();
+        writer.beginObject();
+        writer.name("_track_id").value(trackId);
+        writer.name("time").value(time);
+        writer.name("type").value(type);
+        if (project != null) {
+            writer.name("project").value(project);
+        }
+        if (token != null) {
+            writer.name("token").value(token);
+        }
+        writer.name("login_id").value("login_id");
+        writer.name("lib").beginObject()
+                .name("$lib_method").value(libMethod)
+                .name("$lib").value("Android")
+                .name("$lib_version").value(libVersion);
+        if (libDetail != null) {
+            writer.name("$lib_detail").value(libDetail);
+        }
+        writer.endObject();
+        if (eventName != null) {
+            writer.name("event").value(eventName);
+        }
+        writer.name("properties").beginObject();
+        mCommonId = 0;
+        if (commonProperties != null) {
+            if (commonProperties.isOverridden(superProperties, properties)) {
+                commonProperties.writeTo(writer, superProperties, properties);
+            } else {
+                mCommonId = commonProperties.getId();
+            }
+        }
+        superProperties.writeTo(writer, properties);
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            writer.name(key).value(properties.opt(key));
+        }
+        writer.endObject();
+        writer.endObject();
+
+        mCrc32.reset();
+        mCrc32.update(writer.getBuffer(), 0, writer.getLength());
+        mCrc = mCrc32.getValue();
+    }
+
+    byte[] getBuffer() {
+        return mWriter.getBuffer();
+    }
+
+    int getLength() {
+        return mWriter.getLength();
+    }
+
+    long getCrc() {
+        return mCrc;
+    }
+
+    /**
+     * @return 引用的静态属性版本号，0 表示静态属性已内联写入或者没有静态属性
+     */
+    long getCommonId() {
+        return mCommonId;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事件 ID（_track_id）生成器。
+ * ID 不超过 53 位，在 JavaScript 等按双精度浮点数解析 JSON 的环境中不会丢失精度；
+ * 从高位到低位依次为：37 位时间戳（相对 2020-01-01，单位 16 毫秒，可用到 2089 年）、16 位随机节点号。
+ * 节点号在进程启动时随机生成一次，之后只通过 CAS 递增，不加锁也不再访问随机数源；
+ * 同一进程生成的 ID 严格递增，同一时间单位内的后续事件和时钟回拨时借用后续的时间单位，保证不重复；
+ * 不同进程只有节点号相同且落在同一时间单位时才会重复。
+ */
+final class EventIdGenerator {
+    /* 2020-01-01 00:00:00 UTC */
+    private static final long EPOCH = 1577836800000L;
+    /* 时间戳的单位为 2^4 = 16 毫秒，给节点号留出更多的位数 */
+    private static final int TIME_UNIT_SHIFT = 4;
+    private static final int NODE_BITS = 16;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+    /* 时间戳加一个单位 */
+    private static final long TICK = 1L << NODE_BITS;
+    /* 2^53 - 1，JavaScript 中可以精确表示的最大整数 */
+    static final long MAX_ID = (1L << 53) - 1;
+
+    private static final EventIdGenerator INSTANCE = new EventIdGenerator();
+
+    private final long mNode;
+    private final AtomicLong mLastId = new AtomicLong();
+
+    private EventIdGenerator() {
+        Random random;
+        try {
+            random = new SecureRandom();
+        } catch (Exception e) {
+            random = new Random();
+        }
+        mNode = random.nextInt() & NODE_MASK;
+    }
+
+    static EventIdGenerator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return 新的事件 ID，保证大于之前生成的所有 ID
+     */
+    long nextId() {
+        final long candidate = (((System.currentTimeMillis() - EPOCH) >>> TIME_UNIT_SHIFT) << NODE_BITS) | mNode;
+        while (true) {
+            long last = mLastId.get();
+            long next = candidate > last ? candidate : last + TICK;
+            if (mLastId.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+}
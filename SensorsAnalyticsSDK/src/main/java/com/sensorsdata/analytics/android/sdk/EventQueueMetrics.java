@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 事件队列的统计数据快照，可以根据实际流量调整队列容量和策略
+ */
+public final class EventQueueMetrics {
+    private final int mCapacity;
+    private final int mSize;
+    private final int mHighWatermark;
+    private final long mEnqueuedCount;
+    private final long mDroppedNewestCount;
+    private final long mDroppedOldestCount;
+    private final long mDroppedByPriorityCount;
+    private final long mDroppedTimeoutCount;
+    private final long mRejectedTaskCount;
+
+    EventQueueMetrics(int capacity, int size, int highWatermark, long enqueuedCount, long droppedNewestCount,
+                      long droppedOldestCount, long droppedByPriorityCount, long droppedTimeoutCount, long rejectedTaskCount) {
+        this.mCapacity = capacity;
+        this.mSize = size;
+        this.mHighWatermark = highWatermark;
+        this.mEnqueuedCount = enqueuedCount;
+        this.mDroppedNewestCount = droppedNewestCount;
+        this.mDroppedOldestCount = droppedOldestCount;
+        this.mDroppedByPriorityCount = droppedByPriorityCount;
+        this.mDroppedTimeoutCount = droppedTimeoutCount;
+        this.mRejectedTaskCount = rejectedTaskCount;
+    }
+
+    /**
+     * @return 队列容量
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return 当前队列中待处理的数量
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return 队列长度的历史最大值
+     */
+    public int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+    /**
+     * @return 成功入队的事件数
+     */
+    public long getEnqueuedCount() {
+        return mEnqueuedCount;
+    }
+
+    /**
+     * @return 队列已满时丢弃的新事件数
+     */
+    public long getDroppedNewestCount() {
+        return mDroppedNewestCount;
+    }
+
+    /**
+     * @return 队列已满时丢弃的队首事件数
+     */
+    public long getDroppedOldestCount() {
+        return mDroppedOldestCount;
+    }
+
+    /**
+     * @return 按优先级丢弃的全埋点事件数
+     */
+    public long getDroppedByPriorityCount() {
+        return mDroppedByPriorityCount;
+    }
+
+    /**
+     * @return 阻塞等待超时后丢弃的事件数
+     */
+    public long getDroppedTimeoutCount() {
+        return mDroppedTimeoutCount;
+    }
+
+    /**
+     * @return 队列已满、等待超时后没有入队的任务数（页面浏览、flush 等），不计入丢弃的事件总数
+     */
+    public long getRejectedTaskCount() {
+        return mRejectedTaskCount;
+    }
+
+    /**
+     * @return 丢弃的事件总数
+     */
+    public long getDroppedCount() {
+        return mDroppedNewestCount + mDroppedOldestCount + mDroppedByPriorityCount + mDroppedTimeoutCount;
+    }
+
+    @Override
+    public String toString() {
+        return "EventQueueMetrics{capacity=" + mCapacity
+                + ", size=" + mSize
+                + ", highWatermark=" + mHighWatermark
+                + ", enqueued=" + mEnqueuedCount
+                + ", droppedNewest=" + mDroppedNewestCount
+                + ", droppedOldest=" + mDroppedOldestCount
+                + ", droppedByPriority=" + mDroppedByPriorityCount
+                + ", droppedTimeout=" + mDroppedTimeoutCount
+                + ", rejectedTasks=" + mRejectedTaskCount
+                + "}";
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.data.PFDbManager;
+import com.sensorsdata.analytics.android.sdk.data.PFEventBatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分阶段的 flush 流水线：读取线程按 _id 顺序从数据库读出数据，编码线程池并行压缩、编码，
+ * 调用 {@link #run} 的线程按读取顺序把编码好的批次交给上报线程池，同时进行的请求数由 {@link UploadLimiter} 自适应调整。
+ * 各阶段之间通过有界队列衔接，当前批次在网络上传输时，后面的批次已经在读取和编码。
+ * 请求可能乱序完成，每个批次只负责删除自己覆盖的 _id 范围。
+ */
+final class FlushPipeline {
+    private static final String TAG = "SA.FlushPipeline";
+    /* 编码线程数上限 */
+    private static final int MAX_ENCODER_THREADS = 2;
+    /* 空闲线程的存活时间，单位秒 */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    /* 读取线程结束的标记 */
+    private static final Future<EncodedBatch> END = new FutureTask<>(new Callable<EncodedBatch>() {
+        @Override
+        public EncodedBatch call() {
+            return null;
+        }
+    });
+
+    /**
+     * 发送阶段，在上报线程中执行，多个批次可能同时发送
+     */
+    interface BatchSender {
+        /**
+         * 发送一批数据
+         *
+         * @param batch 编码完成的数据
+         * @return true 表示发送成功，false 表示发送失败，结束本次 flush
+         */
+        boolean send(EncodedBatch batch);
+    }
+
+    private final PFDbManager mDbManager;
+    private final ThreadPoolExecutor mReaderExecutor;
+    final ThreadPoolExecutor mEncoderExecutor;
+    final ThreadPoolExecutor mUploadExecutor;
+    private final UploadLimiter mLimiter = new UploadLimiter();
+    /* 读取与编码之间、编码与发送之间允许积压的批次数 */
+    final int mDepth;
+    private final ConcurrentLinkedQueue<PFEventBatch> mRawPool = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<EncodedBatch> mEncodedPool = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<UploadBodyWriter> mBodyWriter = new ThreadLocal<UploadBodyWriter>() {
+        @Override
+        protected UploadBodyWriter initialValue() {
+            return new UploadBodyWriter();
+        }
+    };
+
+    FlushPipeline(PFDbManager dbManager) {
+        this.mDbManager = dbManager;
+        int encoders = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_ENCODER_THREADS));
+        this.mDepth = encoders + 1;
+        this.mReaderExecutor = newExecutor(1, ThreadNameConstants.THREAD_FLUSH_READER);
+        this.mEncoderExecutor = newExecutor(encoders, ThreadNameConstants.THREAD_FLUSH_ENCODER);
+        this.mUploadExecutor = newExecutor(UploadLimiter.DEFAULT_MAX_CONCURRENCY, ThreadNameConstants.THREAD_FLUSH_UPLOADER);
+    }
+
+    /**
+     * 执行一次 flush，直到数据读完、达到批次上限或者有请求失败，返回前会等待所有请求完成
+     *
+     * @param sizing 批次大小控制器，每读取一批时获取一次上限
+     * @param maxBatches 本次 flush 最多发送的批次数
+     * @param uploadMode SAUploadMode 中定义的请求格式
+     * @param maxConcurrency 同时进行的请求数上限
+     * @param sender 发送阶段
+     * @return 成功发送的批次数
+     */
+    int run(final BatchSizeController sizing, final int maxBatches, final int uploadMode, int maxConcurrency, BatchSender sender) {
+        mLimiter.setMaxConcurrency(maxConcurrency);
+        resize(mUploadExecutor, Math.max(1, Math.min(maxConcurrency, UploadLimiter.MAX_CONCURRENCY)));
+        final BlockingQueue<Future<EncodedBatch>> handoff = new ArrayBlockingQueue<>(mDepth);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        try {
+            mReaderExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read(sizing, maxBatches, uploadMode, handoff, stopped);
+                }
+            });
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+            return 0;
+        }
+
+        final AtomicInteger sent = new AtomicInteger();
+        while (true) {
+            Future<EncodedBatch> future;
+            try {
+                future = handoff.take();
+            } catch (InterruptedException e) {
+                // 读取线程一定会放入结束标记，这里继续等待
+                stopped.set(true);
+                continue;
+            }
+            if (future == END) {
+                break;
+            }
+            EncodedBatch batch = getQuietly(future);
+            if (batch == null) {
+                stopped.set(true);
+                continue;
+            }
+            // 停止后仍然取完队列中的批次，保证读取线程不会阻塞在队列上
+            if (stopped.get()) {
+                recycle(batch);
+            } else {
+                upload(batch, sender, stopped, sent);
+            }
+        }
+        mLimiter.awaitIdle();
+        return sent.get();
+    }
+
+    private void upload(final EncodedBatch batch, final BatchSender sender, final AtomicBoolean stopped, final AtomicInteger sent) {
+        mLimiter.acquire();
+        if (stopped.get()) {
+            mLimiter.cancel();
+            recycle(batch);
+            return;
+        }
+        try {
+            mUploadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean success = false;
+                    try {
+                        success = sender.send(batch);
+                    } catch (Exception e) {
+                        SALog.printStackTrace(e);
+                    } finally {
+                        if (success) {
+                            sent.incrementAndGet();
+                        } else {
+                            stopped.set(true);
+                        }
+                        recycle(batch);
+                        mLimiter.release(success);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            SALog.printStackTrace(e);
+            stopped.set(true);
+            mLimiter.cancel();
+            recycle(batch);
+        }
+    }
+
+    private void read(BatchSizeController sizing, int maxBatches, final int uploadMode,
+                      BlockingQueue<Future<EncodedBatch>> handoff, AtomicBoolean stopped) {
+        long afterId = -1;
+        try {
+            for (int i = 0; i < maxBatches && !stopped.get(); i++) {
+                final PFEventBatch raw = obtainRaw();
+                boolean hasData;
+                synchronized (mDbManager) {
+                    hasData = mDbManager.queryEventBatch(afterId, sizing.getRowLimit(), sizing.getByteLimit(), raw);
+                }
+                if (!hasData) {
+                    recycle(raw);
+                    break;
+                }
+                afterId = raw.getLastId();
+                Future<EncodedBatch> future = mEncoderExecutor.submit(new Callable<EncodedBatch>() {
+                    @Override
+                    public EncodedBatch call() throws Exception {
+                        try {
+                            EncodedBatch encoded = obtainEncoded();
+                            encoded.encode(raw, mBodyWriter.get(), uploadMode);
+                            return encoded;
+                        } finally {
+                            recycle(raw);
+                        }
+                    }
+                });
+                putUninterruptibly(handoff, future);
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        } finally {
+            putUninterruptibly(handoff, END);
+        }
+    }
+
+    private EncodedBatch getQuietly(Future<EncodedBatch> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            SALog.i(TAG, "Failed to encode the batch: " + e.getCause());
+            return null;
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PFEventBatch obtainRaw() {
+        PFEventBatch batch = mRawPool.poll();
+        return batch != null ? batch : new PFEventBatch();
+    }
+
+    private void recycle(PFEventBatch batch) {
+        batch.reset();
+        mRawPool.offer(batch);
+    }
+
+    private EncodedBatch obtainEncoded() {
+        EncodedBatch batch = mEncodedPool.poll();
+        return batch != null ? batch : new EncodedBatch();
+    }
+
+    private void recycle(EncodedBatch batch) {
+        batch.reset();
+        mEncodedPool.offer(batch);
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else if (threads < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mIndex = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + mIndex.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 决定由事件入库触发的 flush 在什么时候执行，多个触发合并为一次。
+ * 缓存条数或字节数达到阈值时，在距离上一次 flush 满足最小间隔后立即发送；
+ * 否则最晚在第一条未发送事件入库 maxLatency 之后发送，同样不早于最小间隔。
+ * 时间使用 SystemClock.elapsedRealtime()，由调用方传入。
+ */
+final class FlushScheduler {
+    static final long DEFAULT_MIN_INTERVAL_MS = 15 * 1000;
+    static final long MIN_INTERVAL_LOWER_BOUND_MS = 5 * 1000;
+    static final long DEFAULT_MAX_LATENCY_MS = 60 * 1000;
+    static final long DEFAULT_MAX_PENDING_BYTES = 64 * 1024;
+
+    private final long mMinIntervalMs;
+    private final long mMaxLatencyMs;
+    private final long mMaxPendingBytes;
+    private final int mBulkSize;
+    /* 上一次 flush 的时间，尚未 flush 过时为 Long.MIN_VALUE */
+    private long mLastFlushTime = Long.MIN_VALUE;
+    /* 已安排的 flush 时间，没有时为 -1 */
+    private long mScheduledTime = -1;
+
+    FlushScheduler(long minIntervalMs, long maxLatencyMs, long maxPendingBytes, int bulkSize) {
+        this.mMinIntervalMs = minIntervalMs;
+        this.mMaxLatencyMs = Math.max(minIntervalMs, maxLatencyMs);
+        this.mMaxPendingBytes = maxPendingBytes;
+        this.mBulkSize = bulkSize;
+    }
+
+    /**
+     * 有事件入库
+     *
+     * @param queuedCount 缓存的事件条数
+     * @param queuedBytes 缓存的事件字节数
+     * @param now 当前时间
+     * @return 需要在多久之后执行 flush，单位毫秒；已有更早的安排时返回 -1
+     */
+    synchronized long onEventQueued(int queuedCount, long queuedBytes, long now) {
+        long due = queuedCount >= mBulkSize || queuedBytes >= mMaxPendingBytes ? now : now + mMaxLatencyMs;
+        return requestAt(due, now);
+    }
+
+    /**
+     * 要求在指定时间之后执行一次 flush，如果已有不晚于该时间的安排则合并
+     *
+     * @param due 期望的 flush 时间，会被推迟到满足最小间隔
+     * @param now 当前时间
+     * @return 需要在多久之后执行 flush，单位毫秒；已有更早的安排时返回 -1
+     */
+    synchronized long requestAt(long due, long now) {
+        if (mLastFlushTime != Long.MIN_VALUE) {
+            due = Math.max(due, mLastFlushTime + mMinIntervalMs);
+        }
+        if (mScheduledTime >= 0 && mScheduledTime <= due) {
+            return -1;
+        }
+        mScheduledTime = due;
+        return Math.max(0, due - now);
+    }
+
+    /**
+     * 开始执行 flush，清除已安排的时间
+     *
+     * @param now 当前时间
+     */
+    synchronized void onFlush(long now) {
+        mLastFlushTime = now;
+        mScheduledTime = -1;
+    }
+}
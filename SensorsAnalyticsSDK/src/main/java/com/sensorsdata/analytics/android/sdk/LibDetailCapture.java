@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 获取 $lib_detail（触发事件的调用位置）。
+ * 需要在调用方线程上执行，跳过 SDK 自身的调用栈；同一个事件名只在首次出现以及每 N 个事件采样一次时才获取调用栈，
+ * 其余事件不带 $lib_detail。同一个事件名可能从多个位置触发，获取到的调用位置不能复用到其他事件上。
+ */
+final class LibDetailCapture {
+    private static final String SDK_PACKAGE = "com.sensorsdata.analytics.android.sdk.";
+    private static final String THREAD_CLASS = "java.lang.Thread";
+    /* 记录的事件名上限，避免动态事件名导致集合无限增长 */
+    private static final int MAX_SEEN_EVENTS = 256;
+
+    private final int mMode;
+    private final int mSampleInterval;
+    private final AtomicInteger mCounter = new AtomicInteger();
+    private final Set<String> mSeenEvents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    LibDetailCapture(int mode, int sampleInterval) {
+        this.mMode = mode;
+        this.mSampleInterval = Math.max(1, sampleInterval);
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    /**
+     * 获取事件的调用位置
+     *
+     * @param eventName 事件名
+     * @param properties 事件属性，已经包含 $lib_detail 时不再获取
+     * @return 格式为 className##methodName##fileName##lineNumber，未被采样或者获取不到时返回 null
+     */
+    String capture(String eventName, JSONObject properties) {
+        if (mMode != SALibDetailMode.SAMPLED || eventName == null) {
+            return null;
+        }
+        if (properties != null && properties.has("$lib_detail")) {
+            return null;
+        }
+        boolean sample = (mCounter.incrementAndGet() & Integer.MAX_VALUE) % mSampleInterval == 0;
+        if (!sample && (mSeenEvents.size() >= MAX_SEEN_EVENTS || !mSeenEvents.add(eventName))) {
+            return null;
+        }
+        return walkStack();
+    }
+
+    /**
+     * 确定事件最终使用的 $lib_detail：插件或者调用方写入的值优先，没有时使用运行时获取的调用位置。
+     * OFF 模式只是不在运行时获取调用栈，写入的值仍然保留
+     *
+     * @param supplied 插件或者调用方在属性中写入的 $lib_detail
+     * @param captured {@link #capture(String, JSONObject)} 获取的调用位置
+     * @return $lib_detail，没有时返回 null
+     */
+    String resolve(String supplied, String captured) {
+        if (supplied != null && !supplied.isEmpty()) {
+            return supplied;
+        }
+        return mMode == SALibDetailMode.OFF ? null : captured;
+    }
+
+    private static String walkStack() {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        for (StackTraceElement element : trace) {
+            String className = element.getClassName();
+            if (className.startsWith(SDK_PACKAGE) || THREAD_CLASS.equals(className)) {
+                continue;
+            }
+            return new StringBuilder(128)
+                    .append(className).append("##")
+                    .append(element.getMethodName()).append("##")
+                    .append(element.getFileName()).append("##")
+                    .append(element.getLineNumber())
+                    .toString();
+        }
+        return null;
+    }
+}
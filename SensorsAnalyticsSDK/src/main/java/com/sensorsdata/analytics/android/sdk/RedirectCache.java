@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 缓存服务端地址返回的重定向地址，在有效期内直接向重定向后的地址发送数据，
+ * 不再每一批数据都先把完整的请求体发给原地址再收到 3xx。
+ */
+final class RedirectCache {
+    /* 重定向地址的有效期，单位毫秒 */
+    static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+    private final long mTtlMs;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    RedirectCache(long ttlMs) {
+        this.mTtlMs = ttlMs;
+    }
+
+    /**
+     * @param url 原地址
+     * @return 有效期内的重定向地址，没有时返回 null
+     */
+    synchronized String get(String url) {
+        Entry entry = mEntries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= entry.expireTime) {
+            mEntries.remove(url);
+            return null;
+        }
+        return entry.location;
+    }
+
+    synchronized void put(String url, String location) {
+        mEntries.put(url, new Entry(location, SystemClock.elapsedRealtime() + mTtlMs));
+    }
+
+    /**
+     * 重定向后的地址请求失败时删除缓存，下一次重新向原地址请求
+     *
+     * @param url 原地址
+     */
+    synchronized void invalidate(String url) {
+        mEntries.remove(url);
+    }
+
+    private static final class Entry {
+        final String location;
+        final long expireTime;
+
+        Entry(String location, long expireTime) {
+            this.location = location;
+            this.expireTime = expireTime;
+        }
+    }
+}
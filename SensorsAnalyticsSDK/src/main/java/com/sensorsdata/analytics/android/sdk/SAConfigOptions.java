@@ -22,6 +22,71 @@ public class SAConfigOptions implements Cloneable {
      */
     int mNetworkTypePolicy = SensorsNetworkType.TYPE_3G | SensorsNetworkType.TYPE_4G | SensorsNetworkType.TYPE_WIFI | SensorsNetworkType.TYPE_5G;
 
+    /**
+     * $lib_detail 的采集方式
+     */
+    int mLibDetailMode = SALibDetailMode.SAMPLED;
+
+    /**
+     * SAMPLED 模式下获取调用栈的采样间隔，每 N 个事件获取一次
+     */
+    int mLibDetailSampleInterval = 100;
+
+    /**
+     * 事件队列容量
+     */
+    int mEventQueueCapacity = TrackEventRingBuffer.DEFAULT_CAPACITY;
+
+    /**
+     * 事件队列已满时的处理策略
+     */
+    int mEventQueuePolicy = SAQueuePolicy.DROP_BY_PRIORITY;
+
+    /**
+     * 事件队列已满时阻塞等待的最长时间，单位毫秒
+     */
+    long mEventQueueBlockTimeoutMs = TrackTaskManager.DEFAULT_BLOCK_TIMEOUT_MS;
+
+    /**
+     * 数据上报的请求格式
+     */
+    int mUploadMode = SAUploadMode.FORM;
+
+    /**
+     * 同时进行的上报请求数上限
+     */
+    int mMaxConcurrentUploads = UploadLimiter.DEFAULT_MAX_CONCURRENCY;
+
+    /**
+     * 是否开启 debug 模式
+     */
+    boolean mDebugMode = false;
+
+    /**
+     * 两次 flush 之间的最小时间间隔，单位毫秒
+     */
+    long mFlushInterval = FlushScheduler.DEFAULT_MIN_INTERVAL_MS;
+
+    /**
+     * 事件入库后最长等待多久发送，单位毫秒
+     */
+    long mFlushMaxLatency = FlushScheduler.DEFAULT_MAX_LATENCY_MS;
+
+    /**
+     * 缓存的事件字节数达到该值时尽快发送
+     */
+    long mFlushMaxPendingBytes = FlushScheduler.DEFAULT_MAX_PENDING_BYTES;
+
+    /**
+     * 上报批次是否使用静态属性信封格式
+     */
+    boolean mCommonPropertiesEnvelope = false;
+
+    /**
+     * 事件的本地存储引擎
+     */
+    int mStorageEngine = SAStorageEngine.SQLITE;
+
     /**
      * 获取 SAOptionsConfig 实例
      */
@@ -50,6 +115,63 @@ public class SAConfigOptions implements Cloneable {
         return this;
     }
 
+    /**
+     * 设置是否开启 debug 模式，默认关闭。
+     * debug 模式下每条事件入库后立即单独发送，发送失败的数据也会删除，只适合调试时使用
+     *
+     * @param debugMode 是否开启
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setDebugMode(boolean debugMode) {
+        this.mDebugMode = debugMode;
+        return this;
+    }
+
+    /**
+     * 设置缓存的事件条数达到多少时尽快发送，默认 100
+     *
+     * @param flushBulkSize 条数，最小为 1
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setFlushBulkSize(int flushBulkSize) {
+        this.mFlushBulkSize = Math.max(1, flushBulkSize);
+        return this;
+    }
+
+    /**
+     * 设置两次 flush 之间的最小时间间隔，默认 15 秒，最小 5 秒。
+     * 主动调用 flush()、App 退到后台和网络恢复时的 flush 不受限制
+     *
+     * @param flushInterval 时间间隔，单位毫秒
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setFlushInterval(long flushInterval) {
+        this.mFlushInterval = Math.max(FlushScheduler.MIN_INTERVAL_LOWER_BOUND_MS, flushInterval);
+        return this;
+    }
+
+    /**
+     * 设置事件入库后最长等待多久发送，默认 60 秒，不小于 flush 的最小间隔
+     *
+     * @param maxLatency 时间，单位毫秒
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setFlushMaxLatency(long maxLatency) {
+        this.mFlushMaxLatency = maxLatency;
+        return this;
+    }
+
+    /**
+     * 设置缓存的事件字节数达到多少时尽快发送，默认 64KB
+     *
+     * @param maxPendingBytes 字节数
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setFlushMaxPendingBytes(long maxPendingBytes) {
+        this.mFlushMaxPendingBytes = Math.max(1, maxPendingBytes);
+        return this;
+    }
+
     /**
      * 设置数据的网络上传策略
      *
@@ -61,6 +183,104 @@ public class SAConfigOptions implements Cloneable {
         return this;
     }
 
+    /**
+     * 设置 $lib_detail 的采集方式，默认为 SALibDetailMode.SAMPLED
+     *
+     * @param libDetailMode SALibDetailMode 中定义的采集方式
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setLibDetailMode(int libDetailMode) {
+        this.mLibDetailMode = libDetailMode;
+        return this;
+    }
+
+    /**
+     * 设置 SAMPLED 模式下获取调用栈的采样间隔，默认每 100 个事件获取一次
+     *
+     * @param sampleInterval 采样间隔，最小为 1
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setLibDetailSampleInterval(int sampleInterval) {
+        this.mLibDetailSampleInterval = Math.max(1, sampleInterval);
+        return this;
+    }
+
+    /**
+     * 设置事件队列的容量，默认 4096，会向上取整为 2 的幂
+     *
+     * @param capacity 队列容量
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setEventQueueCapacity(int capacity) {
+        if (capacity > 0) {
+            this.mEventQueueCapacity = capacity;
+        }
+        return this;
+    }
+
+    /**
+     * 设置事件队列已满时的处理策略，默认为 SAQueuePolicy.DROP_BY_PRIORITY
+     *
+     * @param policy SAQueuePolicy 中定义的策略
+     * @param blockTimeoutMs 需要阻塞等待时的最长等待时间，单位毫秒，页面浏览、flush 等任务入队时也使用这个时间
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setEventQueuePolicy(int policy, long blockTimeoutMs) {
+        this.mEventQueuePolicy = policy;
+        this.mEventQueueBlockTimeoutMs = Math.max(0, blockTimeoutMs);
+        return this;
+    }
+
+    /**
+     * 设置数据上报的请求格式，默认为 SAUploadMode.FORM。
+     * 设置为 SAUploadMode.GZIP_JSON 时直接上报 gzip 压缩的 JSON，设置为 SAUploadMode.DEFLATE_DICTIONARY 时使用预置字典压缩，
+     * 服务端返回 415 时自动回退到表单格式
+     *
+     * @param uploadMode SAUploadMode 中定义的请求格式
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setUploadMode(int uploadMode) {
+        this.mUploadMode = uploadMode;
+        return this;
+    }
+
+    /**
+     * 设置上报批次是否使用静态属性信封格式，默认关闭，需要服务端支持。
+     * 开启后请求体为 {"data_list":[...],"common":{...}}，设备和 App 的静态属性每批只发送一次，事件通过 "_common" 引用；
+     * 关闭时读取数据时把静态属性展开到每条事件中，请求体格式不变
+     *
+     * @param enabled 是否开启
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setCommonPropertiesEnvelope(boolean enabled) {
+        this.mCommonPropertiesEnvelope = enabled;
+        return this;
+    }
+
+    /**
+     * 设置事件的本地存储引擎，默认为 SAStorageEngine.SQLITE。
+     * SAStorageEngine.SEGMENT_LOG 只适用于单进程的 App，AndroidManifest 中声明了其他进程的组件时使用 SQLITE
+     *
+     * @param storageEngine SAStorageEngine 中定义的存储引擎
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setStorageEngine(int storageEngine) {
+        this.mStorageEngine = storageEngine;
+        return this;
+    }
+
+    /**
+     * 设置同时进行的上报请求数上限，默认为 2，取值范围 1 - 8。
+     * 实际并发数从 1 开始，请求连续成功时逐步增加，失败时减半
+     *
+     * @param maxConcurrentUploads 并发请求数上限
+     * @return SAOptionsConfig
+     */
+    public SAConfigOptions setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.mMaxConcurrentUploads = Math.max(1, Math.min(maxConcurrentUploads, UploadLimiter.MAX_CONCURRENCY));
+        return this;
+    }
+
     @Override
     protected SAConfigOptions clone() {
         SAConfigOptions copyObject = this;
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * $lib_detail 的采集方式
+ */
+public interface SALibDetailMode {
+    // 不在运行时获取调用栈，只保留插件或者调用方写入的 $lib_detail
+    int OFF = 0;
+    // 每个事件名首次出现时以及按 1/N 的比例采样调用栈，未被采样的事件不带 $lib_detail
+    int SAMPLED = 1;
+    // 只使用插件在编译期写入的 $lib_detail，不在运行时获取调用栈
+    int PLUGIN = 2;
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 事件队列已满时的处理策略
+ */
+public interface SAQueuePolicy {
+    // 阻塞等待，超时后丢弃新事件
+    int BLOCK = 0;
+    // 丢弃新事件
+    int DROP_NEWEST = 1;
+    // 丢弃队列中最早的事件，队首是 flush 等任务时按 BLOCK 处理
+    int DROP_OLDEST = 2;
+    // 丢弃全埋点事件：新事件是全埋点事件时直接丢弃，否则丢弃队首的全埋点事件，没有可丢弃的事件时按 BLOCK 处理
+    int DROP_BY_PRIORITY = 3;
+}
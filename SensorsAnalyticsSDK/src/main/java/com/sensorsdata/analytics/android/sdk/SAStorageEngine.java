@@ -0,0 +1,27 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 事件的本地存储引擎
+ */
+public interface SAStorageEngine {
+    // SQLite：通过 ContentProvider 访问，支持多进程
+    int SQLITE = 0;
+    // 内存映射的分段日志：只支持单进程，声明了多个进程的 App 或者日志被占用时使用 SQLITE；切换引擎时不会迁移已缓存的事件
+    int SEGMENT_LOG = 1;
+}
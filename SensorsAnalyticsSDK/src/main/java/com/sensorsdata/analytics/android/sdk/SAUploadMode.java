@@ -0,0 +1,30 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 数据上报的请求格式
+ */
+public interface SAUploadMode {
+    // 表单格式：gzip=1&data_list=<URL 编码的 Base64(gzip(JSON))>&crc=...
+    int FORM = 0;
+    // 二进制格式：请求体为 gzip(JSON)，Content-Type: application/json，Content-Encoding: gzip，服务端不支持时回退到 FORM
+    int GZIP_JSON = 1;
+    // 预置字典格式：请求体为使用预置字典压缩的 zlib(JSON)，Content-Encoding: deflate，
+    // 请求头 X-Dictionary-Id 为字典版本号，服务端不支持时回退到 FORM
+    int DEFLATE_DICTIONARY = 2;
+}
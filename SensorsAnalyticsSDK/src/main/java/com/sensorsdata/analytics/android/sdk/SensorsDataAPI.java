@@ -28,6 +28,7 @@ import com.sensorsdata.analytics.android.sdk.autotrack.ActivityLifecycleCallback
 import com.sensorsdata.analytics.android.sdk.autotrack.FragmentViewScreenCallbacks;
 import com.sensorsdata.analytics.android.sdk.autotrack.aop.FragmentTrackHelper;
 import com.sensorsdata.analytics.android.sdk.data.PFDbManager;
+import com.sensorsdata.analytics.android.sdk.data.PFDbParams;
 import com.sensorsdata.analytics.android.sdk.exceptions.InvalidDataException;
 import com.sensorsdata.analytics.android.sdk.util.AppInfoUtils;
 import com.sensorsdata.analytics.android.sdk.util.DeviceUtils;
@@ -43,12 +44,13 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import java.lang.reflect.Method;
-import java.security.SecureRandom;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Sensors Analytics SDK
@@ -62,6 +64,9 @@ public class SensorsDataAPI{
     static String ANDROID_PLUGIN_VERSION = "";
 
     protected static final String TAG = "SA.SensorsDataAPI";
+    /* 注册事件名 */
+    static final String EVENT_SIGN_UP = "$SignUp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     protected static SAConfigOptions mSAConfigOptions;
     protected Context mContext;
@@ -75,9 +80,16 @@ public class SensorsDataAPI{
     protected TrackTaskManagerThread mTrackTaskManagerThread;
     protected SimpleDateFormat mIsFirstDayDateFormat;
     private boolean mIsMainProcess = false;
+    /* 积压数据排空模式 */
+    private volatile boolean mFlushDrainMode = false;
 
 
-    private final Map<String, Object> mProperties = new HashMap<>();
+    /* 公共属性快照，修改时整体替换 */
+    private final AtomicReference<SuperPropertiesSnapshot> mSuperProperties = new AtomicReference<>(SuperPropertiesSnapshot.EMPTY);
+    /* $lib_detail 采集 */
+    private LibDetailCapture mLibDetailCapture;
+    /* 设备和 App 的静态属性，事件中只保存版本号 */
+    private volatile CommonProperties mCommonProperties;
 
     //private
     private SensorsDataAPI() {
@@ -108,14 +120,19 @@ public class SensorsDataAPI{
         final String packageName = context.getApplicationContext().getPackageName();
         try {
             mSAConfigOptions = saConfigOptions.clone();
+            mLibDetailCapture = new LibDetailCapture(mSAConfigOptions.mLibDetailMode, mSAConfigOptions.mLibDetailSampleInterval);
             mTrackTaskManager = TrackTaskManager.getInstance();
-            mTrackTaskManagerThread = new TrackTaskManagerThread();
+            mTrackTaskManager.configure(mSAConfigOptions.mEventQueueCapacity, mSAConfigOptions.mEventQueuePolicy,
+                    mSAConfigOptions.mEventQueueBlockTimeoutMs);
+            mTrackTaskManagerThread = new TrackTaskManagerThread(this);
             new Thread(mTrackTaskManagerThread, ThreadNameConstants.THREAD_TASK_QUEUE).start();
             SensorsDataExceptionHandler.init();
-            PFDbManager.getInstance(mContext, packageName);
+            PFDbManager.getInstance(mContext, packageName, mSAConfigOptions.mStorageEngine).setCommonPropertiesEnvelope(mSAConfigOptions.mCommonPropertiesEnvelope);
             setServerUrl(mSAConfigOptions.mServerUrl);
             mMessages = AnalyticsMessages.getInstance(mContext, (SensorsDataAPI) this);
             registerLifecycleCallbacks();
+            // 网络恢复时 flush
+            NetworkUtils.registerNetworkListener(mContext);
 
             Bundle configBundle = AppInfoUtils.getAppInfoBundle(mContext);
             mIsMainProcess = AppInfoUtils.isMainProcess(mContext, configBundle);
@@ -127,7 +144,16 @@ public class SensorsDataAPI{
         } catch (Throwable ex) {
             SALog.d(TAG, ex.getMessage());
         }
-        appendProperties(mProperties);
+        Map<String, Object> deviceProperties = new HashMap<>();
+        appendProperties(deviceProperties);
+        try {
+            // 先保存这个版本的静态属性，再让事件引用它
+            CommonProperties commonProperties = CommonProperties.create(new JSONObject(deviceProperties));
+            PFDbManager.getInstance().saveCommonProperties(commonProperties.getId(), commonProperties.getBlock());
+            mCommonProperties = commonProperties;
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
     }
 
     /**
@@ -143,6 +169,43 @@ public class SensorsDataAPI{
         return mSAConfigOptions.mNetworkTypePolicy;
     }
 
+    /**
+     * 设置积压数据排空模式。开启后每批数据直接使用当前网络允许的最大字节数，
+     * 不再根据 RTT 逐步增大，适合有大量积压数据需要尽快发送的场景；开启时会立即触发一次 flush
+     *
+     * @param enable 是否开启
+     */
+    public void setFlushDrainMode(boolean enable) {
+        mFlushDrainMode = enable;
+        if (enable) {
+            flush();
+        }
+    }
+
+    boolean isFlushDrainMode() {
+        return mFlushDrainMode;
+    }
+
+    int getUploadMode() {
+        return mSAConfigOptions.mUploadMode;
+    }
+
+    long getFlushInterval() {
+        return mSAConfigOptions.mFlushInterval;
+    }
+
+    long getFlushMaxLatency() {
+        return mSAConfigOptions.mFlushMaxLatency;
+    }
+
+    long getFlushMaxPendingBytes() {
+        return mSAConfigOptions.mFlushMaxPendingBytes;
+    }
+
+    int getMaxConcurrentUploads() {
+        return mSAConfigOptions.mMaxConcurrentUploads;
+    }
+
     /**
      * 以判断是否向服务器上传数据:
      * 1. 是否是 WIFI/3G/4G 网络条件
@@ -182,12 +245,8 @@ public class SensorsDataAPI{
     public void track(final String eventName, final JSONObject properties) {
         try {
             final JSONObject cloneProperties = JSONUtils.cloneJsonObject(properties);
-            mTrackTaskManager.addTrackEventTask(new Runnable() {
-                @Override
-                public void run() {
-                    trackEvent(EventType.TRACK, eventName, cloneProperties);
-                }
-            });
+            mTrackTaskManager.addTrackEvent(EventType.TRACK, eventName, cloneProperties,
+                    mLibDetailCapture.capture(eventName, cloneProperties));
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -201,36 +260,28 @@ public class SensorsDataAPI{
      */
     public void trackViewScreen(final String url, final JSONObject properties) {
         try {
-            final JSONObject cloneProperties = JSONUtils.cloneJsonObject(properties);
-            mTrackTaskManager.addTrackEventTask(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (!TextUtils.isEmpty(url)) {// || cloneProperties != null
-                            String currentUrl = url;
-                            JSONObject trackProperties = new JSONObject();
-
-                            if (cloneProperties != null) {
-                                if (cloneProperties.has("$title")) {
-                                    mCurrentScreenTitle = cloneProperties.getString("$title");
-                                } else {
-                                    mCurrentScreenTitle = null;
-                                }
-                                if (cloneProperties.has("$url")) {
-                                    currentUrl = cloneProperties.optString("$url");
-                                }
-                            }
-                            trackProperties.put("$url", currentUrl);
-                            if (cloneProperties != null) {
-                                SensorsDataUtils.mergeJSONObject(cloneProperties, trackProperties);
-                            }
-                            trackEvent(EventType.TRACK, "$AppViewScreen", trackProperties);
-                        }
-                    } catch (Exception e) {
-                        SALog.printStackTrace(e);
+            if (!TextUtils.isEmpty(url)) {// || cloneProperties != null
+                final JSONObject cloneProperties = JSONUtils.cloneJsonObject(properties);
+                String currentUrl = url;
+                JSONObject trackProperties = new JSONObject();
+
+                if (cloneProperties != null) {
+                    if (cloneProperties.has("$title")) {
+                        mCurrentScreenTitle = cloneProperties.getString("$title");
+                    } else {
+                        mCurrentScreenTitle = null;
+                    }
+                    if (cloneProperties.has("$url")) {
+                        currentUrl = cloneProperties.optString("$url");
                     }
                 }
-            });
+                trackProperties.put("$url", currentUrl);
+                if (cloneProperties != null) {
+                    SensorsDataUtils.mergeJSONObject(cloneProperties, trackProperties);
+                }
+                mTrackTaskManager.addTrackEvent(EventType.TRACK, "$AppViewScreen", trackProperties,
+                        mLibDetailCapture.capture("$AppViewScreen", trackProperties));
+            }
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -342,7 +393,7 @@ public class SensorsDataAPI{
      * 将所有本地缓存的日志发送到 Sensors Analytics.
      */
     public void flush() {
-        mTrackTaskManager.addTrackEventTask(new Runnable() {
+        boolean enqueued = mTrackTaskManager.addTrackEventTask(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -352,18 +403,92 @@ public class SensorsDataAPI{
                 }
             }
         });
+        if (!enqueued) {
+            // 事件队列已满，直接交给上报线程，已经入库的数据仍然会被发送
+            mMessages.flush();
+        }
     }
 
     /**
      * 删除本地缓存的全部事件
      */
     public void deleteAll() {
-        mTrackTaskManager.addTrackEventTask(new Runnable() {
+        boolean enqueued = mTrackTaskManager.addTrackEventTask(new Runnable() {
             @Override
             public void run() {
                 mMessages.deleteAll();
             }
         });
+        if (!enqueued) {
+            // 事件队列已满，直接交给上报线程，队列中尚未入库的事件不会被删除
+            mMessages.deleteAll();
+        }
+    }
+
+    /**
+     * 注册公共属性，之后触发的每个事件都会带上这些属性。
+     * 与已注册的属性 key 忽略大小写相同时，新的属性会替换旧的属性
+     *
+     * @param superProperties 公共属性
+     */
+    public void registerSuperProperties(JSONObject superProperties) {
+        try {
+            SuperPropertiesSnapshot current;
+            SuperPropertiesSnapshot next;
+            do {
+                current = mSuperProperties.get();
+                next = current.register(superProperties);
+            } while (!mSuperProperties.compareAndSet(current, next));
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    /**
+     * 删除某个公共属性，key 忽略大小写
+     *
+     * @param superPropertyName 公共属性名称
+     */
+    public void unregisterSuperProperty(String superPropertyName) {
+        try {
+            SuperPropertiesSnapshot current;
+            SuperPropertiesSnapshot next;
+            do {
+                current = mSuperProperties.get();
+                next = current.unregister(superPropertyName);
+            } while (current != next && !mSuperProperties.compareAndSet(current, next));
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    /**
+     * 获取当前注册的公共属性，包括设备和 App 的静态属性
+     *
+     * @return 公共属性的副本
+     */
+    public JSONObject getSuperProperties() {
+        JSONObject superProperties = mSuperProperties.get().toJSONObject();
+        CommonProperties commonProperties = mCommonProperties;
+        if (commonProperties == null) {
+            return superProperties;
+        }
+        JSONObject properties = new JSONObject();
+        commonProperties.copyTo(properties);
+        SensorsDataUtils.mergeJSONObject(superProperties, properties);
+        return properties;
+    }
+
+    /**
+     * 获取事件队列的统计数据，包括队列长度和按原因统计的丢弃事件数
+     *
+     * @return EventQueueMetrics，SDK 未初始化时返回 null
+     */
+    public EventQueueMetrics getEventQueueMetrics() {
+        if (mTrackTaskManager == null) {
+            return null;
+        }
+        return mTrackTaskManager.getMetrics();
     }
 
     /**
@@ -372,7 +497,7 @@ public class SensorsDataAPI{
      * @return true：是，false：不是
      */
     public boolean isDebugMode() {
-        return true;
+        return mSAConfigOptions.mDebugMode;
     }
 
     /**
@@ -426,16 +551,8 @@ public class SensorsDataAPI{
      * @param properties 事件属性
      */
     public void trackInternal(final String eventName, final JSONObject properties) {
-        mTrackTaskManager.addTrackEventTask(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    trackEvent(EventType.TRACK, eventName, properties);
-                } catch (Exception e) {
-                    SALog.printStackTrace(e);
-                }
-            }
-        });
+        mTrackTaskManager.addTrackEvent(EventType.TRACK, eventName, properties,
+                mLibDetailCapture.capture(eventName, properties));
     }
 
     public void setDebug(boolean debug) {
@@ -473,6 +590,23 @@ public class SensorsDataAPI{
     }
 
     protected void trackEvent(final EventType eventType, String eventName, final JSONObject properties) {
+        trackEvent(eventType, eventName, properties, null, false);
+    }
+
+    void trackEvent(final EventType eventType, String eventName, final JSONObject properties, final boolean durable) {
+        trackEvent(eventType, eventName, properties, null, durable);
+    }
+
+    /**
+     * 触发事件
+     *
+     * @param eventType 事件类型
+     * @param eventName 事件名称
+     * @param properties 事件属性
+     * @param libDetail 在调用方线程上获取的 $lib_detail，可以为 null
+     * @param durable 是否同步写入数据库，崩溃等进程即将退出的场景需要在返回前落库
+     */
+    void trackEvent(final EventType eventType, String eventName, final JSONObject properties, final String libDetail, final boolean durable) {
         try {
 
             if (eventType.isTrack()) {
@@ -480,13 +614,9 @@ public class SensorsDataAPI{
             }
 
             try {
+                // 公共属性在编码时直接写入，这里只收集本次事件的属性
                 JSONObject sendProperties = new JSONObject();
 
-                // 将属性插件的属性合并到 sendProperties
-                sendProperties = SensorsDataUtils.mergeSuperJSONObject(
-                        new JSONObject(mProperties),
-                        sendProperties);
-
                 if (eventType.isTrack()) {
 
                     // 当前网络状况
@@ -496,7 +626,7 @@ public class SensorsDataAPI{
 
                 }
 
-                trackEventInternal(eventType, eventName, properties, sendProperties);
+                trackEventInternal(eventType, eventName, properties, sendProperties, mSuperProperties.get(), libDetail, durable);
             } catch (JSONException e) {
                 throw new InvalidDataException("Unexpected property");
             }
@@ -505,11 +635,11 @@ public class SensorsDataAPI{
         }
     }
 
-    private void trackEventInternal(final EventType eventType, final String eventName, final JSONObject properties, final JSONObject sendProperties) throws JSONException, InvalidDataException {
+    private void trackEventInternal(final EventType eventType, final String eventName, final JSONObject properties, final JSONObject sendProperties,
+                                    final SuperPropertiesSnapshot superProperties, final String capturedLibDetail, final boolean durable) throws JSONException, InvalidDataException {
         String libDetail = null;
-        String lib_version = VERSION;
+        String libMethod = "code";
         long eventTime = System.currentTimeMillis();
-        JSONObject libProperties = new JSONObject();
         if (null != properties) {
             try {
                 if (properties.has("$lib_detail")) {
@@ -522,43 +652,28 @@ public class SensorsDataAPI{
             SensorsDataUtils.mergeJSONObject(properties, sendProperties);
             if (eventType.isTrack()) {
                 if ("autoTrack".equals(properties.optString("$lib_method"))) {
-                    libProperties.put("$lib_method", "autoTrack");
+                    libMethod = "autoTrack";
                 } else {
-                    libProperties.put("$lib_method", "code");
                     sendProperties.put("$lib_method", "code");
                 }
-            } else {
-                libProperties.put("$lib_method", "code");
-            }
-        } else {
-            libProperties.put("$lib_method", "code");
-            if (eventType.isTrack()) {
-                sendProperties.put("$lib_method", "code");
             }
+        } else if (eventType.isTrack()) {
+            sendProperties.put("$lib_method", "code");
         }
 
-        libProperties.put("$lib", "Android");
-        libProperties.put("$lib_version", lib_version);
-
-        final JSONObject dataObj = new JSONObject();
+        // 事件 ID 按生成顺序递增，用于服务端去重以及批次内排序
+        long trackId = EventIdGenerator.getInstance().nextId();
 
-        try {
-            SecureRandom random = new SecureRandom();
-            dataObj.put("_track_id", random.nextInt());
-        } catch (Exception e) {
-            // ignore
-        }
-
-        dataObj.put("time", eventTime);
-        dataObj.put("type", eventType.getEventType());
+        String project = superProperties.getProject();
+        String token = superProperties.getToken();
         try {
             if (sendProperties.has("$project")) {
-                dataObj.put("project", sendProperties.optString("$project"));
+                project = sendProperties.optString("$project");
                 sendProperties.remove("$project");
             }
 
             if (sendProperties.has("$token")) {
-                dataObj.put("token", sendProperties.optString("$token"));
+                token = sendProperties.optString("$token");
                 sendProperties.remove("$token");
             }
 
@@ -568,7 +683,6 @@ public class SensorsDataAPI{
                     if (timeDate instanceof Date) {
                         if (TimeUtils.isDateValid((Date) timeDate)) {
                             eventTime = ((Date) timeDate).getTime();
-                            dataObj.put("time", eventTime);
                         }
                     }
                 } catch (Exception ex) {
@@ -581,35 +695,35 @@ public class SensorsDataAPI{
             SALog.printStackTrace(e);
         }
 
-        dataObj.put("login_id", "login_id");
-
-        dataObj.put("lib", libProperties);
-
         if (eventType == EventType.TRACK) {
-            dataObj.put("event", eventName);
             //是否首日访问
             sendProperties.put("$is_first_day", isFirstDay(eventTime));
         }
 
-        if (TextUtils.isEmpty(libDetail)) {
-            StackTraceElement[] trace = (new Exception()).getStackTrace();
-            if (trace.length > 1) {
-                StackTraceElement traceElement = trace[0];
-                libDetail = String.format("%s##%s##%s##%s", traceElement
-                                .getClassName(), traceElement.getMethodName(), traceElement.getFileName(),
-                        traceElement.getLineNumber());
-            }
-        }
-
-        libProperties.put("$lib_detail", libDetail);
+        // 插件写入的 $lib_detail 优先，调用栈已经在调用方线程上获取，这里不再获取
+        libDetail = mLibDetailCapture.resolve(libDetail, capturedLibDetail);
 
         SADataHelper.assertPropertyTypes(sendProperties);
-        dataObj.put("properties", sendProperties);
 
-        mMessages.enqueueEventMessage(eventType.getEventType(), dataObj);
+        // 直接编码为 UTF-8 字节交给存储层，不再拼装 dataObj
+        EventEncoder encoder = EventEncoder.get();
+        encoder.encode(trackId, eventTime, eventType.getEventType(), project, token, libMethod, VERSION, libDetail,
+                eventType == EventType.TRACK ? eventName : null, mCommonProperties, superProperties, sendProperties);
+        mMessages.enqueueEventMessage(eventType.getEventType(), encoder.getBuffer(), encoder.getLength(), encoder.getCrc(),
+                encoder.getCommonId(), getStoragePriority(eventType, eventName, libMethod), durable);
         if (SALog.isLogEnabled()) {
-            SALog.i(TAG, "track event:\n" + JSONUtils.formatJson(dataObj.toString()));
+            SALog.i(TAG, "track event:\n" + JSONUtils.formatJson(new String(encoder.getBuffer(), 0, encoder.getLength(), UTF_8)));
+        }
+    }
+
+    /**
+     * 事件的存储优先级，存储空间不足时先淘汰全埋点事件，崩溃和注册事件最后淘汰
+     */
+    private static int getStoragePriority(EventType eventType, String eventName, String libMethod) {
+        if (eventType == EventType.TRACK && (SensorsDataExceptionHandler.EVENT_APP_CRASHED.equals(eventName) || EVENT_SIGN_UP.equals(eventName))) {
+            return PFDbParams.PRIORITY_CRITICAL;
         }
+        return "autoTrack".equals(libMethod) ? PFDbParams.PRIORITY_LOW : PFDbParams.PRIORITY_NORMAL;
     }
 
     private JSONArray getPluginVersion() {
@@ -29,6 +29,8 @@ import java.util.ArrayList;
 
 public class SensorsDataExceptionHandler implements Thread.UncaughtExceptionHandler {
     private static final int SLEEP_TIMEOUT_MS = 500;
+    /* 崩溃事件名 */
+    static final String EVENT_APP_CRASHED = "AppCrashed";
     private static final ArrayList<SAExceptionListener> sExceptionListeners = new ArrayList<>();
     private static SensorsDataExceptionHandler sInstance;
     private Thread.UncaughtExceptionHandler mDefaultExceptionHandler;
@@ -74,7 +76,8 @@ public class SensorsDataExceptionHandler implements Thread.UncaughtExceptionHand
                     } catch (Exception ex) {
                         SALog.printStackTrace(ex);
                     }
-                    SensorsDataAPI.getInstance().trackEvent(EventType.TRACK, "AppCrashed", messageProp);
+                    // 进程即将退出，崩溃事件需要同步落库
+                    SensorsDataAPI.getInstance().trackEvent(EventType.TRACK, EVENT_APP_CRASHED, messageProp, true);
                 } catch (Exception ex) {
                     SALog.printStackTrace(ex);
                 }
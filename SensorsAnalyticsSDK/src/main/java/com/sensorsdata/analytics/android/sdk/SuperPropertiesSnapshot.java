@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.exceptions.InvalidDataException;
+import com.sensorsdata.analytics.android.sdk.util.JSONByteWriter;
+import com.sensorsdata.analytics.android.sdk.util.SADataHelper;
+import com.sensorsdata.analytics.android.sdk.util.SensorsDataUtils;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 公共属性的不可变快照。
+ * 注册时完成校验、Date 格式化和大小写去重，并把每个属性预先编码成 "key":value 字节；
+ * 触发事件时只需把这些片段拷贝进事件，不再为每条事件复制和合并一遍公共属性。
+ * 修改公共属性时生成新的快照，由调用方原子替换。
+ */
+final class SuperPropertiesSnapshot {
+    static final SuperPropertiesSnapshot EMPTY = new SuperPropertiesSnapshot(
+            new String[0], new Object[0], new byte[0][], null, null);
+
+    private final String[] mKeys;
+    private final Object[] mValues;
+    private final byte[][] mEncoded;
+    /* $project、$token 不属于 properties，单独保存 */
+    private final String mProject;
+    private final String mToken;
+
+    private SuperPropertiesSnapshot(String[] keys, Object[] values, byte[][] encoded, String project, String token) {
+        this.mKeys = keys;
+        this.mValues = values;
+        this.mEncoded = encoded;
+        this.mProject = project;
+        this.mToken = token;
+    }
+
+    /**
+     * 在当前快照的基础上添加公共属性，与已有属性 key 忽略大小写相同时替换已有属性
+     *
+     * @param properties 公共属性
+     * @return 新的快照
+     * @throws InvalidDataException 属性类型不合法
+     */
+    SuperPropertiesSnapshot register(JSONObject properties) throws InvalidDataException {
+        if (properties == null) {
+            return this;
+        }
+        // 校验会修改传入的对象，这里先复制一份，复制时会格式化 Date 类型的属性
+        JSONObject copy = new JSONObject();
+        SensorsDataUtils.mergeJSONObject(properties, copy);
+        SADataHelper.assertPropertyTypes(copy);
+
+        List<String> keys = new ArrayList<>(mKeys.length + copy.length());
+        List<Object> values = new ArrayList<>(mKeys.length + copy.length());
+        List<byte[]> encoded = new ArrayList<>(mKeys.length + copy.length());
+        String project = mProject;
+        String token = mToken;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (!containsIgnoreCase(copy, mKeys[i])) {
+                keys.add(mKeys[i]);
+                values.add(mValues[i]);
+                encoded.add(mEncoded[i]);
+            }
+        }
+
+        Iterator<String> iterator = copy.keys();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            Object value = copy.opt(key);
+            if ("$project".equals(key)) {
+                project = String.valueOf(value);
+            } else if ("$token".equals(key)) {
+                token = String.valueOf(value);
+            } else if ("$time".equals(key)) {
+                SALog.i("SA.SuperProperties", "$time is not supported as a super property");
+            } else {
+                keys.add(key);
+                values.add(value);
+                encoded.add(JSONByteWriter.encodeMember(key, value));
+            }
+        }
+        return new SuperPropertiesSnapshot(keys.toArray(new String[keys.size()]), values.toArray(),
+                encoded.toArray(new byte[encoded.size()][]), project, token);
+    }
+
+    /**
+     * 删除某个公共属性，key 忽略大小写
+     *
+     * @param name 属性名
+     * @return 新的快照，没有该属性时返回当前快照
+     */
+    SuperPropertiesSnapshot unregister(String name) {
+        if (name == null) {
+            return this;
+        }
+        String project = "$project".equalsIgnoreCase(name) ? null : mProject;
+        String token = "$token".equalsIgnoreCase(name) ? null : mToken;
+        int removed = 0;
+        for (String key : mKeys) {
+            if (key.equalsIgnoreCase(name)) {
+                removed++;
+            }
+        }
+        if (removed == 0) {
+            if (project == mProject && token == mToken) {
+                return this;
+            }
+            return new SuperPropertiesSnapshot(mKeys, mValues, mEncoded, project, token);
+        }
+        int size = mKeys.length - removed;
+        String[] keys = new String[size];
+        Object[] values = new Object[size];
+        byte[][] encoded = new byte[size][];
+        for (int i = 0, j = 0; i < mKeys.length; i++) {
+            if (!mKeys[i].equalsIgnoreCase(name)) {
+                keys[j] = mKeys[i];
+                values[j] = mValues[i];
+                encoded[j] = mEncoded[i];
+                j++;
+            }
+        }
+        return new SuperPropertiesSnapshot(keys, values, encoded, project, token);
+    }
+
+    /**
+     * 把公共属性写入事件的 properties，事件属性中存在同名 key 时以事件属性为准
+     *
+     * @param writer 事件编码器
+     * @param eventProperties 事件属性
+     */
+    void writeTo(JSONByteWriter writer, JSONObject eventProperties) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (!eventProperties.has(mKeys[i])) {
+                writer.rawMember(mEncoded[i], 0, mEncoded[i].length);
+            }
+        }
+    }
+
+    /**
+     * 是否包含某个属性，与注册时的替换规则一致，key 忽略大小写
+     *
+     * @param key 属性名
+     * @return 是否包含该属性
+     */
+    boolean has(String key) {
+        for (String name : mKeys) {
+            if (name.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String getProject() {
+        return mProject;
+    }
+
+    String getToken() {
+        return mToken;
+    }
+
+    /**
+     * @return 公共属性的副本
+     */
+    JSONObject toJSONObject() {
+        JSONObject properties = new JSONObject();
+        try {
+            if (mProject != null) {
+                properties.put("$project", mProject);
+            }
+            if (mToken != null) {
+                properties.put("$token", mToken);
+            }
+            for (int i = 0; i < mKeys.length; i++) {
+                properties.put(mKeys[i], mValues[i]);
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return properties;
+    }
+
+    private static boolean containsIgnoreCase(JSONObject properties, String name) {
+        Iterator<String> iterator = properties.keys();
+        while (iterator.hasNext()) {
+            if (name.equalsIgnoreCase(iterator.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
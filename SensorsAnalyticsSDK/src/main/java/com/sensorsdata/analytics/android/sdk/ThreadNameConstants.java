@@ -20,4 +20,8 @@ package com.sensorsdata.analytics.android.sdk;
 public interface ThreadNameConstants {
     String THREAD_TASK_QUEUE = "SA.TaskQueueThread";
     String THREAD_TASK_EXECUTE = "SA.TaskExecuteThread";
+    String THREAD_EVENT_WRITER = "SA.EventWriterThread";
+    String THREAD_FLUSH_READER = "SA.FlushReaderThread";
+    String THREAD_FLUSH_ENCODER = "SA.FlushEncoderThread";
+    String THREAD_FLUSH_UPLOADER = "SA.FlushUploaderThread";
 }
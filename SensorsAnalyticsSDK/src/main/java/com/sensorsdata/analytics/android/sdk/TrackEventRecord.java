@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.util.EventType;
+
+import org.json.JSONObject;
+
+/**
+ * 环形队列中的槽位，在队列创建时预先分配并被反复复用。
+ * 埋点事件直接以字段的形式写入槽位，只有少量非事件类的任务（flush、deleteAll 等）才会携带 Runnable。
+ */
+final class TrackEventRecord {
+    /* 槽位中存放的是埋点事件 */
+    static final int KIND_EVENT = 1;
+    /* 槽位中存放的是普通任务 */
+    static final int KIND_TASK = 2;
+    /* 全埋点事件，队列已满时优先丢弃 */
+    static final int PRIORITY_LOW = 0;
+    /* 代码埋点事件 */
+    static final int PRIORITY_NORMAL = 1;
+    /* 普通任务（flush、deleteAll 等），从不丢弃 */
+    static final int PRIORITY_TASK = 2;
+
+    int kind;
+    int priority;
+    EventType eventType;
+    String eventName;
+    JSONObject properties;
+    /* 在调用方线程上获取的 $lib_detail */
+    String libDetail;
+    Runnable task;
+
+    void setEvent(EventType eventType, String eventName, JSONObject properties, String libDetail, int priority) {
+        this.kind = KIND_EVENT;
+        this.priority = priority;
+        this.eventType = eventType;
+        this.eventName = eventName;
+        this.properties = properties;
+        this.libDetail = libDetail;
+        this.task = null;
+    }
+
+    void setTask(Runnable task) {
+        this.kind = KIND_TASK;
+        this.priority = PRIORITY_TASK;
+        this.eventType = null;
+        this.eventName = null;
+        this.properties = null;
+        this.libDetail = null;
+        this.task = task;
+    }
+
+    void copyFrom(TrackEventRecord record) {
+        this.kind = record.kind;
+        this.priority = record.priority;
+        this.eventType = record.eventType;
+        this.eventName = record.eventName;
+        this.properties = record.properties;
+        this.libDetail = record.libDetail;
+        this.task = record.task;
+    }
+
+    /**
+     * 处理完成后释放引用，避免长期持有事件属性
+     */
+    void clear() {
+        this.kind = 0;
+        this.priority = 0;
+        this.eventType = null;
+        this.eventName = null;
+        this.properties = null;
+        this.libDetail = null;
+        this.task = null;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 多生产者、单消费者的无锁环形队列，参考 Disruptor 的实现：
+ * 1. 槽位在创建时预先分配，生产者通过 CAS 认领序号后直接填充槽位并发布，不产生额外的节点对象；
+ * 2. 每个槽位记录自己最近一次发布的序号，消费者据此判断槽位是否可读；
+ * 3. 消费者空闲时先自旋、再让出 CPU，最后才 park，生产者只在消费者确实 park 时才去唤醒它；
+ * 4. 队首序号（mConsumed）由消费者和生产者共同通过 CAS 推进：消费者先拷贝槽位内容再认领，
+ * 队列已满时生产者可以直接推进队首丢弃最早的事件，消费者认领失败时丢弃拷贝的内容即可。
+ */
+final class TrackEventRingBuffer {
+    /* 默认容量，必须是 2 的幂 */
+    static final int DEFAULT_CAPACITY = 4096;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    /* 队列已满时生产者的退避时间 */
+    private static final long PRODUCER_PARK_NANOS = 100 * 1000L;
+
+    private final TrackEventRecord[] mEntries;
+    private final int mIndexMask;
+    /* 每个槽位已发布的序号 */
+    private final AtomicLongArray mPublished;
+    /* 生产者已认领的最大序号 */
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    /* 队首，已被消费者认领或者被生产者丢弃的最大序号，小于等于它的槽位可以被复用 */
+    private final AtomicLong mConsumed = new AtomicLong(-1);
+    private final AtomicBoolean mConsumerWaiting = new AtomicBoolean(false);
+    private volatile Thread mConsumerThread;
+
+    TrackEventRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mEntries = new TrackEventRecord[size];
+        for (int i = 0; i < size; i++) {
+            mEntries[i] = new TrackEventRecord();
+        }
+        mIndexMask = size - 1;
+        mPublished = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    int getCapacity() {
+        return mEntries.length;
+    }
+
+    /**
+     * 认领下一个可写的序号，队列已满时最多等待 timeoutNanos
+     *
+     * @param timeoutNanos 等待时间，单位纳秒
+     * @return 序号，超时返回 -1
+     */
+    long next(long timeoutNanos) {
+        long sequence = tryNext();
+        if (sequence >= 0 || timeoutNanos <= 0) {
+            return sequence;
+        }
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while ((sequence = tryNext()) < 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            LockSupport.parkNanos(Math.min(remaining, PRODUCER_PARK_NANOS));
+        }
+        return sequence;
+    }
+
+    /**
+     * 尝试认领下一个可写的序号
+     *
+     * @return 序号，队列已满时返回 -1
+     */
+    long tryNext() {
+        long current;
+        long next;
+        do {
+            current = mCursor.get();
+            next = current + 1;
+            if (next - mEntries.length > mConsumed.get()) {
+                return -1;
+            }
+        } while (!mCursor.compareAndSet(current, next));
+        return next;
+    }
+
+    TrackEventRecord get(long sequence) {
+        return mEntries[(int) sequence & mIndexMask];
+    }
+
+    /**
+     * 发布已填充完成的槽位，必要时唤醒消费者
+     *
+     * @param sequence 序号
+     */
+    void publish(long sequence) {
+        mPublished.set((int) sequence & mIndexMask, sequence);
+        if (mConsumerWaiting.get() && mConsumerWaiting.compareAndSet(true, false)) {
+            LockSupport.unpark(mConsumerThread);
+        }
+    }
+
+    boolean isPublished(long sequence) {
+        return mPublished.get((int) sequence & mIndexMask) == sequence;
+    }
+
+    /**
+     * @return 队首序号，已被认领或者丢弃的最大序号
+     */
+    long getConsumedSequence() {
+        return mConsumed.get();
+    }
+
+    /**
+     * 消费者认领槽位，认领成功后槽位即可被生产者复用，所以必须在认领之前拷贝槽位的内容
+     *
+     * @param sequence 序号
+     * @return 认领成功返回 true，槽位已被生产者丢弃时返回 false
+     */
+    boolean claim(long sequence) {
+        return mConsumed.compareAndSet(sequence - 1, sequence);
+    }
+
+    /**
+     * 生产者在队列已满时丢弃最早的一个槽位
+     *
+     * @param maxPriority 只丢弃优先级不高于该值的槽位
+     * @return 是否丢弃成功
+     */
+    boolean tryDropOldest(int maxPriority) {
+        long head = mConsumed.get();
+        long oldest = head + 1;
+        // 只能丢弃已发布的槽位，否则写入方和新的认领方会同时写同一个槽位
+        if (!isPublished(oldest)) {
+            return false;
+        }
+        // 读到的值可能因为槽位被并发复用而失效，此时下面的 CAS 一定失败
+        if (get(oldest).priority > maxPriority) {
+            return false;
+        }
+        return mConsumed.compareAndSet(head, oldest);
+    }
+
+    boolean isConsumerThread() {
+        return Thread.currentThread() == mConsumerThread;
+    }
+
+    /**
+     * 当前队列中待处理的数量
+     *
+     * @return 数量
+     */
+    int size() {
+        return (int) Math.max(0, mCursor.get() - mConsumed.get());
+    }
+
+    /**
+     * 只能由消费者线程调用，等待指定序号被发布或者被生产者丢弃
+     *
+     * @param sequence 序号
+     */
+    void waitFor(long sequence) {
+        mConsumerThread = Thread.currentThread();
+        int tries = 0;
+        while (!isPublished(sequence) && mConsumed.get() < sequence) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                mConsumerWaiting.set(true);
+                if (isPublished(sequence) || mConsumed.get() >= sequence) {
+                    mConsumerWaiting.set(false);
+                    return;
+                }
+                LockSupport.park(this);
+            }
+        }
+    }
+}
@@ -1,16 +1,35 @@
 package com.sensorsdata.analytics.android.sdk;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import com.sensorsdata.analytics.android.sdk.util.EventType;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TrackTaskManager {
+    private static final String TAG = "SA.TrackTaskManager";
+    /* 默认的阻塞等待时间，单位毫秒 */
+    static final long DEFAULT_BLOCK_TIMEOUT_MS = 50;
     private static TrackTaskManager trackTaskManager;
     /**
-     * 请求线程队列
+     * 埋点事件队列，由 {@link TrackTaskManagerThread} 单线程消费
      */
-    private final LinkedBlockingQueue<Runnable> mTrackEventTasksCache;
+    private volatile TrackEventRingBuffer mRingBuffer;
+    private int mPolicy = SAQueuePolicy.DROP_BY_PRIORITY;
+    private long mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_TIMEOUT_MS);
+
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mDroppedNewestCount = new AtomicLong();
+    private final AtomicLong mDroppedOldestCount = new AtomicLong();
+    private final AtomicLong mDroppedByPriorityCount = new AtomicLong();
+    private final AtomicLong mDroppedTimeoutCount = new AtomicLong();
+    private final AtomicLong mRejectedTaskCount = new AtomicLong();
+    private final AtomicInteger mHighWatermark = new AtomicInteger();
 
     private TrackTaskManager() {
-        mTrackEventTasksCache = new LinkedBlockingQueue<>();
+        mRingBuffer = new TrackEventRingBuffer(TrackEventRingBuffer.DEFAULT_CAPACITY);
     }
 
     public static synchronized TrackTaskManager getInstance() {
@@ -24,31 +43,153 @@ public class TrackTaskManager {
         return trackTaskManager;
     }
 
-    void addTrackEventTask(Runnable trackEvenTask) {
+    /**
+     * 设置队列容量和队列已满时的处理策略，需要在消费线程启动之前调用
+     *
+     * @param capacity 队列容量，会向上取整为 2 的幂
+     * @param policy SAQueuePolicy 中定义的策略
+     * @param blockTimeoutMs 阻塞等待的最长时间，单位毫秒
+     */
+    synchronized void configure(int capacity, int policy, long blockTimeoutMs) {
+        if (capacity > 0 && capacity != mRingBuffer.getCapacity() && mRingBuffer.size() == 0) {
+            mRingBuffer = new TrackEventRingBuffer(capacity);
+        }
+        mPolicy = policy;
+        mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMs));
+    }
+
+    /**
+     * 添加埋点事件，事件以记录的形式写入预分配的槽位，不再为每个事件创建 Runnable
+     *
+     * @param eventType 事件类型
+     * @param eventName 事件名称
+     * @param properties 事件属性
+     * @param libDetail 在调用方线程上获取的 $lib_detail，可以为 null
+     */
+    void addTrackEvent(EventType eventType, String eventName, JSONObject properties, String libDetail) {
         try {
-                mTrackEventTasksCache.put(trackEvenTask);
+            final int priority = properties != null && "autoTrack".equals(properties.optString("$lib_method"))
+                    ? TrackEventRecord.PRIORITY_LOW : TrackEventRecord.PRIORITY_NORMAL;
+            long sequence = claimEventSequence(priority);
+            if (sequence < 0) {
+                SALog.i(TAG, "Event queue is full, event dropped: " + eventName);
+                return;
+            }
+            mRingBuffer.get(sequence).setEvent(eventType, eventName, properties, libDetail, priority);
+            mRingBuffer.publish(sequence);
+            onEnqueued();
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
     }
 
-    Runnable takeTrackEventTask() {
+    /**
+     * 添加普通任务。队列已满时最多等待与事件相同的阻塞时间，超时后不再入队，由调用方决定是否改为直接执行
+     *
+     * @param trackEvenTask 任务
+     * @return 成功入队时返回 true
+     */
+    boolean addTrackEventTask(Runnable trackEvenTask) {
         try {
-                return mTrackEventTasksCache.take();
-
+            final TrackEventRingBuffer ringBuffer = mRingBuffer;
+            long sequence = ringBuffer.tryNext();
+            if (sequence < 0) {
+                // 消费线程自己入队时不能等待，否则会死锁
+                sequence = ringBuffer.isConsumerThread() ? -1 : ringBuffer.next(mBlockTimeoutNanos);
+                if (sequence < 0) {
+                    mRejectedTaskCount.incrementAndGet();
+                    SALog.i(TAG, "Event queue is full, task rejected");
+                    return false;
+                }
+            }
+            ringBuffer.get(sequence).setTask(trackEvenTask);
+            ringBuffer.publish(sequence);
+            onEnqueued();
+            return true;
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
-        return null;
+        return false;
     }
 
-    Runnable pollTrackEventTask() {
-        try {
-                return mTrackEventTasksCache.poll();
+    /**
+     * 获取事件队列的统计数据
+     *
+     * @return EventQueueMetrics
+     */
+    EventQueueMetrics getMetrics() {
+        return new EventQueueMetrics(mRingBuffer.getCapacity(), mRingBuffer.size(), mHighWatermark.get(),
+                mEnqueuedCount.get(), mDroppedNewestCount.get(), mDroppedOldestCount.get(),
+                mDroppedByPriorityCount.get(), mDroppedTimeoutCount.get(), mRejectedTaskCount.get());
+    }
 
-        } catch (Exception e) {
-            SALog.printStackTrace(e);
+    TrackEventRingBuffer getRingBuffer() {
+        return mRingBuffer;
+    }
+
+    /**
+     * 按照策略认领槽位
+     *
+     * @param priority 事件优先级
+     * @return 序号，事件需要丢弃时返回 -1
+     */
+    private long claimEventSequence(int priority) {
+        final TrackEventRingBuffer ringBuffer = mRingBuffer;
+        long sequence = ringBuffer.tryNext();
+        if (sequence >= 0) {
+            return sequence;
+        }
+        // 消费线程自己入队（例如页面浏览任务中触发的事件）时不能阻塞，否则会死锁
+        if (ringBuffer.isConsumerThread()) {
+            mDroppedNewestCount.incrementAndGet();
+            return -1;
+        }
+        switch (mPolicy) {
+            case SAQueuePolicy.DROP_NEWEST:
+                mDroppedNewestCount.incrementAndGet();
+                return -1;
+            case SAQueuePolicy.DROP_OLDEST:
+                sequence = claimByDroppingOldest(TrackEventRecord.PRIORITY_NORMAL, mDroppedOldestCount);
+                break;
+            case SAQueuePolicy.DROP_BY_PRIORITY:
+                if (priority == TrackEventRecord.PRIORITY_LOW) {
+                    mDroppedByPriorityCount.incrementAndGet();
+                    return -1;
+                }
+                sequence = claimByDroppingOldest(TrackEventRecord.PRIORITY_LOW, mDroppedByPriorityCount);
+                break;
+            default:
+                break;
+        }
+        if (sequence < 0) {
+            sequence = ringBuffer.next(mBlockTimeoutNanos);
+            if (sequence < 0) {
+                mDroppedTimeoutCount.incrementAndGet();
+            }
+        }
+        return sequence;
+    }
+
+    private long claimByDroppingOldest(int maxVictimPriority, AtomicLong dropCounter) {
+        final TrackEventRingBuffer ringBuffer = mRingBuffer;
+        long sequence;
+        while ((sequence = ringBuffer.tryNext()) < 0) {
+            if (!ringBuffer.tryDropOldest(maxVictimPriority)) {
+                return -1;
+            }
+            dropCounter.incrementAndGet();
+        }
+        return sequence;
+    }
+
+    private void onEnqueued() {
+        mEnqueuedCount.incrementAndGet();
+        int size = mRingBuffer.size();
+        int highWatermark;
+        while (size > (highWatermark = mHighWatermark.get())) {
+            if (mHighWatermark.compareAndSet(highWatermark, size)) {
+                break;
+            }
         }
-        return null;
     }
 }
@@ -17,60 +17,44 @@
 
 package com.sensorsdata.analytics.android.sdk;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
-
+/**
+ * 埋点事件队列的唯一消费者，直接在本线程中处理事件，不再转投到线程池
+ */
 public class TrackTaskManagerThread implements Runnable {
-    /**
-     * 创建一个可重用固定线程数的线程池
-     */
-    private static final int POOL_SIZE = 1;
-
-    private TrackTaskManager mTrackTaskManager;
-    /**
-     * 创建一个可重用固定线程数的线程池
-     */
-    private ExecutorService mPool;
+    private final TrackEventRingBuffer mRingBuffer;
+    private final SensorsDataAPI mSensorsDataAPI;
     /**
      * 是否停止
      */
     private boolean isStop = false;
 
-    TrackTaskManagerThread() {
-        try {
-            this.mTrackTaskManager = TrackTaskManager.getInstance();
-            mPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
-                    0L, TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
-                @Override
-                public Thread newThread(Runnable r) {
-                    return new Thread(r, ThreadNameConstants.THREAD_TASK_EXECUTE);
-                }
-            });
-        } catch (Exception e) {
-            SALog.printStackTrace(e);
-        }
+    TrackTaskManagerThread(SensorsDataAPI sensorsDataAPI) {
+        this.mRingBuffer = TrackTaskManager.getInstance().getRingBuffer();
+        this.mSensorsDataAPI = sensorsDataAPI;
     }
 
     @Override
     public void run() {
-        try {
-            while (!isStop) {
-                Runnable downloadTask = mTrackTaskManager.takeTrackEventTask();
-                mPool.execute(downloadTask);
+        final TrackEventRecord current = new TrackEventRecord();
+        while (!isStop) {
+            long sequence = mRingBuffer.getConsumedSequence() + 1;
+            mRingBuffer.waitFor(sequence);
+            // 先拷贝再认领，认领失败说明该事件已被生产者丢弃
+            current.copyFrom(mRingBuffer.get(sequence));
+            if (mRingBuffer.claim(sequence)) {
+                handleRecord(current);
             }
-            while (true) {
-                Runnable downloadTask = mTrackTaskManager.pollTrackEventTask();
-                if (downloadTask == null) {
-                    break;
-                }
-                mPool.execute(downloadTask);
+            current.clear();
+        }
+    }
+
+    private void handleRecord(TrackEventRecord record) {
+        try {
+            if (record.kind == TrackEventRecord.KIND_EVENT) {
+                mSensorsDataAPI.trackEvent(record.eventType, record.eventName, record.properties, record.libDetail, false);
+            } else if (record.kind == TrackEventRecord.KIND_TASK && record.task != null) {
+                record.task.run();
             }
-            mPool.shutdown();
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
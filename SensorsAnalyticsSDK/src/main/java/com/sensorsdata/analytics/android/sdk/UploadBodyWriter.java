@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 流式生成上报请求体：gzip 压缩 -> Base64 -> URL 编码，写入调用方提供的输出流。
+ * 上报流程中输出流是编码线程复用的 EncodedBatch，请求体编码完成后长度已知，
+ * 发送时通过 setFixedLengthStreamingMode 一次写入连接，编码与网络发送可以并行。
+ * 只使用固定大小的缓冲区，Deflater 在多次上报之间复用，不再生成整批数据的压缩结果、Base64 字符串和请求参数字符串。
+ * 表单模式的请求体格式与原来一致：gzip=1&data_list=...&crc=...，crc 仍然是 data_list 解码后字符串的 hashCode，
+ * 由于在编码过程中计算，crc 参数放在了 data_list 之后；
+ * 二进制模式直接输出 gzip 数据，不再经过 Base64 和 URL 编码。
+ */
+final class UploadBodyWriter {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    /* 预置字典格式使用带 zlib 头的 Deflater，头部包含字典的 Adler-32，首次使用时创建 */
+    private Deflater mDictionaryDeflater;
+    private final CRC32 mCrc32 = new CRC32();
+    private final byte[] mDeflateBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mOutBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mCarry = new byte[3];
+    private final byte[] mTrailer = new byte[8];
+    private OutputStream mOut;
+    private int mOutLength;
+    private int mCarryLength;
+    private int mHash;
+    /* 为 true 时直接输出压缩数据，否则输出 Base64 + URL 编码后的数据 */
+    private boolean mBinary;
+
+    /**
+     * 写入表单格式的请求体
+     *
+     * @param data 待上报的 JSON 数组，UTF-8 编码
+     * @param offset 起始位置
+     * @param length 长度
+     * @param out 请求体的输出流
+     * @throws IOException 写入失败
+     */
+    void writeFormBody(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        mOut = out;
+        mOutLength = 0;
+        mCarryLength = 0;
+        mHash = 0;
+        mBinary = false;
+        try {
+            writeAscii("gzip=1&data_list=");
+            writeGzip(data, offset, length, crc32(data, offset, length));
+            finishBase64();
+            writeAscii("&crc=");
+            writeAscii(String.valueOf(mHash));
+            flushOut();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * 把已经 gzip 压缩的数据写成表单格式的请求体，用于二进制格式被服务端拒绝后的回退，不需要重新压缩
+     *
+     * @param compressed gzip 数据
+     * @param offset 起始位置
+     * @param length 长度
+     * @param out 输出流
+     * @throws IOException 写入失败
+     */
+    void writeFormBodyFromGzip(byte[] compressed, int offset, int length, OutputStream out) throws IOException {
+        mOut = out;
+        mOutLength = 0;
+        mCarryLength = 0;
+        mHash = 0;
+        mBinary = false;
+        try {
+            writeAscii("gzip=1&data_list=");
+            encode(compressed, offset, length);
+            finishBase64();
+            writeAscii("&crc=");
+            writeAscii(String.valueOf(mHash));
+            flushOut();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * 写入二进制格式的请求体，内容为 gzip 压缩后的 JSON 数组
+     *
+     * @param data 待上报的 JSON 数组，UTF-8 编码
+     * @param offset 起始位置
+     * @param length 长度
+     * @param crc 通过 {@link #crc32(byte[], int, int)} 计算的校验值
+     * @param out 请求体的输出流
+     * @throws IOException 写入失败
+     */
+    void writeGzipBody(byte[] data, int offset, int length, long crc, OutputStream out) throws IOException {
+        mOut = out;
+        mOutLength = 0;
+        mBinary = true;
+        try {
+            writeGzip(data, offset, length, crc);
+            flushOut();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * 写入预置字典格式的请求体，内容为使用 {@link CompressionDictionary} 压缩的 zlib 数据
+     *
+     * @param data 待上报的 JSON 数组，UTF-8 编码
+     * @param offset 起始位置
+     * @param length 长度
+     * @param out 请求体的输出流
+     * @throws IOException 写入失败
+     */
+    void writeDictionaryBody(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        mOut = out;
+        mOutLength = 0;
+        mBinary = true;
+        try {
+            if (mDictionaryDeflater == null) {
+                mDictionaryDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+            }
+            final Deflater deflater = mDictionaryDeflater;
+            deflater.reset();
+            final byte[] dictionary = CompressionDictionary.get();
+            deflater.setDictionary(dictionary, 0, dictionary.length);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(mDeflateBuffer, 0, mDeflateBuffer.length);
+                encode(mDeflateBuffer, 0, count);
+            }
+            flushOut();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * 解压预置字典格式的数据，用于服务端不支持该格式时转换成表单格式
+     *
+     * @param compressed 压缩数据
+     * @param offset 起始位置
+     * @param length 长度
+     * @param out 解压后的 JSON
+     * @throws IOException 数据格式错误
+     */
+    void inflateDictionaryBody(byte[] compressed, int offset, int length, OutputStream out) throws IOException {
+        Inflater inflater = new Inflater(false);
+        try {
+            inflater.setInput(compressed, offset, length);
+            while (!inflater.finished()) {
+                int count = inflater.inflate(mDeflateBuffer, 0, mDeflateBuffer.length);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        final byte[] dictionary = CompressionDictionary.get();
+                        inflater.setDictionary(dictionary, 0, dictionary.length);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Unexpected end of deflate data");
+                    }
+                }
+                out.write(mDeflateBuffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 计算原始数据的 CRC32，二进制模式下需要在写请求体之前放入请求头
+     */
+    long crc32(byte[] data, int offset, int length) {
+        mCrc32.reset();
+        mCrc32.update(data, offset, length);
+        return mCrc32.getValue();
+    }
+
+    private void writeGzip(byte[] data, int offset, int length, long crc) throws IOException {
+        encode(GZIP_HEADER, 0, GZIP_HEADER.length);
+        mDeflater.reset();
+        mDeflater.setInput(data, offset, length);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int count = mDeflater.deflate(mDeflateBuffer, 0, mDeflateBuffer.length);
+            encode(mDeflateBuffer, 0, count);
+        }
+        writeIntLE(mTrailer, 0, (int) crc);
+        writeIntLE(mTrailer, 4, length);
+        encode(mTrailer, 0, mTrailer.length);
+    }
+
+    /**
+     * 二进制模式下直接输出，否则进行 Base64 编码，不足 3 个字节的部分留到下一次
+     */
+    private void encode(byte[] bytes, int offset, int length) throws IOException {
+        if (mBinary) {
+            if (length > mOutBuffer.length - mOutLength) {
+                flushOut();
+            }
+            if (length > mOutBuffer.length) {
+                mOut.write(bytes, offset, length);
+            } else {
+                System.arraycopy(bytes, offset, mOutBuffer, mOutLength, length);
+                mOutLength += length;
+            }
+            return;
+        }
+        int i = offset;
+        final int end = offset + length;
+        if (mCarryLength > 0) {
+            while (mCarryLength < 3 && i < end) {
+                mCarry[mCarryLength++] = bytes[i++];
+            }
+            if (mCarryLength < 3) {
+                return;
+            }
+            emitQuantum(mCarry[0], mCarry[1], mCarry[2]);
+            mCarryLength = 0;
+        }
+        while (end - i >= 3) {
+            emitQuantum(bytes[i], bytes[i + 1], bytes[i + 2]);
+            i += 3;
+        }
+        while (i < end) {
+            mCarry[mCarryLength++] = bytes[i++];
+        }
+    }
+
+    private void emitQuantum(byte b0, byte b1, byte b2) throws IOException {
+        int value = ((b0 & 0xff) << 16) | ((b1 & 0xff) << 8) | (b2 & 0xff);
+        emitChar(BASE64[(value >>> 18) & 0x3f]);
+        emitChar(BASE64[(value >>> 12) & 0x3f]);
+        emitChar(BASE64[(value >>> 6) & 0x3f]);
+        emitChar(BASE64[value & 0x3f]);
+    }
+
+    private void finishBase64() throws IOException {
+        if (mCarryLength == 0) {
+            return;
+        }
+        int value = (mCarry[0] & 0xff) << 16;
+        if (mCarryLength == 2) {
+            value |= (mCarry[1] & 0xff) << 8;
+        }
+        emitChar(BASE64[(value >>> 18) & 0x3f]);
+        emitChar(BASE64[(value >>> 12) & 0x3f]);
+        emitChar(mCarryLength == 2 ? BASE64[(value >>> 6) & 0x3f] : '=');
+        emitChar('=');
+        mCarryLength = 0;
+    }
+
+    /**
+     * 输出一个 Base64 字符：累加 hashCode，并按 Uri.encode 的规则进行 URL 编码
+     */
+    private void emitChar(char c) throws IOException {
+        mHash = 31 * mHash + c;
+        if (mOutLength + 3 > mOutBuffer.length) {
+            flushOut();
+        }
+        if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+            mOutBuffer[mOutLength++] = (byte) c;
+        } else {
+            mOutBuffer[mOutLength++] = '%';
+            mOutBuffer[mOutLength++] = HEX[(c >> 4) & 0xf];
+            mOutBuffer[mOutLength++] = HEX[c & 0xf];
+        }
+    }
+
+    private void writeAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            if (mOutLength == mOutBuffer.length) {
+                flushOut();
+            }
+            mOutBuffer[mOutLength++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void flushOut() throws IOException {
+        if (mOutLength > 0) {
+            mOut.write(mOutBuffer, 0, mOutLength);
+            mOutLength = 0;
+        }
+    }
+
+    private static void writeIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
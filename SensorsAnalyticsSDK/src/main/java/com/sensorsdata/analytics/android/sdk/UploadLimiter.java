@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 自适应的上报并发数限制：从 1 个请求开始，连续成功的请求数达到当前并发数时加 1，
+ * 请求失败时减半，上限由 {@link #setMaxConcurrency(int)} 设置。
+ */
+final class UploadLimiter {
+    static final int DEFAULT_MAX_CONCURRENCY = 2;
+    static final int MAX_CONCURRENCY = 8;
+
+    private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int mLimit = 1;
+    private int mInFlight = 0;
+    private int mSuccessCount = 0;
+
+    synchronized void setMaxConcurrency(int maxConcurrency) {
+        mMaxConcurrency = Math.max(1, Math.min(maxConcurrency, MAX_CONCURRENCY));
+        if (mLimit > mMaxConcurrency) {
+            mLimit = mMaxConcurrency;
+        }
+        notifyAll();
+    }
+
+    /**
+     * 等待直到可以发出一个新的请求
+     */
+    synchronized void acquire() {
+        boolean interrupted = false;
+        while (mInFlight >= mLimit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mInFlight++;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 请求完成
+     *
+     * @param success 请求是否成功
+     */
+    synchronized void release(boolean success) {
+        mInFlight--;
+        if (success) {
+            if (++mSuccessCount >= mLimit && mLimit < mMaxConcurrency) {
+                mLimit++;
+                mSuccessCount = 0;
+            }
+        } else {
+            mLimit = Math.max(1, mLimit / 2);
+            mSuccessCount = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * 取消已经申请到但没有发出的请求，不影响并发数
+     */
+    synchronized void cancel() {
+        mInFlight--;
+        notifyAll();
+    }
+
+    /**
+     * 等待所有请求完成
+     */
+    synchronized void awaitIdle() {
+        boolean interrupted = false;
+        while (mInFlight > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return 当前允许的并发请求数
+     */
+    synchronized int getLimit() {
+        return mLimit;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+/**
+ * 上报失败后的重试调度和熔断。
+ * 每次失败后按指数退避加随机抖动计算下一次允许上报的时间，退避期间由事件入库触发的 flush 会被跳过；
+ * 服务端连续返回 5xx、403、404 达到阈值后熔断，熔断期间不再发起请求，到期后只发送一批数据试探，
+ * 成功则恢复，失败则以更长的时间再次熔断。状态保存在 SharedPreferences 中，进程重启后继续生效。
+ */
+final class UploadRetryScheduler {
+    private static final String TAG = "SA.UploadRetryScheduler";
+    static final String PREFERENCE_NAME = "com.sensorsdata.analytics.android.sdk.UploadRetry";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_CIRCUIT_FAILURES = "circuit_failures";
+    private static final String KEY_OPEN_COUNT = "open_count";
+    private static final String KEY_LAST_FAILURE_TIME = "last_failure_time";
+    static final String KEY_NEXT_RETRY_TIME = "next_retry_time";
+
+    /* 退避时间的初始值和上限，单位毫秒 */
+    static final long BASE_BACKOFF_MS = 5 * 1000;
+    static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+    /* 连续多少次 5xx、403、404 后熔断 */
+    static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    /* 熔断时间的初始值和上限，单位毫秒 */
+    static final long BASE_OPEN_MS = 5 * 60 * 1000;
+    static final long MAX_OPEN_MS = 60 * 60 * 1000;
+
+    private final SharedPreferences mPreferences;
+    private final Random mRandom = new Random();
+    /* 连续失败次数 */
+    private int mFailures;
+    /* 连续的 5xx、403、404 次数 */
+    private int mCircuitFailures;
+    /* 连续熔断次数，大于 0 表示处于熔断或试探状态 */
+    private int mOpenCount;
+    private long mLastFailureTime;
+    private long mNextRetryTime;
+
+    UploadRetryScheduler(Context context) {
+        SharedPreferences preferences = null;
+        try {
+            preferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+            mFailures = preferences.getInt(KEY_FAILURES, 0);
+            mCircuitFailures = preferences.getInt(KEY_CIRCUIT_FAILURES, 0);
+            mOpenCount = preferences.getInt(KEY_OPEN_COUNT, 0);
+            mLastFailureTime = preferences.getLong(KEY_LAST_FAILURE_TIME, 0);
+            mNextRetryTime = preferences.getLong(KEY_NEXT_RETRY_TIME, 0);
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        mPreferences = preferences;
+    }
+
+    /**
+     * 是否允许发起上报
+     *
+     * @param explicit 是否为调用 flush() 主动触发，主动触发时忽略退避时间，但仍然遵守熔断
+     * @return true 表示允许
+     */
+    synchronized boolean isFlushAllowed(boolean explicit) {
+        if (getRetryDelay() <= 0) {
+            return true;
+        }
+        return explicit && mOpenCount == 0;
+    }
+
+    /**
+     * @return 熔断到期后的试探阶段，只发送一批数据
+     */
+    synchronized boolean isProbing() {
+        return mOpenCount > 0 && getRetryDelay() <= 0;
+    }
+
+    /**
+     * @return 距离下一次允许上报的时间，单位毫秒，不需要等待时返回 0
+     */
+    synchronized long getRetryDelay() {
+        if (mNextRetryTime <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now < mLastFailureTime) {
+            // 系统时间被调回，不再等待
+            mNextRetryTime = now;
+            return 0;
+        }
+        return Math.max(0, mNextRetryTime - now);
+    }
+
+    /**
+     * 上报成功，清除退避和熔断状态
+     */
+    synchronized void onSuccess() {
+        if (mFailures == 0 && mCircuitFailures == 0 && mOpenCount == 0 && mNextRetryTime == 0) {
+            return;
+        }
+        mFailures = 0;
+        mCircuitFailures = 0;
+        mOpenCount = 0;
+        mLastFailureTime = 0;
+        mNextRetryTime = 0;
+        save();
+    }
+
+    /**
+     * 上报失败
+     *
+     * @param circuitFailure 是否为服务端返回的 5xx、403、404
+     */
+    synchronized void onFailure(boolean circuitFailure) {
+        final long now = System.currentTimeMillis();
+        mFailures++;
+        mCircuitFailures = circuitFailure ? mCircuitFailures + 1 : 0;
+        mLastFailureTime = now;
+        if (mOpenCount > 0 || mCircuitFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+            // 熔断，或者试探失败后再次熔断
+            mOpenCount++;
+            mNextRetryTime = now + jitter(exponential(BASE_OPEN_MS, mOpenCount, MAX_OPEN_MS));
+            SALog.i(TAG, "Circuit opened, next retry in " + (mNextRetryTime - now) + " ms");
+        } else {
+            mNextRetryTime = now + jitter(exponential(BASE_BACKOFF_MS, mFailures, MAX_BACKOFF_MS));
+        }
+        save();
+    }
+
+    /**
+     * 只有服务端明确表示不可用或者地址错误的状态码计入熔断，没有跟随的重定向等其他不删数据的情况只做退避
+     *
+     * @param httpCode 状态码
+     * @return 是否为 5xx、403、404
+     */
+    static boolean isCircuitFailure(int httpCode) {
+        return httpCode == HttpURLConnection.HTTP_NOT_FOUND || httpCode == HttpURLConnection.HTTP_FORBIDDEN
+                || (httpCode >= HttpURLConnection.HTTP_INTERNAL_ERROR && httpCode < 600);
+    }
+
+    private static long exponential(long base, int attempts, long max) {
+        int shift = Math.min(Math.max(0, attempts - 1), 20);
+        return Math.min(max, base << shift);
+    }
+
+    /**
+     * 在 [delay / 2, delay] 之间随机取值，避免大量客户端在同一时间重试
+     */
+    private long jitter(long delay) {
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private void save() {
+        if (mPreferences == null) {
+            return;
+        }
+        try {
+            mPreferences.edit()
+                    .putInt(KEY_FAILURES, mFailures)
+                    .putInt(KEY_CIRCUIT_FAILURES, mCircuitFailures)
+                    .putInt(KEY_OPEN_COUNT, mOpenCount)
+                    .putLong(KEY_LAST_FAILURE_TIME, mLastFailureTime)
+                    .putLong(KEY_NEXT_RETRY_TIME, mNextRetryTime)
+                    .apply();
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+}
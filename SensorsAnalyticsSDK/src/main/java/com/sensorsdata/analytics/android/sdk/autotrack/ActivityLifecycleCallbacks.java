@@ -52,7 +52,7 @@ public class ActivityLifecycleCallbacks implements SensorsDataActivityLifecycleC
 
     public ActivityLifecycleCallbacks(SensorsDataAPI instance) {
         this.mSensorsDataInstance = instance;
-
+        initHandler();
     }
 
     @Override
@@ -62,7 +62,7 @@ public class ActivityLifecycleCallbacks implements SensorsDataActivityLifecycleC
 
     @Override
     public void onActivityStarted(Activity activity) {
-
+        addActivity(activity);
     }
 
     @Override
@@ -92,8 +92,9 @@ public class ActivityLifecycleCallbacks implements SensorsDataActivityLifecycleC
     @Override
     public void onActivityStopped(Activity activity) {
         if (hasActivity(activity)) {
-            sendActivityHandleMessage(MESSAGE_CODE_STOP);
             removeActivity(activity);
+            // 没有处于前台的 Activity 时表示 App 退到后台
+            sendActivityHandleMessage(MESSAGE_CODE_STOP, hashSet.isEmpty());
         }
     }
 
@@ -116,6 +117,10 @@ public class ActivityLifecycleCallbacks implements SensorsDataActivityLifecycleC
                 @Override
                 public void handleMessage(Message msg) {
                     int code = msg.what;
+                    if (code == MESSAGE_CODE_STOP && msg.arg1 == 1) {
+                        // App 退到后台时发送缓存的数据
+                        mSensorsDataInstance.flush();
+                    }
                 }
             };
         } catch (Exception ex) {
@@ -127,9 +132,14 @@ public class ActivityLifecycleCallbacks implements SensorsDataActivityLifecycleC
      * 发送处理 Activity 生命周期的 Message
      *
      * @param type 消息类型
+     * @param background 是否已经退到后台
      */
-    private void sendActivityHandleMessage(int type) {
+    private void sendActivityHandleMessage(int type, boolean background) {
+        if (mHandler == null) {
+            return;
+        }
         Message message = mHandler.obtainMessage();
+        message.arg1 = background ? 1 : 0;
         Bundle bundle = new Bundle();
         bundle.putLong(TIME, System.currentTimeMillis());
         bundle.putLong(ELAPSE_TIME, SystemClock.elapsedRealtime());
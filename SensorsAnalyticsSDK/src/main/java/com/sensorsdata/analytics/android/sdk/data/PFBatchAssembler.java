@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把存储层读出的事件拼接成一批上报数据，各存储引擎共用。
+ * 每条事件去掉末尾的 "}" 后追加同一批次的 _flush_time；引用了静态属性的事件，
+ * 默认把静态属性展开到 properties 中，信封模式下只追加 "_common" 引用，静态属性在批次末尾写一次。
+ */
+final class PFBatchAssembler {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] ENVELOPE_START = "{\"data_list\":[".getBytes(UTF_8);
+    private static final byte[] ENVELOPE_COMMON = "],\"common\":{".getBytes(UTF_8);
+    /* 信封中每个静态属性版本除内容外的长度上限："id":{} 加逗号 */
+    private static final int COMMON_ENTRY_OVERHEAD = 24;
+
+    private final PFEventBatch mBatch;
+    private final int mMaxBytes;
+    private final boolean mEnvelope;
+    private final byte[] mFlushTime;
+    private List<Long> mCommonIds;
+    private List<byte[]> mCommonBlocks;
+    private int mCommonBytes;
+    /* 同一批中的事件基本引用同一个版本的静态属性，缓存最近一个版本的 "_common" 引用，避免逐条拼接字符串 */
+    private long mCommonRefId = -1;
+    private byte[] mCommonRef;
+    private boolean mFirst = true;
+
+    /**
+     * @param batch 用于保存结果，调用方需要先清空
+     * @param maxBytes 字节数上限，至少会写入一条事件
+     * @param envelope 是否使用信封格式
+     */
+    PFBatchAssembler(PFEventBatch batch, int maxBytes, boolean envelope) {
+        this.mBatch = batch;
+        this.mMaxBytes = maxBytes;
+        this.mEnvelope = envelope;
+        // 同一批数据使用相同的 _flush_time
+        this.mFlushTime = (",\"_flush_time\":" + System.currentTimeMillis() + "}").getBytes(UTF_8);
+        if (envelope) {
+            mCommonIds = new ArrayList<>(2);
+            mCommonBlocks = new ArrayList<>(2);
+            batch.write(ENVELOPE_START, 0, ENVELOPE_START.length);
+        } else {
+            batch.write('[');
+        }
+    }
+
+    /**
+     * 追加一条事件
+     *
+     * @param data 事件 JSON，UTF-8 编码，以 "}" 结尾
+     * @param offset 起始位置
+     * @param length 长度，大于 1
+     * @param commonId 引用的静态属性版本号，没有引用时为 0
+     * @param commonBlock 静态属性内容，没有引用或者找不到该版本时为 null
+     * @return 超出字节上限时返回 false，这一条没有写入，需要留给下一批
+     */
+    boolean append(byte[] data, int offset, int length, long commonId, byte[] commonBlock) {
+        byte[] commonRef = null;
+        int extra = 0;
+        if (commonBlock != null) {
+            if (mEnvelope) {
+                commonRef = getCommonRef(commonId);
+                extra = commonRef.length + (hasCommon(commonId) ? 0 : commonBlock.length + COMMON_ENTRY_OVERHEAD);
+            } else {
+                extra = commonBlock.length + 1;
+            }
+        }
+        if (!mFirst && mBatch.size() + mCommonBytes + length + mFlushTime.length + extra + 1 > mMaxBytes) {
+            return false;
+        }
+        write(data, offset, length, commonId, commonBlock, commonRef);
+        return true;
+    }
+
+    /**
+     * 是否还能写入指定长度的数据，用于判断压缩块中的所有事件能否放入本批，块不能拆分到两批中
+     *
+     * @param length 事件数据的总长度
+     * @param count 事件条数
+     * @return 本批还没有数据或者不会超出字节上限时返回 true
+     */
+    boolean canAppend(int length, int count) {
+        return mFirst || mBatch.size() + mCommonBytes + length + (long) count * (mFlushTime.length + 1) <= mMaxBytes;
+    }
+
+    /**
+     * 追加一条事件，不检查字节上限，调用方需要先通过 {@link #canAppend(int, int)} 判断
+     */
+    void appendUnchecked(byte[] data, int offset, int length, long commonId, byte[] commonBlock) {
+        byte[] commonRef = commonBlock != null && mEnvelope ? getCommonRef(commonId) : null;
+        write(data, offset, length, commonId, commonBlock, commonRef);
+    }
+
+    private void write(byte[] data, int offset, int length, long commonId, byte[] commonBlock, byte[] commonRef) {
+        if (!mFirst) {
+            mBatch.write(',');
+        }
+        if (commonBlock == null) {
+            mBatch.write(data, offset, length - 1);
+        } else if (mEnvelope) {
+            mBatch.write(data, offset, length - 1);
+            mBatch.write(commonRef, 0, commonRef.length);
+            if (!hasCommon(commonId)) {
+                mCommonIds.add(commonId);
+                mCommonBlocks.add(commonBlock);
+                mCommonBytes += commonBlock.length + COMMON_ENTRY_OVERHEAD;
+            }
+        } else {
+            // 事件以 properties 结尾，去掉末尾的 "}}"，把静态属性追加到 properties 中
+            mBatch.write(data, offset, length - 2);
+            if (data[offset + length - 3] != '{') {
+                mBatch.write(',');
+            }
+            mBatch.write(commonBlock, 0, commonBlock.length);
+            mBatch.write('}');
+        }
+        mBatch.write(mFlushTime, 0, mFlushTime.length);
+        mBatch.onEventAppended();
+        mFirst = false;
+    }
+
+    private byte[] getCommonRef(long commonId) {
+        if (commonId != mCommonRefId) {
+            mCommonRef = (",\"_common\":\"" + commonId + "\"").getBytes(UTF_8);
+            mCommonRefId = commonId;
+        }
+        return mCommonRef;
+    }
+
+    private boolean hasCommon(long commonId) {
+        final int size = mCommonIds.size();
+        // 先比较最近加入的版本，通常一次就能命中
+        for (int i = size - 1; i >= 0; i--) {
+            if (mCommonIds.get(i) == commonId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 写入批次的结尾，信封模式下同时写入本批引用到的静态属性
+     */
+    void finish() {
+        if (mEnvelope) {
+            mBatch.write(ENVELOPE_COMMON, 0, ENVELOPE_COMMON.length);
+            for (int i = 0; i < mCommonIds.size(); i++) {
+                byte[] name = ((i > 0 ? ",\"" : "\"") + mCommonIds.get(i) + "\":{").getBytes(UTF_8);
+                byte[] commonBlock = mCommonBlocks.get(i);
+                mBatch.write(name, 0, name.length);
+                mBatch.write(commonBlock, 0, commonBlock.length);
+                mBatch.write('}');
+            }
+            mBatch.write('}');
+            mBatch.write('}');
+        } else {
+            mBatch.write(']');
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import com.sensorsdata.analytics.android.sdk.SALog;
+
+/**
+ * 事件表和静态属性表的访问入口。
+ * 与 {@link PFDataContentProvider} 处于同一进程时直接操作数据库，省去 Uri 匹配、ContentValues 跨进程传递和 Cursor 包装的开销；
+ * 其他进程仍然通过 ContentResolver 访问。
+ */
+abstract class PFDataAccessor {
+
+    abstract Uri insert(Uri uri, ContentValues values);
+
+    abstract int bulkInsert(Uri uri, ContentValues[] values);
+
+    abstract Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder);
+
+    abstract int delete(Uri uri, String selection, String[] selectionArgs);
+
+    /**
+     * 把 _id 在 [firstId, lastId] 范围内的单条事件合并为一个压缩块
+     *
+     * @return 合并的行数，不支持合并时返回 0
+     */
+    abstract int compact(Uri uri, ContentValues block, long firstId, long lastId);
+
+    /**
+     * @return 是否通过 ContentResolver 跨进程访问，跨进程时其他进程的写入和删除不会反映到本进程的计数中
+     */
+    abstract boolean isCrossProcess();
+
+    /**
+     * 根据当前进程选择访问方式
+     *
+     * @param context Context
+     * @param uri 事件表的 Uri
+     * @return PFDataAccessor
+     */
+    static PFDataAccessor create(Context context, Uri uri) {
+        ContentProviderClient client = null;
+        try {
+            client = context.getContentResolver().acquireContentProviderClient(uri);
+            if (client != null) {
+                ContentProvider provider = client.getLocalContentProvider();
+                if (provider instanceof PFDataContentProvider) {
+                    PFProviderHelper providerHelper = ((PFDataContentProvider) provider).getProviderHelper();
+                    if (providerHelper != null) {
+                        return new DirectAccessor(providerHelper);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        } finally {
+            if (client != null) {
+                releaseClient(client);
+            }
+        }
+        return new ResolverAccessor(context);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void releaseClient(ContentProviderClient client) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            client.close();
+        } else {
+            client.release();
+        }
+    }
+
+    /**
+     * 与 ContentProvider 同进程时，直接使用 PFProviderHelper 操作数据库
+     */
+    static class DirectAccessor extends PFDataAccessor {
+        private final PFProviderHelper mProviderHelper;
+
+        DirectAccessor(PFProviderHelper providerHelper) {
+            this.mProviderHelper = providerHelper;
+        }
+
+        @Override
+        Uri insert(Uri uri, ContentValues values) {
+            if (isCommonProperties(uri)) {
+                return mProviderHelper.insertCommonProperties(uri, values);
+            }
+            return mProviderHelper.insertEvent(uri, values);
+        }
+
+        @Override
+        int bulkInsert(Uri uri, ContentValues[] values) {
+            return mProviderHelper.bulkInsertEvents(uri, values);
+        }
+
+        @Override
+        Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            return mProviderHelper.queryByTable(isCommonProperties(uri) ? PFDbParams.TABLE_COMMON_PROPERTIES : PFDbParams.TABLE_EVENTS,
+                    projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        int delete(Uri uri, String selection, String[] selectionArgs) {
+            if (isCommonProperties(uri)) {
+                return mProviderHelper.deleteCommonProperties(selection, selectionArgs);
+            }
+            return mProviderHelper.deleteEvents(selection, selectionArgs);
+        }
+
+        @Override
+        int compact(Uri uri, ContentValues block, long firstId, long lastId) {
+            return mProviderHelper.compactEvents(block, firstId, lastId);
+        }
+
+        @Override
+        boolean isCrossProcess() {
+            return false;
+        }
+
+        private static boolean isCommonProperties(Uri uri) {
+            return PFDbParams.getInstance().getCommonPropertiesUri().equals(uri);
+        }
+    }
+
+    /**
+     * 跨进程时通过 ContentResolver 访问
+     */
+    static class ResolverAccessor extends PFDataAccessor {
+        private final ContentResolver mContentResolver;
+
+        ResolverAccessor(Context context) {
+            this.mContentResolver = context.getContentResolver();
+        }
+
+        @Override
+        Uri insert(Uri uri, ContentValues values) {
+            return mContentResolver.insert(uri, values);
+        }
+
+        @Override
+        int bulkInsert(Uri uri, ContentValues[] values) {
+            return mContentResolver.bulkInsert(uri, values);
+        }
+
+        @Override
+        Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            return mContentResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mContentResolver.delete(uri, selection, selectionArgs);
+        }
+
+        @Override
+        int compact(Uri uri, ContentValues block, long firstId, long lastId) {
+            // 只在持有 ContentProvider 的进程中合并，避免合并其他进程已经读出、正在上报的数据
+            return 0;
+        }
+
+        @Override
+        boolean isCrossProcess() {
+            return true;
+        }
+    }
+}
@@ -22,8 +22,6 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import com.sensorsdata.analytics.android.sdk.SALog;
 
@@ -61,6 +59,8 @@ public class PFDataContentProvider extends ContentProvider {
             int code = uriMatcher.match(uri);
             if (PFProviderHelper.URI_CODE.EVENTS == code) {
                 return mProviderHelper.deleteEvents(selection, selectionArgs);
+            } else if (PFProviderHelper.URI_CODE.COMMON_PROPERTIES == code) {
+                return mProviderHelper.deleteCommonProperties(selection, selectionArgs);
             }
             //目前逻辑不处理其他 Code
         } catch (Exception e) {
@@ -84,6 +84,8 @@ public class PFDataContentProvider extends ContentProvider {
             int code = uriMatcher.match(uri);
             if (code == PFProviderHelper.URI_CODE.EVENTS) {
                 return mProviderHelper.insertEvent(uri, values);
+            } else if (code == PFProviderHelper.URI_CODE.COMMON_PROPERTIES) {
+                return mProviderHelper.insertCommonProperties(uri, values);
             }
             return uri;
         } catch (Exception e) {
@@ -94,27 +96,18 @@ public class PFDataContentProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        int numValues;
-        SQLiteDatabase database = null;
+        if (values == null || values.length == 0) {
+            return 0;
+        }
         try {
-            try {
-                database = dbHelper.getWritableDatabase();
-            } catch (SQLiteException e) {
-                SALog.printStackTrace(e);
-                return 0;
-            }
-            database.beginTransaction();
-            numValues = values.length;
-            for (int i = 0; i < numValues; i++) {
-                insert(uri, values[i]);
-            }
-            database.setTransactionSuccessful();
-        } finally {
-            if (database != null) {
-                database.endTransaction();
+            int code = uriMatcher.match(uri);
+            if (code == PFProviderHelper.URI_CODE.EVENTS) {
+                return mProviderHelper.bulkInsertEvents(uri, values);
             }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
         }
-        return numValues;
+        return 0;
     }
 
     @Override
@@ -124,6 +117,8 @@ public class PFDataContentProvider extends ContentProvider {
             int code = uriMatcher.match(uri);
             if (code == PFProviderHelper.URI_CODE.EVENTS) {
                 cursor = mProviderHelper.queryByTable(PFDbParams.TABLE_EVENTS, projection, selection, selectionArgs, sortOrder);
+            } else if (code == PFProviderHelper.URI_CODE.COMMON_PROPERTIES) {
+                cursor = mProviderHelper.queryByTable(PFDbParams.TABLE_COMMON_PROPERTIES, projection, selection, selectionArgs, sortOrder);
             }
         } catch (Exception e) {
             SALog.printStackTrace(e);
@@ -131,6 +126,15 @@ public class PFDataContentProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * 同进程访问时直接使用的数据库操作对象
+     *
+     * @return PFProviderHelper
+     */
+    PFProviderHelper getProviderHelper() {
+        return mProviderHelper;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         return 0;
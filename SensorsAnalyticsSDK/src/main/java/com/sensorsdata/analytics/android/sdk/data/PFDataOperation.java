@@ -17,58 +17,308 @@
 
 package com.sensorsdata.analytics.android.sdk.data;
 
-import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.sensorsdata.analytics.android.sdk.SALog;
 
-import org.json.JSONObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import java.io.File;
-
-abstract class PFDataOperation {
+/**
+ * 基于 SQLite 的事件存储引擎，通过 ContentProvider 访问，支持多进程
+ */
+abstract class PFDataOperation implements PFEventStore {
     String TAG = "PFEventDataOperation";
-    ContentResolver contentResolver;
-    private final File mDatabaseFile;
+    /* 压缩块按其中的事件条数统计，字节数为实际占用的存储空间，行数用于核对删除结果 */
+    private static final String[] DEPTH_PROJECTION = new String[]{"SUM(IFNULL(" + PFDbParams.KEY_EVENT_COUNT + ", 1))", "SUM(LENGTH(" + PFDbParams.KEY_DATA + "))", "COUNT(*)"};
+    /* 淘汰时每次最多读取的行数，按字节数找到需要删除的最大 _id 后一次删除 */
+    private static final int EVICT_CHUNK_ROWS = 1000;
+    private static final String[] EVICT_PROJECTION = new String[]{"_id", "IFNULL(" + PFDbParams.KEY_EVENT_COUNT + ", 1)", "LENGTH(" + PFDbParams.KEY_DATA + ")"};
+    private static final String SELECTION_EVICT_QUERY = PFDbParams.KEY_PRIORITY + " = ? AND _id > ?";
+    private static final String SELECTION_EVICT_DELETE = PFDbParams.KEY_PRIORITY + " = ? AND _id > ? AND _id <= ?";
+    PFDataAccessor dataAccessor;
+    /* 跨进程访问时其他进程的写入和删除不会反映到本进程的计数中，超过这个时间后重新统计 */
+    private static final long DEPTH_RESEED_INTERVAL_MS = 60 * 1000;
+    private final PFQueueDepth mQueueDepth = new PFQueueDepth();
+    /* 写入、确认删除、淘汰、合并时，统计受影响的数据、修改数据库、更新计数三步在这个锁内完成，
+     * 同一进程内并发删除同一段数据时不会重复扣减 */
+    final Object mDepthLock = new Object();
+    private volatile boolean mQueueDepthSeeded = false;
+    private volatile long mQueueDepthSeedTime = 0;
+    private static final String[] COMMON_PROJECTION = new String[]{PFDbParams.KEY_DATA};
+    private final Uri mEventUri;
+    private final Uri mCommonPropertiesUri;
+    /* 静态属性版本号 -> 以逗号分隔的 "key":value 片段，数量很少，读取时按需加载 */
+    private final Map<Long, byte[]> mCommonBlocks = new ConcurrentHashMap<>();
+    /* 为 true 时读取的批次使用信封格式，每个版本的静态属性只发送一次 */
+    private volatile boolean mCommonEnvelope = false;
 
     PFDataOperation(Context context) {
-        contentResolver = context.getContentResolver();
-        mDatabaseFile = context.getDatabasePath(PFDbParams.DATABASE_NAME);
+        mEventUri = PFDbParams.getInstance().getEventUri();
+        dataAccessor = PFDataAccessor.create(context, mEventUri);
+        mCommonPropertiesUri = PFDbParams.getInstance().getCommonPropertiesUri();
     }
 
     /**
-     * 保存数据
+     * 批量保存数据，所有数据在同一个事务中写入
      */
-    abstract int insertData(Uri uri, JSONObject jsonObject);
+    abstract int insertData(Uri uri, ContentValues[] values);
 
     /**
-     * 查询数据
+     * 查询 _id 大于 afterId 的数据，按 _id 顺序写入 batch
+     *
+     * @param uri Uri
+     * @param afterId 从该 _id 之后开始读取，从头读取时传 -1
+     * @param limit 条数限制
+     * @param maxBytes 字节数上限，至少会读取一条数据
+     * @param batch 用于保存结果，会先被清空
+     * @return 读到数据时返回 true
      */
-    abstract String[] queryData(Uri uri, int limit);
+    abstract boolean queryData(Uri uri, long afterId, int limit, int maxBytes, PFEventBatch batch);
+
+    @Override
+    public int insert(ContentValues[] records) {
+        return insertData(mEventUri, records);
+    }
+
+    @Override
+    public boolean peekBatch(long afterId, int limit, int maxBytes, PFEventBatch batch) {
+        return queryData(mEventUri, afterId, limit, maxBytes, batch);
+    }
+
+    @Override
+    public void ack(long firstId, long lastId) {
+        deleteDataRange(mEventUri, firstId, lastId);
+    }
+
+    @Override
+    public PFQueueDepth count() {
+        return getQueueDepth(mEventUri);
+    }
+
+    @Override
+    public long capacity() {
+        return mMaxCacheSize;
+    }
+
+    @Override
+    public int evict(long targetBytes) {
+        // 计数可能没有包含其他进程的写入和删除，淘汰前按数据库重新统计，不根据未经核对的计数删除数据
+        final PFQueueDepth queueDepth = reseedQueueDepth(mEventUri);
+        int evicted = 0;
+        for (int priority = PFDbParams.PRIORITY_LOW; priority <= PFDbParams.PRIORITY_CRITICAL; priority++) {
+            final String priorityArg = String.valueOf(priority);
+            long afterId = -1;
+            while (queueDepth.getBytes() > targetBytes) {
+                final long lastId;
+                synchronized (mDepthLock) {
+                    final long excess = queueDepth.getBytes() - targetBytes;
+                    long maxId = -1;
+                    int rows = 0;
+                    int count = 0;
+                    long bytes = 0;
+                    Cursor cursor = null;
+                    try {
+                        cursor = dataAccessor.query(mEventUri, EVICT_PROJECTION, SELECTION_EVICT_QUERY,
+                                new String[]{priorityArg, String.valueOf(afterId)}, "_id ASC LIMIT " + EVICT_CHUNK_ROWS);
+                        while (cursor != null && bytes < excess && cursor.moveToNext()) {
+                            maxId = cursor.getLong(0);
+                            rows++;
+                            count += cursor.getInt(1);
+                            bytes += cursor.getLong(2);
+                        }
+                    } catch (Exception ex) {
+                        SALog.printStackTrace(ex);
+                    } finally {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    }
+                    if (maxId < 0) {
+                        // 这个优先级已经没有数据，继续淘汰更高优先级的数据
+                        break;
+                    }
+                    int deleted;
+                    try {
+                        deleted = dataAccessor.delete(mEventUri, SELECTION_EVICT_DELETE,
+                                new String[]{priorityArg, String.valueOf(afterId), String.valueOf(maxId)});
+                    } catch (Exception ex) {
+                        SALog.printStackTrace(ex);
+                        return evicted;
+                    }
+                    onRowsDeleted(mEventUri, deleted, rows, count, bytes);
+                    evicted += count;
+                    lastId = maxId;
+                }
+                afterId = lastId;
+            }
+        }
+        if (evicted > 0) {
+            SALog.i(TAG, "There is not enough space left to store events, so deleted " + evicted + " events");
+        }
+        return evicted;
+    }
+
+    @Override
+    public void clear() {
+        deleteData(mEventUri, PFDbParams.DB_DELETE_ALL);
+    }
+
+    @Override
+    public void setCommonEnvelope(boolean enabled) {
+        mCommonEnvelope = enabled;
+    }
+
+    boolean isCommonEnvelope() {
+        return mCommonEnvelope;
+    }
+
+    @Override
+    public void saveCommonProperties(long id, byte[] block) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put("_id", id);
+            values.put(PFDbParams.KEY_DATA, block);
+            values.put(PFDbParams.KEY_CREATED_AT, System.currentTimeMillis());
+            dataAccessor.insert(mCommonPropertiesUri, values);
+            mCommonBlocks.put(id, block);
+            dataAccessor.delete(mCommonPropertiesUri, "_id != ? AND _id NOT IN (SELECT " + PFDbParams.KEY_COMMON_ID + " FROM "
+                    + PFDbParams.TABLE_EVENTS + " WHERE " + PFDbParams.KEY_COMMON_ID + " IS NOT NULL)", new String[]{String.valueOf(id)});
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        }
+    }
+
+    /**
+     * 获取某个版本的静态属性
+     *
+     * @param id 版本号
+     * @return 以逗号分隔的 "key":value 片段，不存在时返回 null
+     */
+    byte[] getCommonBlock(long id) {
+        byte[] block = mCommonBlocks.get(id);
+        if (block != null) {
+            return block;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = dataAccessor.query(mCommonPropertiesUri, COMMON_PROJECTION, "_id = ?", new String[]{String.valueOf(id)}, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                block = cursor.getBlob(0);
+                if (block != null) {
+                    mCommonBlocks.put(id, block);
+                }
+            }
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return block;
+    }
 
     /**
-     * 查询数据条数
+     * 获取数据库中缓存事件的条数和字节数，首次调用时通过聚合查询初始化；
+     * 计数失效或者跨进程访问超过 {@link #DEPTH_RESEED_INTERVAL_MS} 后重新统计
      *
      * @param uri Uri
-     * @return 条数
+     * @return PFQueueDepth
      */
-    int queryDataCount(Uri uri) {
-        return queryDataCount(uri, null, null, null, null);
+    PFQueueDepth getQueueDepth(Uri uri) {
+        if (isQueueDepthStale()) {
+            synchronized (mDepthLock) {
+                if (isQueueDepthStale()) {
+                    reseedQueueDepth(uri);
+                }
+            }
+        }
+        return mQueueDepth;
     }
 
     /**
-     * 查询数据条数
+     * 立即按数据库重新统计事件条数和字节数
+     *
+     * @param uri Uri
+     * @return PFQueueDepth
      */
-    int queryDataCount(Uri uri, String[] projection, String selection,
-                       String[] selectionArgs, String sortOrder) {
+    PFQueueDepth reseedQueueDepth(Uri uri) {
+        synchronized (mDepthLock) {
+            long[] depth = queryDepth(uri, null, null);
+            mQueueDepth.reset((int) depth[0], depth[1]);
+            mQueueDepthSeedTime = SystemClock.elapsedRealtime();
+            mQueueDepthSeeded = true;
+        }
+        return mQueueDepth;
+    }
+
+    /**
+     * 删除后按实际删除的行数更新计数：与删除前统计的行数不一致时，说明有其他进程同时修改了这些数据，重新统计
+     *
+     * @param deleted 实际删除的行数
+     * @param rows 删除前统计的行数
+     * @param count 删除前统计的事件条数
+     * @param bytes 删除前统计的字节数
+     */
+    private void onRowsDeleted(Uri uri, int deleted, long rows, long count, long bytes) {
+        if (deleted == rows) {
+            mQueueDepth.onDeleted((int) count, bytes);
+        } else {
+            reseedQueueDepth(uri);
+        }
+    }
+
+    private boolean isQueueDepthStale() {
+        return !mQueueDepthSeeded || (dataAccessor.isCrossProcess()
+                && SystemClock.elapsedRealtime() - mQueueDepthSeedTime > DEPTH_RESEED_INTERVAL_MS);
+    }
+
+    /**
+     * 内存中的计数与数据库不一致时调用，下次使用时重新统计
+     */
+    void invalidateQueueDepth() {
+        mQueueDepthSeeded = false;
+    }
+
+    /**
+     * 解析写入结果中新行的 _id
+     *
+     * @param uri insert 返回的 Uri
+     * @return 写入失败时返回 -1
+     */
+    static long insertedId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        try {
+            return ContentUris.parseId(uri);
+        } catch (Exception e) {
+            // 没有带 _id，说明没有写入
+            return -1;
+        }
+    }
+
+    /**
+     * 通过聚合查询统计满足条件的事件条数和字节数，不会把数据读取到 CursorWindow 中
+     *
+     * @return [条数, 字节数, 行数]
+     */
+    private long[] queryDepth(Uri uri, String selection, String[] selectionArgs) {
+        long[] depth = new long[]{0, 0, 0};
         Cursor cursor = null;
         try {
-            cursor = contentResolver.query(uri, projection, selection, selectionArgs, sortOrder);
-            if (cursor != null) {
-                return cursor.getCount();
+            cursor = dataAccessor.query(uri, DEPTH_PROJECTION, selection, selectionArgs, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                depth[0] = cursor.getLong(0);
+                depth[1] = cursor.getLong(1);
+                depth[2] = cursor.getLong(2);
             }
         } catch (Exception ex) {
             SALog.printStackTrace(ex);
@@ -77,7 +327,7 @@ abstract class PFDataOperation {
                 cursor.close();
             }
         }
-        return 0;
+        return depth;
     }
 
     /**
@@ -85,16 +335,58 @@ abstract class PFDataOperation {
      */
     void deleteData(Uri uri, String id) {
         try {
-            if (PFDbParams.DB_DELETE_ALL.equals(id)) {
-                contentResolver.delete(uri, null, null);
-            } else {
-                contentResolver.delete(uri, "_id <= ?", new String[]{id});
+            synchronized (mDepthLock) {
+                if (PFDbParams.DB_DELETE_ALL.equals(id)) {
+                    dataAccessor.delete(uri, null, null);
+                    reseedQueueDepth(uri);
+                } else {
+                    getQueueDepth(uri);
+                    String[] selectionArgs = new String[]{id};
+                    long[] depth = queryDepth(uri, "_id <= ?", selectionArgs);
+                    int deleted = dataAccessor.delete(uri, "_id <= ?", selectionArgs);
+                    onRowsDeleted(uri, deleted, depth[2], depth[0], depth[1]);
+                }
+            }
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        }
+    }
+
+    /**
+     * 删除 _id 在 [firstId, lastId] 范围内的数据，用于乱序完成的上报请求只删除自己覆盖的数据
+     *
+     * @param uri Uri
+     * @param firstId 起始 _id
+     * @param lastId 结束 _id
+     */
+    void deleteDataRange(Uri uri, long firstId, long lastId) {
+        try {
+            String[] selectionArgs = new String[]{String.valueOf(firstId), String.valueOf(lastId)};
+            synchronized (mDepthLock) {
+                // 先完成计数的初始化，避免初始化时已经不包含这些数据又扣减一次
+                getQueueDepth(uri);
+                long[] depth = queryDepth(uri, PFProviderHelper.SELECTION_ID_RANGE, selectionArgs);
+                int deleted = dataAccessor.delete(uri, PFProviderHelper.SELECTION_ID_RANGE, selectionArgs);
+                onRowsDeleted(uri, deleted, depth[2], depth[0], depth[1]);
             }
         } catch (Exception ex) {
             SALog.printStackTrace(ex);
         }
     }
 
+    /**
+     * 计算一条待写入数据的长度，与 SQLite 中 LENGTH(data) 的口径保持一致
+     */
+    static long dataLength(ContentValues values) {
+        Object data = values.get(PFDbParams.KEY_DATA);
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        } else if (data instanceof String) {
+            return ((String) data).length();
+        }
+        return 0;
+    }
+
     String parseData(String keyData) {
         try {
             if (TextUtils.isEmpty(keyData)) return "";
@@ -115,41 +407,28 @@ abstract class PFDataOperation {
 
 
     /**
-     * 数据库存满时删除数据
+     * 写入前检查存储空间，只比较内存中统计的字节数，不再读取数据库文件的大小。
+     * 超出容量后由写入线程在后台淘汰，超出容量的 1/4 时说明后台淘汰没有跟上，才在这里同步淘汰；
+     * 淘汰前会按数据库重新统计，计数偏大时不会删除数据，也不会拒绝写入
      *
      * @param uri URI
      * @return 正常返回 0
      */
-    int deleteDataLowMemory(Uri uri) {
-        if (belowMemThreshold()) {
-            SALog.i(TAG, "There is not enough space left on the device to store events, so will delete 100 oldest events");
-            String[] eventsData = queryData(uri, 100);
-            if (eventsData == null) {
-                return PFDbParams.DB_OUT_OF_MEMORY_ERROR;
-            }
-
-            final String lastId = eventsData[0];
-            deleteData(uri, lastId);
-            if (queryDataCount(uri) <= 0) {
-                return PFDbParams.DB_OUT_OF_MEMORY_ERROR;
-            }
+    int ensureCapacity(Uri uri) {
+        final PFQueueDepth queueDepth = getQueueDepth(uri);
+        if (!isOverLimit(queueDepth)) {
+            return 0;
         }
-        return 0;
+        evict(PFEventBatchWriter.getEvictionTarget(mMaxCacheSize));
+        return isOverLimit(queueDepth) ? PFDbParams.DB_OUT_OF_MEMORY_ERROR : 0;
+    }
+
+    private boolean isOverLimit(PFQueueDepth queueDepth) {
+        return queueDepth.getBytes() - mMaxCacheSize >= mMaxCacheSize / 4;
     }
 
     /**
-     * 本地缓存上限值，单位 byte，默认为 32MB：32 * 1024 * 1024
+     * 本地缓存上限值，单位 byte，默认为 32MB：32 * 1024 * 1024，按保存的事件数据统计
      */
     long mMaxCacheSize = 32 * 1024 * 1024L;
-
-    private long getMaxCacheSize() {
-        return mMaxCacheSize;
-    }
-
-    private boolean belowMemThreshold() {
-        if (mDatabaseFile.exists()) {
-            return mDatabaseFile.length() >= getMaxCacheSize();
-        }
-        return false;
-    }
 }
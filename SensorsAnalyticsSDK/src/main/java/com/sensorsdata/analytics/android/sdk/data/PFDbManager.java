@@ -19,25 +19,65 @@ package com.sensorsdata.analytics.android.sdk.data;
 
 import android.content.Context;
 import com.sensorsdata.analytics.android.sdk.SALog;
+import com.sensorsdata.analytics.android.sdk.SAStorageEngine;
+import com.sensorsdata.analytics.android.sdk.util.AppInfoUtils;
 
 import org.json.JSONObject;
 
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
 public class PFDbManager {
+    private static final String TAG = "PF.DbManager";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static PFDbManager instance;
-    private final PFDbParams mPFDbParams;
-    private PFDataOperation mTrackEventOperation;
-    private PFDbManager(Context context, String packageName) {
-        mPFDbParams = PFDbParams.getInstance(packageName);
-        mTrackEventOperation = new PFEventDataOperation(context.getApplicationContext());
+    private final PFEventStore mEventStore;
+    private final PFEventBatchWriter mBatchWriter;
+    private PFDbManager(Context context, String packageName, int storageEngine) {
+        PFDbParams.getInstance(packageName);
+        mEventStore = createEventStore(context.getApplicationContext(), storageEngine);
+        mBatchWriter = new PFEventBatchWriter(mEventStore);
     }
 
     public static PFDbManager getInstance(Context context, String packageName) {
+        return getInstance(context, packageName, SAStorageEngine.SQLITE);
+    }
+
+    /**
+     * @param context Context
+     * @param packageName 包名
+     * @param storageEngine SAStorageEngine 中定义的存储引擎，只在首次调用时生效
+     * @return PFDbManager
+     */
+    public static PFDbManager getInstance(Context context, String packageName, int storageEngine) {
         if (instance == null) {
-            instance = new PFDbManager(context, packageName);
+            instance = new PFDbManager(context, packageName, storageEngine);
         }
         return instance;
     }
 
+    /**
+     * 只有主进程上报数据，并且只读取本进程打开的存储引擎；分段日志不能跨进程共享，
+     * 多进程的 App 所有进程都使用 SQLite，避免其他进程写入的事件无法上报
+     */
+    static PFEventStore createEventStore(Context context, int storageEngine) {
+        if (storageEngine == SAStorageEngine.SEGMENT_LOG) {
+            if (AppInfoUtils.hasMultipleProcesses(context)) {
+                SALog.info(TAG, "SAStorageEngine.SEGMENT_LOG does not support multi-process apps, use SQLite instead", null);
+            } else {
+                try {
+                    return PFSegmentLogStore.open(new File(context.getFilesDir(), PFSegmentLogStore.DIRECTORY_NAME),
+                            PFSegmentLogStore.DEFAULT_SEGMENT_SIZE, PFSegmentLogStore.DEFAULT_MAX_CACHE_SIZE);
+                } catch (Exception e) {
+                    // 分段日志被仍未退出的旧进程占用，或者目录不可用
+                    SALog.info(TAG, "Segment log is not available, fall back to SQLite", e);
+                }
+            }
+        }
+        return new PFEventDataOperation(context);
+    }
+
     public static PFDbManager getInstance() {
         if (instance == null) {
             throw new IllegalStateException("The static method getInstance(Context context, String packageName) should be called before calling getInstance()");
@@ -54,44 +94,115 @@ public class PFDbManager {
      * on failure
      */
     public int addJSON(JSONObject j) {
-        int code = mTrackEventOperation.insertData(mPFDbParams.getEventUri(), j);
+        byte[] data = j.toString().getBytes(UTF_8);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        return addEvent(data, 0, data.length, crc32.getValue(), 0, PFDbParams.PRIORITY_NORMAL, false);
+    }
+
+    /**
+     * 保存已经编码好的事件数据，事件由 {@link PFEventBatchWriter} 分组提交，durable 为 true 时除外。
+     * data 会被拷贝，调用方可以在返回后继续复用该缓冲区。
+     *
+     * @param data UTF-8 编码的事件 JSON
+     * @param offset 起始位置
+     * @param length 长度
+     * @param crc 数据的 CRC32 校验值
+     * @param commonId 引用的静态属性版本号，0 表示静态属性已内联
+     * @param priority 存储优先级，PFDbParams.PRIORITY_*，存储空间不足时先淘汰低优先级的事件
+     * @param durable 是否需要在返回前连同之前攒批的事件一起提交到数据库
+     * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    public int addEvent(byte[] data, int offset, int length, long crc, long commonId, int priority, boolean durable) {
+        int code = mBatchWriter.add(mEventStore.buildContentValues(data, offset, length, crc, commonId, priority), durable);
         if (code == 0) {
-            return mTrackEventOperation.queryDataCount(mPFDbParams.getEventUri());
+            return getQueuedEventCount();
         }
         return code;
     }
 
+    /**
+     * 保存当前版本的设备和 App 静态属性，引用该版本的事件入库之前调用
+     *
+     * @param id 版本号，大于 0
+     * @param block 以逗号分隔的 "key":value 片段，UTF-8 编码
+     */
+    public void saveCommonProperties(long id, byte[] block) {
+        mEventStore.saveCommonProperties(id, block);
+    }
+
+    /**
+     * 设置上报批次是否使用静态属性信封格式，关闭时读取数据时把静态属性展开到每条事件中
+     *
+     * @param enabled 是否开启
+     */
+    public void setCommonPropertiesEnvelope(boolean enabled) {
+        mEventStore.setCommonEnvelope(enabled);
+    }
+
+    /**
+     * 获取本地缓存的事件条数，包括尚未提交到数据库的事件
+     *
+     * @return 事件条数
+     */
+    public int getQueuedEventCount() {
+        return mEventStore.count().getCount() + mBatchWriter.getPendingCount();
+    }
+
+    /**
+     * 获取本地缓存的事件字节数，包括尚未提交到数据库的事件
+     *
+     * @return 字节数
+     */
+    public long getQueuedEventBytes() {
+        return mEventStore.count().getBytes() + mBatchWriter.getPendingBytes();
+    }
+
+    /**
+     * Commits the events batched in memory to the SQLiteDatabase
+     */
+    public void commitEvents() {
+        mBatchWriter.commit();
+    }
+
     /**
      * Removes all events from table
      */
     public void deleteAllEvents() {
-        mTrackEventOperation.deleteData(mPFDbParams.getEventUri(), PFDbParams.DB_DELETE_ALL);
+        mBatchWriter.discard();
+        mEventStore.clear();
     }
 
     /**
-     * Removes events with an _id &lt;= last_id from table
+     * 删除 _id 在 [firstId, lastId] 范围内的事件。
+     * 多个上报请求可能乱序完成，只能删除请求成功的那一段数据，不能再按 _id &lt;= lastId 删除
      *
-     * @param last_id the last id to delete
+     * @param firstId 起始 _id
+     * @param lastId 结束 _id
      * @return the number of rows in the table
      */
-    public int cleanupEvents(String last_id) {
-        mTrackEventOperation.deleteData(mPFDbParams.getEventUri(), last_id);
-        return mTrackEventOperation.queryDataCount(mPFDbParams.getEventUri());
+    public int deleteEventRange(long firstId, long lastId) {
+        mEventStore.ack(firstId, lastId);
+        return getQueuedEventCount();
     }
 
     /**
-     * 从 Event 表中读取上报数据
+     * 从 Event 表中读取一批上报数据
      *
-     * @param tableName 表名
+     * @param afterId 读取 _id 大于该值的数据，从头读取时传 -1，用于在上一批数据尚未删除时预读下一批
      * @param limit 条数限制
-     * @return 数据
+     * @param maxBytes 未压缩的字节数上限，至少会读取一条数据
+     * @param batch 用于保存结果，缓冲区可以在多次读取之间复用
+     * @return 读到数据时返回 true
      */
-    public String[] generateDataString(String tableName, int limit) {
+    public boolean queryEventBatch(long afterId, int limit, int maxBytes, PFEventBatch batch) {
         try {
-            return mTrackEventOperation.queryData(mPFDbParams.getEventUri(), limit);
+            mBatchWriter.commit();
+            return mEventStore.peekBatch(afterId, limit, maxBytes, batch);
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
-        return null;
+        return false;
     }
 }
\ No newline at end of file
@@ -5,23 +5,39 @@ import android.net.Uri;
 public class PFDbParams {
     /* 数据库中的表名 */
     public static final String TABLE_EVENTS = "analytics_events";
+    /* 设备和 App 静态属性的版本表 */
+    public static final String TABLE_COMMON_PROPERTIES = "common_properties";
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
     /* 数据库名称 */
     public static final String DATABASE_NAME = "pinefiele_db";
     /* 数据库版本号 */
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 6;
     /* Event 表字段 */
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
+    /* data 列 UTF-8 字节的 CRC32 校验值，升级前写入的数据该列为空 */
+    public static final String KEY_CRC = "crc";
+    /* 引用的静态属性版本号，为空时静态属性内联保存在 data 中 */
+    public static final String KEY_COMMON_ID = "common_id";
+    /* 压缩块中的事件条数，为空时该行是单条未压缩的事件 */
+    public static final String KEY_EVENT_COUNT = "event_count";
+    /* 存储优先级，压缩块取其中事件的最高优先级 */
+    public static final String KEY_PRIORITY = "priority";
+    /* 存储优先级：存储空间不足时先淘汰低优先级的事件，崩溃、注册等事件只在没有其他事件时淘汰 */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_CRITICAL = 2;
     /* 数据库状态 */
     public static final String GZIP_DATA_EVENT = "1";
     /* 删除所有数据 */
     static final String DB_DELETE_ALL = "DB_DELETE_ALL";
     private static PFDbParams instance;
     private final Uri mUri;
+    private final Uri mCommonPropertiesUri;
 
     private PFDbParams(String packageName) {
         mUri = Uri.parse("content://" + packageName + ".PFDataContentProvider/" + TABLE_EVENTS);
+        mCommonPropertiesUri = Uri.parse("content://" + packageName + ".PFDataContentProvider/" + TABLE_COMMON_PROPERTIES);
     }
 
     public static PFDbParams getInstance(String packageName) {
@@ -46,4 +62,13 @@ public class PFDbParams {
     Uri getEventUri() {
         return mUri;
     }
+
+    /**
+     * 获取静态属性表的 Uri
+     *
+     * @return Uri
+     */
+    Uri getCommonPropertiesUri() {
+        return mCommonPropertiesUri;
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 从数据库读出的一批待上报事件，内容为 UTF-8 编码的 JSON 数组；
+ * 开启静态属性信封时为 {"data_list":[...],"common":{"版本号":{...}}}，事件通过 "_common" 引用静态属性。
+ * 缓冲区在多次读取之间复用，上报时直接从缓冲区流式编码，不再生成整批数据的 String。
+ */
+public final class PFEventBatch extends ByteArrayOutputStream {
+    private long mFirstId = -1;
+    private long mLastId = -1;
+    private int mEventCount;
+
+    public PFEventBatch() {
+        super(16 * 1024);
+    }
+
+    /**
+     * 清空内容，保留缓冲区
+     */
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        mFirstId = -1;
+        mLastId = -1;
+        mEventCount = 0;
+    }
+
+    /**
+     * @return 内部缓冲区，有效内容为 [0, size())，不会拷贝
+     */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return 本批数据中最小的 _id，没有数据时返回 -1
+     */
+    public long getFirstId() {
+        return mFirstId;
+    }
+
+    /**
+     * @return 本批数据中最大的 _id，没有数据时返回 -1
+     */
+    public long getLastId() {
+        return mLastId;
+    }
+
+    /**
+     * @return 本批数据中的事件条数
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    void onRowRead(long id) {
+        if (mFirstId < 0) {
+            mFirstId = id;
+        }
+        mLastId = id;
+    }
+
+    void onEventAppended() {
+        mEventCount++;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.sensorsdata.analytics.android.sdk.SALog;
+import com.sensorsdata.analytics.android.sdk.ThreadNameConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 事件分组提交：事件先在内存中攒批，达到条数上限或者等待超过指定时间后在同一个事务中写入数据库，
+ * 避免每条事件都单独触发一次事务提交和 fsync。
+ * 提交后存储超出容量时，在写入线程中按优先级淘汰数据，不阻塞调用方。
+ */
+class PFEventBatchWriter {
+    /* 单次提交的最大条数 */
+    static final int DEFAULT_MAX_BATCH_ROWS = 50;
+    /* 事件在内存中的最长等待时间，单位毫秒 */
+    static final long DEFAULT_MAX_DELAY_MS = 10;
+
+    private final PFEventStore mEventStore;
+    private final int mMaxBatchRows;
+    private final long mMaxDelayMs;
+    private final Object mCommitLock = new Object();
+    private List<ContentValues> mPending = new ArrayList<>();
+    private long mPendingBytes = 0;
+    private boolean mCommitScheduled = false;
+    private boolean mEvictScheduled = false;
+    private Handler mHandler;
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+    private final Runnable mEvictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evict();
+        }
+    };
+
+    PFEventBatchWriter(PFEventStore eventStore) {
+        this(eventStore, DEFAULT_MAX_BATCH_ROWS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    PFEventBatchWriter(PFEventStore eventStore, int maxBatchRows, long maxDelayMs) {
+        this.mEventStore = eventStore;
+        this.mMaxBatchRows = maxBatchRows;
+        this.mMaxDelayMs = maxDelayMs;
+        try {
+            HandlerThread thread = new HandlerThread(ThreadNameConstants.THREAD_EVENT_WRITER);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    /**
+     * 添加一条待写入的事件
+     *
+     * @param values 事件数据
+     * @param durable 是否需要同步落库，为 true 时会连同之前攒批的事件一起立即提交
+     * @return 正常返回 0，数据库写满时返回 DB_OUT_OF_MEMORY_ERROR
+     */
+    int add(ContentValues values, boolean durable) {
+        boolean commitNow;
+        synchronized (this) {
+            mPending.add(values);
+            mPendingBytes += PFDataOperation.dataLength(values);
+            commitNow = durable || mHandler == null || mPending.size() >= mMaxBatchRows;
+            if (!commitNow && !mCommitScheduled) {
+                mCommitScheduled = true;
+                mHandler.postDelayed(mCommitRunnable, mMaxDelayMs);
+            }
+        }
+        if (commitNow) {
+            return commit();
+        }
+        return 0;
+    }
+
+    /**
+     * 将内存中攒批的事件全部写入数据库
+     *
+     * @return 正常返回 0，数据库写满时返回 DB_OUT_OF_MEMORY_ERROR
+     */
+    int commit() {
+        synchronized (mCommitLock) {
+            List<ContentValues> batch = takePending();
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            int code = mEventStore.insert(batch.toArray(new ContentValues[batch.size()]));
+            if (mEventStore.count().getBytes() > mEventStore.capacity()) {
+                scheduleEviction();
+            }
+            return code;
+        }
+    }
+
+    /**
+     * 超出容量后淘汰到容量的 3/4，一次腾出一大段空间，避免之后每次提交都触发淘汰
+     *
+     * @param capacity 存储容量
+     * @return 淘汰后的字节数上限
+     */
+    static long getEvictionTarget(long capacity) {
+        return capacity - capacity / 4;
+    }
+
+    private void scheduleEviction() {
+        synchronized (this) {
+            if (mHandler != null) {
+                if (!mEvictScheduled) {
+                    mEvictScheduled = true;
+                    mHandler.post(mEvictRunnable);
+                }
+                return;
+            }
+        }
+        evict();
+    }
+
+    private void evict() {
+        synchronized (this) {
+            mEvictScheduled = false;
+        }
+        // 与提交互斥，淘汰过程中不会有新数据写入和合并
+        synchronized (mCommitLock) {
+            try {
+                mEventStore.evict(getEvictionTarget(mEventStore.capacity()));
+            } catch (Exception e) {
+                SALog.printStackTrace(e);
+            }
+        }
+    }
+
+    /**
+     * 丢弃尚未写入数据库的事件
+     */
+    void discard() {
+        synchronized (mCommitLock) {
+            takePending();
+        }
+    }
+
+    /**
+     * @return 尚未写入数据库的事件条数
+     */
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return 尚未写入数据库的事件字节数
+     */
+    synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    private synchronized List<ContentValues> takePending() {
+        if (mCommitScheduled) {
+            mCommitScheduled = false;
+            mHandler.removeCallbacks(mCommitRunnable);
+        }
+        List<ContentValues> batch = mPending;
+        if (!batch.isEmpty()) {
+            mPending = new ArrayList<>(mMaxBatchRows);
+            mPendingBytes = 0;
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩存储的事件块：连续的多条事件共用一个 zlib 压缩流，保存为事件表中的一行。
+ * 解压后的格式为若干个 长度(4) + 静态属性版本号(8) + 事件数据，crc 列保存解压后内容的 CRC32。
+ * 不是线程安全的，调用方需要加锁。
+ */
+final class PFEventBlock {
+    /* 每个块最多包含的事件条数 */
+    static final int MAX_EVENTS = 32;
+    private static final int FRAME_HEADER_SIZE = 12;
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater mInflater = new Inflater();
+    private final CRC32 mCrc32 = new CRC32();
+    private final ByteArrayOutputStream mFrames = new ByteArrayOutputStream(16 * 1024);
+    private final byte[] mChunk = new byte[8 * 1024];
+    private byte[] mBuffer = new byte[16 * 1024];
+    private int mLength;
+    private int[] mOffsets = new int[MAX_EVENTS];
+    private int[] mLengths = new int[MAX_EVENTS];
+    private long[] mCommonIds = new long[MAX_EVENTS];
+    private int mCount;
+    private long mCrc;
+
+    /**
+     * 开始编码一个新的块
+     */
+    void begin() {
+        mFrames.reset();
+        mCount = 0;
+    }
+
+    /**
+     * 添加一条事件
+     *
+     * @param data 事件数据
+     * @param commonId 引用的静态属性版本号，没有时为 0
+     */
+    void add(byte[] data, long commonId) {
+        writeInt(data.length);
+        writeInt((int) (commonId >>> 32));
+        writeInt((int) commonId);
+        mFrames.write(data, 0, data.length);
+        mCount++;
+    }
+
+    /**
+     * 压缩已添加的事件
+     *
+     * @return 压缩后的数据，解压后内容的 CRC32 通过 {@link #getCrc()} 获取
+     */
+    byte[] finish() {
+        byte[] frames = mFrames.toByteArray();
+        mCrc32.reset();
+        mCrc32.update(frames, 0, frames.length);
+        mCrc = mCrc32.getValue();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frames.length / 4 + 64);
+        mDeflater.reset();
+        mDeflater.setInput(frames, 0, frames.length);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int count = mDeflater.deflate(mChunk, 0, mChunk.length);
+            out.write(mChunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解压一个块，之后通过 {@link #getCount()} 等方法读取其中的事件
+     *
+     * @param compressed 压缩数据
+     * @param crc 解压后内容的 CRC32
+     * @throws IOException 数据损坏
+     */
+    void decode(byte[] compressed, long crc) throws IOException {
+        mCount = 0;
+        mLength = 0;
+        mInflater.reset();
+        mInflater.setInput(compressed, 0, compressed.length);
+        try {
+            while (!mInflater.finished()) {
+                if (mLength == mBuffer.length) {
+                    byte[] buffer = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                    mBuffer = buffer;
+                }
+                int count = mInflater.inflate(mBuffer, mLength, mBuffer.length - mLength);
+                if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    throw new IOException("Unexpected end of event block");
+                }
+                mLength += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        mCrc32.reset();
+        mCrc32.update(mBuffer, 0, mLength);
+        if (mCrc32.getValue() != crc) {
+            throw new IOException("Event block crc mismatch");
+        }
+        int offset = 0;
+        while (offset + FRAME_HEADER_SIZE <= mLength) {
+            int length = readInt(offset);
+            long commonId = ((long) readInt(offset + 4) << 32) | (readInt(offset + 8) & 0xffffffffL);
+            offset += FRAME_HEADER_SIZE;
+            if (length < 0 || offset + length > mLength) {
+                throw new IOException("Invalid event block frame");
+            }
+            if (mCount == mOffsets.length) {
+                mOffsets = grow(mOffsets);
+                mLengths = grow(mLengths);
+                long[] commonIds = new long[mCommonIds.length * 2];
+                System.arraycopy(mCommonIds, 0, commonIds, 0, mCount);
+                mCommonIds = commonIds;
+            }
+            mOffsets[mCount] = offset;
+            mLengths[mCount] = length;
+            mCommonIds[mCount] = commonId;
+            mCount++;
+            offset += length;
+        }
+    }
+
+    /**
+     * @return 编码时为已添加的条数，解码后为块中的事件条数
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return 解压后事件数据的总长度，不含帧头
+     */
+    int getEventBytes() {
+        return mLength - mCount * FRAME_HEADER_SIZE;
+    }
+
+    long getCrc() {
+        return mCrc;
+    }
+
+    /**
+     * @return 解压后的缓冲区，事件位置通过 {@link #getOffset(int)} 和 {@link #getLength(int)} 获取
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    int getLength(int index) {
+        return mLengths[index];
+    }
+
+    long getCommonId(int index) {
+        return mCommonIds[index];
+    }
+
+    private void writeInt(int value) {
+        mFrames.write(value >>> 24);
+        mFrames.write(value >>> 16);
+        mFrames.write(value >>> 8);
+        mFrames.write(value);
+    }
+
+    private int readInt(int offset) {
+        return ((mBuffer[offset] & 0xff) << 24) | ((mBuffer[offset + 1] & 0xff) << 16)
+                | ((mBuffer[offset + 2] & 0xff) << 8) | (mBuffer[offset + 3] & 0xff);
+    }
+
+    private static int[] grow(int[] array) {
+        int[] result = new int[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
@@ -26,9 +26,28 @@ import android.text.TextUtils;
 
 import com.sensorsdata.analytics.android.sdk.SALog;
 
-import org.json.JSONObject;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 class PFEventDataOperation extends PFDataOperation {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] QUERY_PROJECTION = new String[]{"_id", PFDbParams.KEY_DATA, PFDbParams.KEY_CRC, PFDbParams.KEY_COMMON_ID, PFDbParams.KEY_EVENT_COUNT};
+    /* 已合并的块和旧格式数据只用来分隔可以合并的范围，不读取数据内容 */
+    private static final String[] COMPACT_PROJECTION = new String[]{"_id",
+            "CASE WHEN " + PFDbParams.KEY_EVENT_COUNT + " IS NULL AND " + PFDbParams.KEY_CRC + " IS NOT NULL THEN " + PFDbParams.KEY_DATA + " END",
+            PFDbParams.KEY_CRC, PFDbParams.KEY_COMMON_ID, PFDbParams.KEY_PRIORITY, PFDbParams.KEY_EVENT_COUNT};
+    /* 读取和合并互斥，合并不能包含本轮上报已经读出的数据 */
+    private final Object mLock = new Object();
+    private final PFEventBlock mBlock = new PFEventBlock();
+    /* 本轮上报已经读出的最大 _id */
+    private long mReadWatermark = -1;
+    /* 最近一次读取的静态属性，只在持有 mLock 时访问；版本号由内容计算，内容不会变化 */
+    private long mLastCommonId;
+    private byte[] mLastCommonBlock;
+    /* 上次合并之后写入的单条事件数，启动时未知，第一次写入时检查一次 */
+    private int mUncompacted = PFEventBlock.MAX_EVENTS;
 
     PFEventDataOperation(Context context) {
         super(context);
@@ -36,68 +55,292 @@ class PFEventDataOperation extends PFDataOperation {
     }
 
     @Override
-    int insertData(Uri uri, JSONObject jsonObject) {
+    public ContentValues buildContentValues(byte[] data, int offset, int length, long crc, long commonId, int priority) {
+        ContentValues cv = new ContentValues();
+        // 编码缓冲区会被复用，这里需要拷贝一份
+        cv.put(PFDbParams.KEY_DATA, Arrays.copyOfRange(data, offset, offset + length));
+        cv.put(PFDbParams.KEY_CRC, crc);
+        if (commonId > 0) {
+            cv.put(PFDbParams.KEY_COMMON_ID, commonId);
+        }
+        cv.put(PFDbParams.KEY_PRIORITY, priority);
+        cv.put(PFDbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        return cv;
+    }
+
+    @Override
+    int insertData(Uri uri, ContentValues[] values) {
         try {
-            if (deleteDataLowMemory(uri) != 0) {
+            // 先完成计数的初始化，避免把本次写入的数据统计两次
+            PFQueueDepth queueDepth = getQueueDepth(uri);
+            if (ensureCapacity(uri) != 0) {
                 return PFDbParams.DB_OUT_OF_MEMORY_ERROR;
             }
-            ContentValues cv = new ContentValues();
-            cv.put(PFDbParams.KEY_DATA, jsonObject.toString() + "\t" + jsonObject.toString().hashCode());
-            cv.put(PFDbParams.KEY_CREATED_AT, System.currentTimeMillis());
-            contentResolver.insert(uri, cv);
+            int inserted;
+            synchronized (mDepthLock) {
+                if (values.length == 1) {
+                    inserted = insertedId(dataAccessor.insert(uri, values[0])) >= 0 ? 1 : 0;
+                } else {
+                    inserted = dataAccessor.bulkInsert(uri, values);
+                }
+                if (inserted == values.length) {
+                    long bytes = 0;
+                    for (ContentValues value : values) {
+                        bytes += dataLength(value);
+                    }
+                    queueDepth.onInserted(inserted, bytes);
+                } else {
+                    // 无法确定哪些数据写入失败，下次使用计数时重新统计
+                    SALog.i(TAG, "Only " + inserted + " of " + values.length + " events were saved");
+                    invalidateQueueDepth();
+                }
+            }
+            mUncompacted += inserted;
+            if (mUncompacted >= PFEventBlock.MAX_EVENTS) {
+                compactEvents(uri);
+            }
         } catch (Throwable e) {
             SALog.d(TAG, e.getMessage());
         }
         return 0;
     }
 
+    /**
+     * 把尾部尚未读出的单条事件每 {@link PFEventBlock#MAX_EVENTS} 条合并为一个压缩块，
+     * 块只包含连续的、新格式写入的同一优先级单条事件，遇到优先级变化、已合并的块或者旧格式数据时提前结束，
+     * 合并不会改变事件的先后顺序
+     */
+    private void compactEvents(Uri uri) {
+        synchronized (mLock) {
+            long afterId = mReadWatermark;
+            while (true) {
+                Cursor cursor = null;
+                int rows = 0;
+                long firstId = -1;
+                long lastId = -1;
+                long rawBytes = 0;
+                int priority = -1;
+                boolean runEnded = false;
+                try {
+                    cursor = dataAccessor.query(uri, COMPACT_PROJECTION, "_id > ?",
+                            new String[]{String.valueOf(afterId)}, "_id ASC LIMIT " + PFEventBlock.MAX_EVENTS);
+                    if (cursor == null) {
+                        return;
+                    }
+                    final CRC32 crc32 = new CRC32();
+                    mBlock.begin();
+                    while (cursor.moveToNext()) {
+                        final long id = cursor.getLong(0);
+                        if (!cursor.isNull(5) || cursor.isNull(2)) {
+                            // 合并只能替换一段连续的单条事件，不能越过已合并的块和旧格式数据
+                            if (rows == 0) {
+                                lastId = id;
+                            }
+                            runEnded = true;
+                            break;
+                        }
+                        final byte[] data = cursor.getBlob(1);
+                        boolean valid = false;
+                        if (data != null) {
+                            crc32.reset();
+                            crc32.update(data, 0, data.length);
+                            valid = crc32.getValue() == cursor.getLong(2);
+                        }
+                        // 块按整体淘汰，只有校验通过的事件决定块的优先级
+                        if (valid) {
+                            final int rowPriority = cursor.getInt(4);
+                            if (priority < 0) {
+                                priority = rowPriority;
+                            } else if (rowPriority != priority) {
+                                runEnded = true;
+                                break;
+                            }
+                        }
+                        if (firstId < 0) {
+                            firstId = id;
+                        }
+                        lastId = id;
+                        rows++;
+                        if (data == null) {
+                            continue;
+                        }
+                        rawBytes += data.length;
+                        if (valid) {
+                            // 校验失败的数据读取时也会被丢弃，这里不再放入块中
+                            mBlock.add(data, cursor.isNull(3) ? 0 : cursor.getLong(3));
+                        }
+                    }
+                } catch (Exception e) {
+                    SALog.printStackTrace(e);
+                    return;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                if (!runEnded && rows < PFEventBlock.MAX_EVENTS) {
+                    // 尾部同一优先级的事件还不满一个块，等后续写入
+                    mUncompacted = rows;
+                    return;
+                }
+                afterId = lastId;
+                if (rows < 2) {
+                    // 只有一条的不值得合并，跳过继续合并后面的事件
+                    continue;
+                }
+                byte[] compressed = mBlock.finish();
+                ContentValues block = new ContentValues();
+                block.put(PFDbParams.KEY_DATA, compressed);
+                block.put(PFDbParams.KEY_CRC, mBlock.getCrc());
+                block.put(PFDbParams.KEY_EVENT_COUNT, mBlock.getCount());
+                block.put(PFDbParams.KEY_PRIORITY, priority < 0 ? PFDbParams.PRIORITY_LOW : priority);
+                synchronized (mDepthLock) {
+                    final int compacted = dataAccessor.compact(uri, block, firstId, lastId);
+                    if (compacted != rows) {
+                        if (compacted > 0) {
+                            // 合并期间有数据被其他方式删除，计数无法按差值更新
+                            reseedQueueDepth(uri);
+                        }
+                        // 不支持合并或者合并失败，等下次写入满一个块时再尝试
+                        mUncompacted = 0;
+                        return;
+                    }
+                    PFQueueDepth queueDepth = getQueueDepth(uri);
+                    queueDepth.onDeleted(rows, rawBytes);
+                    queueDepth.onInserted(mBlock.getCount(), compressed.length);
+                }
+            }
+        }
+    }
+
     @Override
-    String[] queryData(Uri uri, int limit) {
+    boolean queryData(Uri uri, long afterId, int limit, int maxBytes, PFEventBatch batch) {
         Cursor cursor = null;
-        String data = null;
-        String last_id = null;
-        try {
-            cursor = contentResolver.query(uri, null, null, null, PFDbParams.KEY_CREATED_AT + " ASC LIMIT " + limit);
-            if (cursor != null) {
-                StringBuilder dataBuilder = new StringBuilder();
-                final String flush_time = ",\"_flush_time\":";
-                String suffix = ",";
-                dataBuilder.append("[");
-                String keyData;
-                while (cursor.moveToNext()) {
-                    if (cursor.isLast()) {
-                        suffix = "]";
-                        last_id = cursor.getString(cursor.getColumnIndexOrThrow("_id"));
-                    }
-                    try {
-                        keyData = cursor.getString(cursor.getColumnIndexOrThrow(PFDbParams.KEY_DATA));
-                        keyData = parseData(keyData);
-                        if (!TextUtils.isEmpty(keyData)) {
-                            dataBuilder.append(keyData, 0, keyData.length() - 1)
-                                    .append(flush_time)
-                                    .append(System.currentTimeMillis())
-                                    .append("}").append(suffix);
+        batch.reset();
+        synchronized (mLock) {
+            if (afterId < 0) {
+                // 从头读取表示新的一轮上报，上一轮读出的数据已经确认或者放弃
+                mReadWatermark = -1;
+            }
+            try {
+                cursor = dataAccessor.query(uri, QUERY_PROJECTION, "_id > ?", new String[]{String.valueOf(afterId)}, "_id ASC LIMIT " + limit);
+                if (cursor != null) {
+                    final int idIndex = cursor.getColumnIndexOrThrow("_id");
+                    final int dataIndex = cursor.getColumnIndexOrThrow(PFDbParams.KEY_DATA);
+                    final int crcIndex = cursor.getColumnIndexOrThrow(PFDbParams.KEY_CRC);
+                    final int commonIndex = cursor.getColumnIndexOrThrow(PFDbParams.KEY_COMMON_ID);
+                    final int countIndex = cursor.getColumnIndexOrThrow(PFDbParams.KEY_EVENT_COUNT);
+                    final CRC32 crc32 = new CRC32();
+                    final boolean envelope = isCommonEnvelope();
+                    final PFBatchAssembler assembler = new PFBatchAssembler(batch, maxBytes, envelope);
+                    while (cursor.moveToNext()) {
+                        final long id = cursor.getLong(idIndex);
+                        try {
+                            if (!cursor.isNull(countIndex)) {
+                                if (!appendBlock(cursor, dataIndex, crcIndex, limit, envelope, assembler, batch)) {
+                                    break;
+                                }
+                                batch.onRowRead(id);
+                                continue;
+                            }
+                            byte[] keyData;
+                            if (cursor.isNull(crcIndex)) {
+                                // 升级前写入的数据，仍按 "json\thashCode" 的格式校验
+                                String legacyData = parseData(cursor.getString(dataIndex));
+                                keyData = TextUtils.isEmpty(legacyData) ? null : legacyData.getBytes(UTF_8);
+                            } else {
+                                keyData = cursor.getBlob(dataIndex);
+                                crc32.reset();
+                                if (keyData != null) {
+                                    crc32.update(keyData, 0, keyData.length);
+                                }
+                                if (keyData == null || crc32.getValue() != cursor.getLong(crcIndex)) {
+                                    keyData = null;
+                                }
+                            }
+                            if (keyData != null && keyData.length > 1) {
+                                if (batch.getEventCount() >= limit) {
+                                    break;
+                                }
+                                final long commonId = cursor.isNull(commonIndex) ? 0 : cursor.getLong(commonIndex);
+                                final byte[] commonBlock = getCommonBlock(commonId, envelope);
+                                if (!assembler.append(keyData, 0, keyData.length, commonId, commonBlock)) {
+                                    // 超出字节上限，这一条留给下一批
+                                    break;
+                                }
+                            }
+                        } catch (Exception e) {
+                            SALog.printStackTrace(e);
                         }
-                    } catch (Exception e) {
-                        SALog.printStackTrace(e);
+                        batch.onRowRead(id);
                     }
+                    assembler.finish();
                 }
-                data = dataBuilder.toString();
+            } catch (final SQLiteException e) {
+                SALog.i(TAG, "Could not pull records for pinefiele_db out of database events. Waiting to send.", e);
+                batch.reset();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            mReadWatermark = Math.max(mReadWatermark, batch.getLastId());
+        }
+        return batch.getLastId() >= 0;
+    }
+
+    /**
+     * 解压一个压缩块并写入本批数据，块不能拆分，放不下时整块留给下一批
+     *
+     * @return 放不下时返回 false
+     */
+    private boolean appendBlock(Cursor cursor, int dataIndex, int crcIndex, int limit, boolean envelope,
+                                PFBatchAssembler assembler, PFEventBatch batch) {
+        try {
+            mBlock.decode(cursor.getBlob(dataIndex), cursor.getLong(crcIndex));
+        } catch (IOException e) {
+            // 损坏的块随本批一起确认删除
+            SALog.i(TAG, "Drop damaged event block", e);
+            return true;
+        }
+        final int count = mBlock.getCount();
+        long bytes = mBlock.getEventBytes();
+        for (int i = 0; i < count; i++) {
+            byte[] commonBlock = envelope ? null : getCommonBlock(mBlock.getCommonId(i), false);
+            if (commonBlock != null) {
+                bytes += commonBlock.length + 1;
             }
-        } catch (final SQLiteException e) {
-            SALog.i(TAG, "Could not pull records for pinefiele_db out of database events. Waiting to send.", e);
-            last_id = null;
-            data = null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+        if (batch.getEventCount() > 0 && (batch.getEventCount() + count > limit || !assembler.canAppend((int) bytes, count))) {
+            return false;
+        }
+        final byte[] buffer = mBlock.getBuffer();
+        for (int i = 0; i < count; i++) {
+            if (mBlock.getLength(i) > 1) {
+                final long commonId = mBlock.getCommonId(i);
+                assembler.appendUnchecked(buffer, mBlock.getOffset(i), mBlock.getLength(i), commonId, getCommonBlock(commonId, envelope));
             }
         }
+        return true;
+    }
 
-        if (last_id != null) {
-            return new String[]{last_id, data, PFDbParams.GZIP_DATA_EVENT};
+    private byte[] getCommonBlock(long commonId, boolean log) {
+        if (commonId <= 0) {
+            return null;
+        }
+        if (commonId == mLastCommonId && mLastCommonBlock != null) {
+            return mLastCommonBlock;
+        }
+        final byte[] commonBlock = getCommonBlock(commonId);
+        if (commonBlock == null) {
+            if (log) {
+                SALog.i(TAG, "Common properties " + commonId + " not found, event will be sent without them");
+            }
+        } else {
+            mLastCommonId = commonId;
+            mLastCommonBlock = commonBlock;
         }
-        return null;
+        return commonBlock;
     }
 
     @Override
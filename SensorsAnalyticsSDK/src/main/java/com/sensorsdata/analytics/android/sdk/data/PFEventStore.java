@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+
+/**
+ * 事件存储引擎。事件只在尾部追加，从头部按顺序读取和确认，
+ * 默认使用 SQLite（{@link PFDataOperation}），也可以使用内存映射的分段日志（{@link PFSegmentLogStore}）。
+ * 所有引擎共用 _id 的语义：同一个引擎内随写入顺序递增，读取、确认都以 _id 为边界。
+ */
+interface PFEventStore {
+
+    /**
+     * 构建待保存的记录
+     *
+     * @param data 已编码的 UTF-8 事件数据，调用方会复用该缓冲区
+     * @param offset 起始位置
+     * @param length 长度
+     * @param crc 数据的 CRC32 校验值
+     * @param commonId 引用的静态属性版本号，0 表示静态属性已内联
+     * @param priority 存储优先级，PFDbParams.PRIORITY_*
+     * @return 记录
+     */
+    ContentValues buildContentValues(byte[] data, int offset, int length, long crc, long commonId, int priority);
+
+    /**
+     * 批量保存记录。超出容量后由写入线程在后台淘汰，这里只在后台淘汰明显跟不上时才同步淘汰
+     *
+     * @param records 记录
+     * @return 正常返回 0，存储已满时返回 DB_OUT_OF_MEMORY_ERROR
+     */
+    int insert(ContentValues[] records);
+
+    /**
+     * 读取 _id 大于 afterId 的一批数据，不会删除
+     *
+     * @param afterId 从该 _id 之后开始读取，从头读取时传 -1
+     * @param limit 条数限制
+     * @param maxBytes 字节数上限，至少会读取一条数据
+     * @param batch 用于保存结果，会先被清空
+     * @return 读到数据时返回 true
+     */
+    boolean peekBatch(long afterId, int limit, int maxBytes, PFEventBatch batch);
+
+    /**
+     * 确认 _id 在 [firstId, lastId] 范围内的数据已经上报，可以删除。多个范围可能乱序确认
+     *
+     * @param firstId 起始 _id
+     * @param lastId 结束 _id
+     */
+    void ack(long firstId, long lastId);
+
+    /**
+     * @return 已保存的事件条数和字节数
+     */
+    PFQueueDepth count();
+
+    /**
+     * @return 存储容量，单位字节，与 {@link #count()} 中的字节数比较
+     */
+    long capacity();
+
+    /**
+     * 淘汰数据，直到已保存的字节数不超过 targetBytes。
+     * 先淘汰低优先级的数据，再淘汰普通数据，崩溃、注册等重要事件只在没有其他数据时淘汰；
+     * 同一优先级内从最早的数据开始，每次删除一大段
+     *
+     * @param targetBytes 淘汰后的字节数上限
+     * @return 实际淘汰的事件条数
+     */
+    int evict(long targetBytes);
+
+    /**
+     * 删除所有数据
+     */
+    void clear();
+
+    /**
+     * 保存当前版本的静态属性，并删除没有事件引用的旧版本
+     *
+     * @param id 版本号
+     * @param block 以逗号分隔的 "key":value 片段
+     */
+    void saveCommonProperties(long id, byte[] block);
+
+    /**
+     * @param enabled 读取的批次是否使用静态属性信封格式
+     */
+    void setCommonEnvelope(boolean enabled);
+}
@@ -8,11 +8,23 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+
 import com.sensorsdata.analytics.android.sdk.SALog;
 
 class PFProviderHelper {
+    /* 按 _id 范围删除事件的条件，上报成功后使用 */
+    static final String SELECTION_ID_RANGE = "_id BETWEEN ? AND ?";
+    private static final String INSERT_EVENT_SQL = String.format("INSERT INTO %s (%s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?)",
+            PFDbParams.TABLE_EVENTS, PFDbParams.KEY_DATA, PFDbParams.KEY_CREATED_AT, PFDbParams.KEY_CRC, PFDbParams.KEY_COMMON_ID, PFDbParams.KEY_PRIORITY);
+    private static final String DELETE_EVENT_RANGE_SQL = "DELETE FROM " + PFDbParams.TABLE_EVENTS + " WHERE " + SELECTION_ID_RANGE;
     private SQLiteOpenHelper mDbHelper;
+    /* 预编译的语句，数据库重新打开后需要重新编译；语句对象不是线程安全的，使用时对其加锁 */
+    private SQLiteDatabase mStatementDatabase;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mDeleteRangeStatement;
     private Context mContext;
     private boolean isDbWritable = true;
 
@@ -34,6 +46,7 @@ class PFProviderHelper {
     public void appendUri(UriMatcher uriMatcher, String authority) {
         try {
             uriMatcher.addURI(authority, PFDbParams.TABLE_EVENTS, URI_CODE.EVENTS);
+            uriMatcher.addURI(authority, PFDbParams.TABLE_COMMON_PROPERTIES, URI_CODE.COMMON_PROPERTIES);
         } catch (Exception ex) {
             SALog.printStackTrace(ex);
         }
@@ -44,23 +57,160 @@ class PFProviderHelper {
      *
      * @param uri Uri
      * @param values 数据
-     * @return Uri
+     * @return 带新行 _id 的 Uri，写入失败时 _id 为 -1
      */
     public Uri insertEvent(Uri uri, ContentValues values) {
         try {
             SQLiteDatabase database = getWritableDatabase();
             if (database == null || !values.containsKey(PFDbParams.KEY_DATA)
                     || !values.containsKey(PFDbParams.KEY_CREATED_AT)) {
-                return uri;
+                return ContentUris.withAppendedId(uri, -1);
+            }
+            final SQLiteStatement statement = getInsertStatement(database);
+            long d;
+            synchronized (statement) {
+                Object data = values.get(PFDbParams.KEY_DATA);
+                if (data instanceof byte[]) {
+                    statement.bindBlob(1, (byte[]) data);
+                } else {
+                    statement.bindString(1, String.valueOf(data));
+                }
+                statement.bindLong(2, values.getAsLong(PFDbParams.KEY_CREATED_AT));
+                bindLongOrNull(statement, 3, values.getAsLong(PFDbParams.KEY_CRC));
+                bindLongOrNull(statement, 4, values.getAsLong(PFDbParams.KEY_COMMON_ID));
+                Integer priority = values.getAsInteger(PFDbParams.KEY_PRIORITY);
+                statement.bindLong(5, priority != null ? priority : PFDbParams.PRIORITY_NORMAL);
+                d = statement.executeInsert();
+                statement.clearBindings();
             }
-            long d = database.insert(PFDbParams.TABLE_EVENTS, "_id", values);
             return ContentUris.withAppendedId(uri, d);
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
+        return ContentUris.withAppendedId(uri, -1);
+    }
+
+    /**
+     * 保存一个版本的静态属性，版本号由内容决定，已存在时忽略
+     *
+     * @param uri Uri
+     * @param values 数据
+     * @return Uri
+     */
+    public Uri insertCommonProperties(Uri uri, ContentValues values) {
+        try {
+            SQLiteDatabase database = getWritableDatabase();
+            if (database == null || !values.containsKey("_id") || !values.containsKey(PFDbParams.KEY_DATA)) {
+                return uri;
+            }
+            database.insertWithOnConflict(PFDbParams.TABLE_COMMON_PROPERTIES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            return ContentUris.withAppendedId(uri, values.getAsLong("_id"));
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
         return uri;
     }
 
+    /**
+     * 删除静态属性
+     *
+     * @param selection 条件
+     * @param selectionArgs 参数
+     * @return 受影响数
+     */
+    public int deleteCommonProperties(String selection, String[] selectionArgs) {
+        if (!isDbWritable) {
+            return 0;
+        }
+        try {
+            SQLiteDatabase database = getWritableDatabase();
+            if (database != null) {
+                return database.delete(PFDbParams.TABLE_COMMON_PROPERTIES, selection, selectionArgs);
+            }
+        } catch (SQLiteException e) {
+            isDbWritable = false;
+            SALog.printStackTrace(e);
+        }
+        return 0;
+    }
+
+    /**
+     * 在同一个事务中批量插入 Event 埋点数据
+     *
+     * @param uri Uri
+     * @param values 数据
+     * @return 插入的条数
+     */
+    public int bulkInsertEvents(Uri uri, ContentValues[] values) {
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return 0;
+        }
+        int inserted = 0;
+        try {
+            database.beginTransaction();
+            for (ContentValues value : values) {
+                if (ContentUris.parseId(insertEvent(uri, value)) >= 0) {
+                    inserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+            return 0;
+        } finally {
+            try {
+                database.endTransaction();
+            } catch (Exception e) {
+                SALog.printStackTrace(e);
+                // 提交失败时事务回滚，没有数据写入
+                inserted = 0;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * 把 _id 在 [firstId, lastId] 范围内的单条事件合并为一个压缩块：压缩块写入 firstId 所在的行，其余行删除，
+     * 已经读出、正在上报的数据按 _id 范围删除时仍然可以覆盖到这个块
+     *
+     * @param block 压缩块，包含 data、crc、event_count、priority
+     * @param firstId 起始 _id
+     * @param lastId 结束 _id
+     * @return 合并的行数
+     */
+    public int compactEvents(ContentValues block, long firstId, long lastId) {
+        if (!isDbWritable) {
+            return 0;
+        }
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return 0;
+        }
+        try {
+            database.beginTransaction();
+            ContentValues values = new ContentValues(block);
+            values.putNull(PFDbParams.KEY_COMMON_ID);
+            String[] firstArgs = new String[]{String.valueOf(firstId)};
+            if (database.update(PFDbParams.TABLE_EVENTS, values, "_id = ? AND " + PFDbParams.KEY_EVENT_COUNT + " IS NULL", firstArgs) != 1) {
+                return 0;
+            }
+            int deleted = database.delete(PFDbParams.TABLE_EVENTS, "_id > ? AND _id <= ? AND " + PFDbParams.KEY_EVENT_COUNT + " IS NULL",
+                    new String[]{String.valueOf(firstId), String.valueOf(lastId)});
+            database.setTransactionSuccessful();
+            return deleted + 1;
+        } catch (SQLiteException e) {
+            SALog.printStackTrace(e);
+            return 0;
+        } finally {
+            try {
+                database.endTransaction();
+            } catch (Exception e) {
+                SALog.printStackTrace(e);
+            }
+        }
+    }
+
     /**
      * 删除埋点数据
      *
@@ -74,9 +224,21 @@ class PFProviderHelper {
         }
         try {
             SQLiteDatabase database = getWritableDatabase();
-            if (database != null) {
-                return database.delete(PFDbParams.TABLE_EVENTS, selection, selectionArgs);
+            if (database == null) {
+                return 0;
+            }
+            if (SELECTION_ID_RANGE.equals(selection) && selectionArgs != null && selectionArgs.length == 2
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                final SQLiteStatement statement = getDeleteRangeStatement(database);
+                synchronized (statement) {
+                    statement.bindString(1, selectionArgs[0]);
+                    statement.bindString(2, selectionArgs[1]);
+                    int count = statement.executeUpdateDelete();
+                    statement.clearBindings();
+                    return count;
+                }
             }
+            return database.delete(PFDbParams.TABLE_EVENTS, selection, selectionArgs);
         } catch (SQLiteException e) {
             isDbWritable = false;
             SALog.printStackTrace(e);
@@ -112,6 +274,44 @@ class PFProviderHelper {
         return cursor;
     }
 
+    private synchronized SQLiteStatement getInsertStatement(SQLiteDatabase database) {
+        prepareStatements(database);
+        return mInsertStatement;
+    }
+
+    private synchronized SQLiteStatement getDeleteRangeStatement(SQLiteDatabase database) {
+        prepareStatements(database);
+        return mDeleteRangeStatement;
+    }
+
+    /**
+     * 编译插入和按范围删除语句，数据库重新打开后重新编译
+     */
+    private void prepareStatements(SQLiteDatabase database) {
+        if (mStatementDatabase == database && mInsertStatement != null) {
+            return;
+        }
+        if (mInsertStatement != null) {
+            try {
+                mInsertStatement.close();
+                mDeleteRangeStatement.close();
+            } catch (Exception e) {
+                SALog.printStackTrace(e);
+            }
+        }
+        mInsertStatement = database.compileStatement(INSERT_EVENT_SQL);
+        mDeleteRangeStatement = database.compileStatement(DELETE_EVENT_RANGE_SQL);
+        mStatementDatabase = database;
+    }
+
+    private static void bindLongOrNull(SQLiteStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
     /**
      * 获取数据库
      *
@@ -141,5 +341,6 @@ class PFProviderHelper {
      */
     public interface URI_CODE {
         int EVENTS = 1;
+        int COMMON_PROPERTIES = 2;
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据库中缓存事件的条数和字节数。
+ * 启动时通过聚合查询初始化一次，之后按实际写入、删除、淘汰的数据增量更新，不再为了判断是否需要 flush 而查询整张表；
+ * 写入结果与预期不一致或者跨进程访问时重新统计。
+ */
+class PFQueueDepth {
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    void reset(int count, long bytes) {
+        mCount.set(Math.max(0, count));
+        mBytes.set(Math.max(0, bytes));
+    }
+
+    void onInserted(int rows, long bytes) {
+        mCount.addAndGet(rows);
+        mBytes.addAndGet(bytes);
+    }
+
+    void onDeleted(int rows, long bytes) {
+        if (mCount.addAndGet(-rows) < 0) {
+            mCount.set(0);
+        }
+        if (mBytes.addAndGet(-bytes) < 0) {
+            mBytes.set(0);
+        }
+    }
+
+    /**
+     * @return 数据库中的事件条数
+     */
+    int getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return 数据库中事件数据的字节数
+     */
+    long getBytes() {
+        return mBytes.get();
+    }
+}
@@ -18,19 +18,72 @@ package com.sensorsdata.analytics.android.sdk.data;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.sensorsdata.analytics.android.sdk.SALog;
 
 public class PFSQLiteOpenHelper extends SQLiteOpenHelper {
     private static final String TAG = "PF.SQLiteOpenHelper";
-    private static final String CREATE_EVENTS_TABLE =
-            String.format("CREATE TABLE %s (_id INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL, %s INTEGER NOT NULL);", PFDbParams.TABLE_EVENTS, PFDbParams.KEY_DATA, PFDbParams.KEY_CREATED_AT);
-    private static final String EVENTS_TIME_INDEX =
-            String.format("CREATE INDEX IF NOT EXISTS time_idx ON %s (%s);", PFDbParams.TABLE_EVENTS, PFDbParams.KEY_CREATED_AT);
+    /* 不使用 AUTOINCREMENT，省去每次插入时对 sqlite_sequence 的读写；表中有数据时 _id 仍然单调递增 */
+    private static final String CREATE_EVENTS_TABLE = createEventsTable(PFDbParams.TABLE_EVENTS);
+    private static final String EVENTS_TEMP_TABLE = PFDbParams.TABLE_EVENTS + "_new";
+    private static final String ADD_EVENT_COUNT_COLUMN =
+            String.format("ALTER TABLE %s ADD COLUMN %s INTEGER;", PFDbParams.TABLE_EVENTS, PFDbParams.KEY_EVENT_COUNT);
+    private static final String ADD_PRIORITY_COLUMN = String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT %d;",
+            PFDbParams.TABLE_EVENTS, PFDbParams.KEY_PRIORITY, PFDbParams.PRIORITY_NORMAL);
+    private static final String EVENTS_COLUMNS = String.format("_id, %s, %s, %s, %s", PFDbParams.KEY_DATA, PFDbParams.KEY_CREATED_AT, PFDbParams.KEY_CRC, PFDbParams.KEY_COMMON_ID);
+    /* 与闪存页大小一致，只对新建的数据库生效 */
+    private static final int PAGE_SIZE = 4096;
+    /* 页缓存大小，单位为页。读取都是按 _id 顺序扫描，较小的缓存就足够 */
+    private static final int CACHE_SIZE = 256;
+    private static final String ADD_CRC_COLUMN =
+            String.format("ALTER TABLE %s ADD COLUMN %s INTEGER;", PFDbParams.TABLE_EVENTS, PFDbParams.KEY_CRC);
+    private static final String ADD_COMMON_ID_COLUMN =
+            String.format("ALTER TABLE %s ADD COLUMN %s INTEGER;", PFDbParams.TABLE_EVENTS, PFDbParams.KEY_COMMON_ID);
+    private static final String CREATE_COMMON_PROPERTIES_TABLE =
+            String.format("CREATE TABLE IF NOT EXISTS %s (_id INTEGER PRIMARY KEY, %s BLOB NOT NULL, %s INTEGER NOT NULL);", PFDbParams.TABLE_COMMON_PROPERTIES, PFDbParams.KEY_DATA, PFDbParams.KEY_CREATED_AT);
 
     public PFSQLiteOpenHelper(Context context) {
         super(context, PFDbParams.DATABASE_NAME, null, PFDbParams.DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // 写入不再阻塞读取，提交时只追加 WAL 文件
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    private static String createEventsTable(String tableName) {
+        return String.format("CREATE TABLE %s (_id INTEGER PRIMARY KEY, %s TEXT NOT NULL, %s INTEGER NOT NULL, %s INTEGER, %s INTEGER, %s INTEGER, %s INTEGER NOT NULL DEFAULT %d);",
+                tableName, PFDbParams.KEY_DATA, PFDbParams.KEY_CREATED_AT, PFDbParams.KEY_CRC, PFDbParams.KEY_COMMON_ID, PFDbParams.KEY_EVENT_COUNT,
+                PFDbParams.KEY_PRIORITY, PFDbParams.PRIORITY_NORMAL);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        try {
+            db.execSQL("PRAGMA page_size = " + PAGE_SIZE);
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        try {
+            boolean walEnabled = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                walEnabled = db.isWriteAheadLoggingEnabled();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                walEnabled = db.enableWriteAheadLogging();
+            }
+            db.execSQL("PRAGMA cache_size = " + CACHE_SIZE);
+            if (walEnabled) {
+                // 只有 WAL 模式下 NORMAL 不会损坏数据库，断电时最多丢失最后几次提交；回滚日志模式保持默认的 FULL
+                db.execSQL("PRAGMA synchronous = NORMAL");
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
     }
 
     @Override
@@ -38,16 +91,38 @@ public class PFSQLiteOpenHelper extends SQLiteOpenHelper {
         SALog.i(TAG, "Creating a new Sensors Analytics DB");
 
         db.execSQL(CREATE_EVENTS_TABLE);
-        db.execSQL(EVENTS_TIME_INDEX);
+        db.execSQL(CREATE_COMMON_PROPERTIES_TABLE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        SALog.i(TAG, "Upgrading app, replacing PF Analytics DB");
+        SALog.i(TAG, "Upgrading app, upgrading PF Analytics DB from " + oldVersion + " to " + newVersion);
 
-        db.execSQL(String.format("DROP TABLE IF EXISTS %s", PFDbParams.TABLE_EVENTS));
-        db.execSQL(CREATE_EVENTS_TABLE);
-        db.execSQL(EVENTS_TIME_INDEX);
+        if (oldVersion < 2) {
+            // 保留已缓存的数据，旧数据的 crc 列为空，读取时按旧格式校验
+            db.execSQL(ADD_CRC_COLUMN);
+        }
+        if (oldVersion < 3) {
+            // 已缓存的数据 common_id 为空，静态属性仍然内联在 data 中
+            db.execSQL(ADD_COMMON_ID_COLUMN);
+            db.execSQL(CREATE_COMMON_PROPERTIES_TABLE);
+        }
+        if (oldVersion < 4) {
+            // 去掉 AUTOINCREMENT 和没有使用的 time_idx 索引：在升级事务中重建表并拷贝数据，_id 保持不变
+            db.execSQL(createEventsTable(EVENTS_TEMP_TABLE));
+            db.execSQL(String.format("INSERT INTO %s (%s) SELECT %s FROM %s;", EVENTS_TEMP_TABLE, EVENTS_COLUMNS, EVENTS_COLUMNS, PFDbParams.TABLE_EVENTS));
+            db.execSQL("DROP TABLE " + PFDbParams.TABLE_EVENTS);
+            db.execSQL(String.format("ALTER TABLE %s RENAME TO %s;", EVENTS_TEMP_TABLE, PFDbParams.TABLE_EVENTS));
+        } else {
+            // 重建的表已经包含新增的列，版本 4 及之后的表需要单独添加
+            if (oldVersion < 5) {
+                db.execSQL(ADD_EVENT_COUNT_COLUMN);
+            }
+            if (oldVersion < 6) {
+                // 已缓存的数据按普通优先级处理
+                db.execSQL(ADD_PRIORITY_COLUMN);
+            }
+        }
     }
 
     @Override
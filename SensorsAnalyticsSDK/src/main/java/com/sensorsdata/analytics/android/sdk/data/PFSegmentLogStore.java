@@ -0,0 +1,679 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+
+import com.sensorsdata.analytics.android.sdk.SALog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射分段文件的事件存储引擎，只在尾部追加、从头部按顺序消费。
+ * 每个段文件大小固定，记录格式为：长度(4) + CRC32(4) + 静态属性版本号(8) + 事件数据，长度最后写入，作为记录完成的标记；
+ * 静态属性版本号是 CRC32，高位不会用到，其中一位用来标记崩溃、注册等重要事件。
+ * _id 为记录的位置：段序号 &lt;&lt; 32 | 段内偏移。读游标保存在 cursor 文件中，游标越过整个段后直接删除段文件，
+ * 启动时从游标开始校验所有记录，丢弃进程崩溃时写了一半的记录。
+ * 只支持单进程访问，通过文件锁保证，其他进程需要使用 SQLite 引擎。
+ */
+final class PFSegmentLogStore implements PFEventStore {
+    private static final String TAG = "PF.SegmentLogStore";
+    static final String DIRECTORY_NAME = "pinefiele_log";
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    /* 本地缓存上限值，与 SQLite 引擎一致，默认为 32MB */
+    static final long DEFAULT_MAX_CACHE_SIZE = 32 * 1024 * 1024L;
+    private static final int HEADER_SIZE = 16;
+    /* 重要事件的标记，保存在静态属性版本号的高位 */
+    private static final long CRITICAL_FLAG = 1L << 62;
+    /* 段已写满的标记，之后的内容无效 */
+    private static final int SEALED = -1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMMON_PREFIX = "common-";
+    private static final String CURSOR_FILE = "cursor";
+    private static final String LOCK_FILE = "lock";
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    /* 段序号 -> 映射的段文件 */
+    private final TreeMap<Long, MappedByteBuffer> mSegments = new TreeMap<>();
+    private final PFQueueDepth mQueueDepth = new PFQueueDepth();
+    /* 已经确认、但前面还有未确认数据的范围：firstId -> lastId，乱序确认时使用，不持久化 */
+    private final TreeMap<Long, Long> mAcked = new TreeMap<>();
+    private final Map<Long, byte[]> mCommonBlocks = new HashMap<>();
+    /* 最近一次读取的静态属性，版本号由内容计算，内容不会变化；连续的记录通常引用同一版本，避免逐条装箱查表 */
+    private long mLastCommonId;
+    private byte[] mLastCommonBlock;
+    /* 启动时仍被记录引用的静态属性版本 */
+    private final Set<Long> mReferencedCommonIds = new HashSet<>();
+    private final CRC32 mCrc32 = new CRC32();
+    private RandomAccessFile mLockFile;
+    private FileLock mLock;
+    private MappedByteBuffer mCursor;
+    private byte[] mScratch = new byte[4096];
+    /* 第一条未确认记录的位置 */
+    private long mHead;
+    private long mWriteSegment;
+    private int mWriteOffset;
+    private volatile boolean mCommonEnvelope = false;
+
+    private PFSegmentLogStore(File directory, int segmentSize, long maxCacheSize) {
+        this.mDirectory = directory;
+        this.mSegmentSize = segmentSize;
+        this.mMaxSegments = (int) Math.max(2, maxCacheSize / segmentSize);
+    }
+
+    /**
+     * 打开存储目录并完成崩溃恢复
+     *
+     * @param directory 存储目录
+     * @param segmentSize 段文件大小
+     * @param maxCacheSize 所有段文件的总大小上限，超出时淘汰最早的段
+     * @return PFSegmentLogStore
+     * @throws IOException 目录不可用或者被其他进程占用
+     */
+    static PFSegmentLogStore open(File directory, int segmentSize, long maxCacheSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        PFSegmentLogStore store = new PFSegmentLogStore(directory, segmentSize, maxCacheSize);
+        try {
+            store.lock();
+            store.recover();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void lock() throws IOException {
+        mLockFile = new RandomAccessFile(new File(mDirectory, LOCK_FILE), "rw");
+        try {
+            mLock = mLockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            mLock = null;
+        }
+        if (mLock == null) {
+            throw new IOException(mDirectory + " is used by another store");
+        }
+    }
+
+    /**
+     * 释放文件锁，之后不能再使用
+     */
+    synchronized void close() {
+        try {
+            if (mLock != null) {
+                mLock.release();
+            }
+            if (mLockFile != null) {
+                mLockFile.close();
+            }
+        } catch (IOException e) {
+            SALog.printStackTrace(e);
+        }
+        mLock = null;
+        mLockFile = null;
+    }
+
+    private void recover() throws IOException {
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long seq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        mSegments.put(seq, null);
+                    } catch (NumberFormatException e) {
+                        SALog.i(TAG, "Unknown file " + name);
+                    }
+                }
+            }
+        }
+        mCursor = map(new File(mDirectory, CURSOR_FILE), HEADER_SIZE);
+        long head = mCursor.getLong(0);
+        if (mCursor.getLong(8) != ~head) {
+            head = 0;
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.put(head >>> 32, null);
+        }
+        // 游标之前的段已经全部确认
+        if (mSegments.containsKey(head >>> 32)) {
+            deleteSegmentsBefore(head >>> 32);
+        } else {
+            Long first = mSegments.ceilingKey(head >>> 32);
+            head = (first != null ? first : mSegments.lastKey()) << 32;
+            deleteSegmentsBefore(head >>> 32);
+        }
+        for (Long seq : mSegments.keySet()) {
+            mSegments.put(seq, map(segmentFile(seq), mSegmentSize));
+        }
+        mWriteSegment = mSegments.lastKey();
+        int count = 0;
+        long bytes = 0;
+        for (Map.Entry<Long, MappedByteBuffer> entry : mSegments.entrySet()) {
+            final long seq = entry.getKey();
+            final MappedByteBuffer segment = entry.getValue();
+            int offset = seq == (head >>> 32) ? (int) head : 0;
+            while (true) {
+                int length = offset + HEADER_SIZE <= mSegmentSize ? segment.getInt(offset) : SEALED;
+                if (length == SEALED || (length == 0 && seq != mWriteSegment)) {
+                    break;
+                }
+                if (length == 0) {
+                    // 写入位置
+                    break;
+                }
+                if (length < 0 || offset + HEADER_SIZE + length > mSegmentSize
+                        || crc32(segment, offset + HEADER_SIZE, length) != (segment.getInt(offset + 4) & 0xffffffffL)) {
+                    SALog.i(TAG, "Drop damaged records from segment " + seq + " at " + offset);
+                    if (seq == mWriteSegment) {
+                        // 写了一半的记录，清空之后的内容，从这里继续写入
+                        for (int i = offset; i < mSegmentSize; i++) {
+                            segment.put(i, (byte) 0);
+                        }
+                    } else {
+                        segment.putInt(offset, SEALED);
+                    }
+                    break;
+                }
+                count++;
+                bytes += length;
+                long commonId = segment.getLong(offset + 8) & ~CRITICAL_FLAG;
+                if (commonId > 0) {
+                    mReferencedCommonIds.add(commonId);
+                }
+                offset += HEADER_SIZE + length;
+            }
+            if (seq == mWriteSegment) {
+                mWriteOffset = offset;
+            }
+        }
+        mQueueDepth.reset(count, bytes);
+        setHead(head);
+    }
+
+    @Override
+    public ContentValues buildContentValues(byte[] data, int offset, int length, long crc, long commonId, int priority) {
+        ContentValues cv = new ContentValues();
+        cv.put(PFDbParams.KEY_DATA, Arrays.copyOfRange(data, offset, offset + length));
+        cv.put(PFDbParams.KEY_CRC, crc);
+        if (commonId > 0) {
+            cv.put(PFDbParams.KEY_COMMON_ID, commonId);
+        }
+        cv.put(PFDbParams.KEY_PRIORITY, priority);
+        return cv;
+    }
+
+    @Override
+    public synchronized int insert(ContentValues[] records) {
+        if (mLock == null) {
+            return PFDbParams.DB_OUT_OF_MEMORY_ERROR;
+        }
+        try {
+            long firstSegment = mWriteSegment;
+            for (ContentValues values : records) {
+                Object value = values.get(PFDbParams.KEY_DATA);
+                if (!(value instanceof byte[])) {
+                    continue;
+                }
+                byte[] data = (byte[]) value;
+                if (HEADER_SIZE + data.length > mSegmentSize) {
+                    SALog.i(TAG, "Event is too large to store: " + data.length);
+                    continue;
+                }
+                Long crc = values.getAsLong(PFDbParams.KEY_CRC);
+                Long commonId = values.getAsLong(PFDbParams.KEY_COMMON_ID);
+                Integer priority = values.getAsInteger(PFDbParams.KEY_PRIORITY);
+                if (mWriteOffset + HEADER_SIZE + data.length > mSegmentSize) {
+                    rollSegment();
+                }
+                MappedByteBuffer segment = mSegments.get(mWriteSegment);
+                final int offset = mWriteOffset;
+                segment.putInt(offset + 4, crc != null ? crc.intValue() : (int) crc32(data));
+                segment.putLong(offset + 8, (commonId != null ? commonId : 0)
+                        | (priority != null && priority >= PFDbParams.PRIORITY_CRITICAL ? CRITICAL_FLAG : 0));
+                segment.position(offset + HEADER_SIZE);
+                segment.put(data, 0, data.length);
+                // 长度最后写入，读到非 0 的长度时记录已经完整
+                segment.putInt(offset, data.length);
+                mWriteOffset += HEADER_SIZE + data.length;
+                mQueueDepth.onInserted(1, data.length);
+            }
+            // 与 SQLite 提交事务时的 fsync 对应
+            for (MappedByteBuffer segment : mSegments.tailMap(firstSegment).values()) {
+                segment.force();
+            }
+        } catch (IOException e) {
+            SALog.printStackTrace(e);
+            return PFDbParams.DB_OUT_OF_MEMORY_ERROR;
+        }
+        return 0;
+    }
+
+    private void rollSegment() throws IOException {
+        MappedByteBuffer segment = mSegments.get(mWriteSegment);
+        if (mWriteOffset + 4 <= mSegmentSize) {
+            segment.putInt(mWriteOffset, SEALED);
+        }
+        // 超出总大小时淘汰一个段，至少保留正在写入的段
+        while (mSegments.size() >= mMaxSegments) {
+            evictSegment(selectVictim());
+        }
+        mWriteSegment++;
+        mWriteOffset = 0;
+        mSegments.put(mWriteSegment, map(segmentFile(mWriteSegment), mSegmentSize));
+    }
+
+    @Override
+    public synchronized boolean peekBatch(long afterId, int limit, int maxBytes, PFEventBatch batch) {
+        batch.reset();
+        if (mLock == null) {
+            return false;
+        }
+        long position = afterId < mHead ? mHead : afterId + HEADER_SIZE + recordLength(afterId);
+        final PFBatchAssembler assembler = new PFBatchAssembler(batch, maxBytes, mCommonEnvelope);
+        int rows = 0;
+        while (rows < limit) {
+            final long id = seek(position);
+            if (id < 0) {
+                break;
+            }
+            Map.Entry<Long, Long> acked = mAcked.floorEntry(id);
+            if (acked != null && acked.getValue() >= id) {
+                position = acked.getValue() + HEADER_SIZE + recordLength(acked.getValue());
+                continue;
+            }
+            final MappedByteBuffer segment = mSegments.get(id >>> 32);
+            final int offset = (int) id;
+            final int length = segment.getInt(offset);
+            if (mScratch.length < length) {
+                mScratch = new byte[Math.max(length, mScratch.length * 2)];
+            }
+            segment.position(offset + HEADER_SIZE);
+            segment.get(mScratch, 0, length);
+            mCrc32.reset();
+            mCrc32.update(mScratch, 0, length);
+            if (length > 1 && mCrc32.getValue() == (segment.getInt(offset + 4) & 0xffffffffL)) {
+                final long commonId = segment.getLong(offset + 8) & ~CRITICAL_FLAG;
+                final byte[] commonBlock = commonId > 0 ? getCommonBlock(commonId) : null;
+                if (!assembler.append(mScratch, 0, length, commonId, commonBlock)) {
+                    // 超出字节上限，这一条留给下一批
+                    break;
+                }
+            } else {
+                SALog.i(TAG, "Skip damaged record " + id);
+            }
+            batch.onRowRead(id);
+            rows++;
+            position = id + HEADER_SIZE + length;
+        }
+        assembler.finish();
+        return batch.getLastId() >= 0;
+    }
+
+    @Override
+    public synchronized void ack(long firstId, long lastId) {
+        if (mLock == null || lastId < mHead) {
+            return;
+        }
+        int count = 0;
+        long bytes = 0;
+        long position = Math.max(firstId, mHead);
+        while (true) {
+            final long id = seek(position);
+            if (id < 0 || id > lastId) {
+                break;
+            }
+            Map.Entry<Long, Long> acked = mAcked.floorEntry(id);
+            if (acked != null && acked.getValue() >= id) {
+                position = acked.getValue() + HEADER_SIZE + recordLength(acked.getValue());
+                continue;
+            }
+            final int length = recordLength(id);
+            count++;
+            bytes += length;
+            position = id + HEADER_SIZE + length;
+        }
+        mQueueDepth.onDeleted(count, bytes);
+        mAcked.put(Math.max(firstId, mHead), lastId);
+        // 从头部开始连续确认的范围可以推进读游标
+        long head = mHead;
+        while (!mAcked.isEmpty()) {
+            final long first = seek(head);
+            Map.Entry<Long, Long> range = mAcked.firstEntry();
+            if (first < 0 || range.getKey() > first) {
+                break;
+            }
+            mAcked.remove(range.getKey());
+            long next = range.getValue() + HEADER_SIZE + recordLength(range.getValue());
+            if (next > head) {
+                head = next;
+            }
+        }
+        setHead(head);
+    }
+
+    @Override
+    public PFQueueDepth count() {
+        return mQueueDepth;
+    }
+
+    @Override
+    public long capacity() {
+        return (long) mMaxSegments * mSegmentSize;
+    }
+
+    @Override
+    public synchronized int evict(long targetBytes) {
+        if (mLock == null) {
+            return 0;
+        }
+        int evicted = 0;
+        while (mQueueDepth.getBytes() > targetBytes && mSegments.firstKey() < mWriteSegment) {
+            evicted += evictSegment(selectVictim());
+        }
+        return evicted;
+    }
+
+    /**
+     * 选择淘汰的段：分段日志只能整段删除，优先选择最早的不包含未确认重要事件的段，都包含时选择最早的段
+     *
+     * @return 段序号，不会是正在写入的段
+     */
+    private long selectVictim() {
+        for (long seq : mSegments.keySet()) {
+            if (seq >= mWriteSegment) {
+                break;
+            }
+            if (scan(seq << 32, (seq + 1) << 32)[2] == 0) {
+                return seq;
+            }
+        }
+        return mSegments.firstKey();
+    }
+
+    /**
+     * 删除一个段中所有未确认的记录，最早的段直接移动读游标，中间的段删除段文件，读取时会跳过
+     *
+     * @return 删除的记录条数
+     */
+    private int evictSegment(long seq) {
+        final long[] live = scan(seq << 32, (seq + 1) << 32);
+        SALog.i(TAG, "There is not enough space left to store events, so will delete segment " + seq
+                + " with " + live[0] + " events");
+        mQueueDepth.onDeleted((int) live[0], live[1]);
+        if (seq == mSegments.firstKey()) {
+            setHead(Math.max((seq + 1) << 32, mHead));
+        } else {
+            mSegments.remove(seq);
+            if (!segmentFile(seq).delete()) {
+                SALog.i(TAG, "Failed to delete segment " + seq);
+            }
+        }
+        return (int) live[0];
+    }
+
+    /**
+     * 统计 [from, to) 范围内未确认的记录
+     *
+     * @return [条数, 字节数, 重要事件条数]
+     */
+    private long[] scan(long from, long to) {
+        final long[] result = new long[3];
+        long current = Math.max(from, mHead);
+        while (true) {
+            final long id = seek(current);
+            if (id < 0 || id >= to) {
+                break;
+            }
+            Map.Entry<Long, Long> acked = mAcked.floorEntry(id);
+            if (acked != null && acked.getValue() >= id) {
+                current = acked.getValue() + HEADER_SIZE + recordLength(acked.getValue());
+                continue;
+            }
+            final int length = recordLength(id);
+            result[0]++;
+            result[1] += length;
+            if ((mSegments.get(id >>> 32).getLong((int) id + 8) & CRITICAL_FLAG) != 0) {
+                result[2]++;
+            }
+            current = id + HEADER_SIZE + length;
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (mLock == null) {
+            return;
+        }
+        try {
+            mWriteSegment++;
+            mWriteOffset = 0;
+            mSegments.put(mWriteSegment, map(segmentFile(mWriteSegment), mSegmentSize));
+            mAcked.clear();
+            mQueueDepth.reset(0, 0);
+            setHead(mWriteSegment << 32);
+        } catch (IOException e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    @Override
+    public synchronized void saveCommonProperties(long id, byte[] block) {
+        mCommonBlocks.put(id, block);
+        File file = new File(mDirectory, COMMON_PREFIX + id);
+        if (!file.exists()) {
+            File temp = new File(mDirectory, COMMON_PREFIX + id + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.write(block);
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!temp.renameTo(file)) {
+                    SALog.i(TAG, "Failed to save common properties " + id);
+                }
+            } catch (IOException e) {
+                SALog.printStackTrace(e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(COMMON_PREFIX) && !name.equals(file.getName())) {
+                try {
+                    long commonId = Long.parseLong(name.substring(COMMON_PREFIX.length()));
+                    if (mReferencedCommonIds.contains(commonId)) {
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // 写了一半的临时文件
+                }
+                if (!new File(mDirectory, name).delete()) {
+                    SALog.i(TAG, "Failed to delete " + name);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setCommonEnvelope(boolean enabled) {
+        mCommonEnvelope = enabled;
+    }
+
+    private byte[] getCommonBlock(long id) {
+        if (id == mLastCommonId && mLastCommonBlock != null) {
+            return mLastCommonBlock;
+        }
+        byte[] block = mCommonBlocks.get(id);
+        if (block != null) {
+            mLastCommonId = id;
+            mLastCommonBlock = block;
+            return block;
+        }
+        File file = new File(mDirectory, COMMON_PREFIX + id);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            block = new byte[(int) file.length()];
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < block.length) {
+                int count = in.read(block, read, block.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+            mCommonBlocks.put(id, block);
+            mLastCommonId = id;
+            mLastCommonBlock = block;
+            return block;
+        } catch (IOException e) {
+            SALog.printStackTrace(e);
+        } finally {
+            closeQuietly(in);
+        }
+        return null;
+    }
+
+    /**
+     * 定位 position 处或者之后的第一条记录，position 处是段尾时跳到下一段
+     *
+     * @return 记录的 _id，没有更多记录时返回 -1
+     */
+    private long seek(long position) {
+        long seq = position >>> 32;
+        int offset = (int) position;
+        while (true) {
+            MappedByteBuffer segment = mSegments.get(seq);
+            if (segment == null) {
+                Long next = mSegments.higherKey(seq);
+                if (next == null) {
+                    return -1;
+                }
+                seq = next;
+                offset = 0;
+                continue;
+            }
+            if (seq == mWriteSegment) {
+                return offset < mWriteOffset ? (seq << 32) | offset : -1;
+            }
+            int length = offset + HEADER_SIZE <= mSegmentSize ? segment.getInt(offset) : SEALED;
+            if (length <= 0) {
+                seq++;
+                offset = 0;
+                continue;
+            }
+            return (seq << 32) | offset;
+        }
+    }
+
+    private int recordLength(long id) {
+        MappedByteBuffer segment = mSegments.get(id >>> 32);
+        return segment != null ? segment.getInt((int) id) : 0;
+    }
+
+    /**
+     * 更新读游标，并删除游标之前的段文件
+     */
+    private void setHead(long head) {
+        mHead = head;
+        while (!mAcked.isEmpty() && mAcked.firstEntry().getValue() < head) {
+            mAcked.pollFirstEntry();
+        }
+        mCursor.putLong(0, head);
+        mCursor.putLong(8, ~head);
+        deleteSegmentsBefore(Math.min(head >>> 32, mWriteSegment));
+    }
+
+    private void deleteSegmentsBefore(long seq) {
+        while (!mSegments.isEmpty() && mSegments.firstKey() < seq) {
+            long oldest = mSegments.pollFirstEntry().getKey();
+            if (!segmentFile(oldest).delete()) {
+                SALog.i(TAG, "Failed to delete segment " + oldest);
+            }
+        }
+    }
+
+    private File segmentFile(long seq) {
+        return new File(mDirectory, String.format("%020d", seq) + SEGMENT_SUFFIX);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // 映射超出文件长度的部分时文件会被扩展，新增的内容为 0
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private long crc32(MappedByteBuffer segment, int offset, int length) {
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        segment.position(offset);
+        segment.get(mScratch, 0, length);
+        mCrc32.reset();
+        mCrc32.update(mScratch, 0, length);
+        return mCrc32.getValue();
+    }
+
+    private long crc32(byte[] data) {
+        mCrc32.reset();
+        mCrc32.update(data, 0, data.length);
+        return mCrc32.getValue();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                SALog.printStackTrace(e);
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.annotation.SuppressLint;
 import android.app.Application;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
@@ -135,6 +136,39 @@ public class AppInfoUtils {
         return TextUtils.isEmpty(currentProcess) || mainProcessName.equals(currentProcess);
     }
 
+    /**
+     * 判断 App 是否在 AndroidManifest 中声明了运行在其他进程中的组件
+     *
+     * @param context Context
+     * @return 是否多进程，无法获取组件信息时返回 true
+     */
+    public static boolean hasMultipleProcesses(Context context) {
+        try {
+            final String mainProcessName = getMainProcessName(context);
+            final PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(),
+                    PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES | PackageManager.GET_RECEIVERS | PackageManager.GET_PROVIDERS);
+            return hasOtherProcess(packageInfo.activities, mainProcessName)
+                    || hasOtherProcess(packageInfo.services, mainProcessName)
+                    || hasOtherProcess(packageInfo.receivers, mainProcessName)
+                    || hasOtherProcess(packageInfo.providers, mainProcessName);
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return true;
+    }
+
+    private static boolean hasOtherProcess(ComponentInfo[] components, String mainProcessName) {
+        if (components == null) {
+            return false;
+        }
+        for (ComponentInfo component : components) {
+            if (!TextUtils.isEmpty(component.processName) && !component.processName.equals(mainProcessName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * 获取 Application 标签的 Bundle 对象
      * @param context Context
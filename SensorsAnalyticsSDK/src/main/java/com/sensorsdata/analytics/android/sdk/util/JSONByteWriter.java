@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * 直接输出 UTF-8 字节的 JSON 写入器，缓冲区可以反复复用。
+ * 字符串转义、数字格式与 org.json 的 JSONObject#toString() 保持一致，保证输出内容与原来完全相同。
+ */
+public final class JSONByteWriter {
+    private static final int MAX_DEPTH = 8;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] LONG_MIN = "-9223372036854775808".getBytes();
+
+    private byte[] mBuffer;
+    private int mLength;
+    private int mDepth;
+    private final boolean[] mArray = new boolean[MAX_DEPTH];
+    private final boolean[] mNonEmpty = new boolean[MAX_DEPTH];
+
+    public JSONByteWriter(int initialCapacity) {
+        mBuffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * 把单个属性编码成 "key":value 片段，配合 {@link #rawMember(byte[], int, int)} 使用
+     *
+     * @param name key
+     * @param value 属性值
+     * @return 编码后的字节
+     */
+    public static byte[] encodeMember(String name, Object value) {
+        JSONByteWriter writer = new JSONByteWriter(64);
+        writer.beginObject().name(name).value(value);
+        // 去掉开头的 '{'
+        return Arrays.copyOfRange(writer.mBuffer, 1, writer.mLength);
+    }
+
+    /**
+     * 清空已写入的内容，保留缓冲区
+     */
+    public void reset() {
+        mLength = 0;
+        mDepth = 0;
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public JSONByteWriter beginObject() {
+        beforeValue();
+        writeByte('{');
+        push(false);
+        return this;
+    }
+
+    public JSONByteWriter endObject() {
+        mDepth--;
+        writeByte('}');
+        return this;
+    }
+
+    public JSONByteWriter beginArray() {
+        beforeValue();
+        writeByte('[');
+        push(true);
+        return this;
+    }
+
+    public JSONByteWriter endArray() {
+        mDepth--;
+        writeByte(']');
+        return this;
+    }
+
+    /**
+     * 写入对象的 key
+     *
+     * @param name key
+     * @return JSONByteWriter
+     */
+    public JSONByteWriter name(String name) {
+        if (mNonEmpty[mDepth - 1]) {
+            writeByte(',');
+        }
+        mNonEmpty[mDepth - 1] = true;
+        writeString(name);
+        writeByte(':');
+        return this;
+    }
+
+    /**
+     * 写入已经编码好的 "key":value 片段
+     *
+     * @param member 已编码的内容
+     * @param offset 起始位置
+     * @param length 长度
+     * @return JSONByteWriter
+     */
+    public JSONByteWriter rawMember(byte[] member, int offset, int length) {
+        if (mNonEmpty[mDepth - 1]) {
+            writeByte(',');
+        }
+        mNonEmpty[mDepth - 1] = true;
+        write(member, offset, length);
+        return this;
+    }
+
+    public JSONByteWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            write(NULL, 0, NULL.length);
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JSONByteWriter value(long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    public JSONByteWriter value(boolean value) {
+        beforeValue();
+        if (value) {
+            write(TRUE, 0, TRUE.length);
+        } else {
+            write(FALSE, 0, FALSE.length);
+        }
+        return this;
+    }
+
+    /**
+     * 按照 org.json 的规则写入任意属性值
+     *
+     * @param value 属性值
+     * @return JSONByteWriter
+     */
+    public JSONByteWriter value(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            beforeValue();
+            write(NULL, 0, NULL.length);
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Boolean) {
+            value(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            writeNumber((Number) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                value(array.opt(i));
+            }
+            endArray();
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            beginObject();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                name(key).value(object.opt(key));
+            }
+            endObject();
+        } else {
+            value(value.toString());
+        }
+        return this;
+    }
+
+    private void writeNumber(Number number) {
+        beforeValue();
+        if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            writeLong(number.longValue());
+            return;
+        }
+        double doubleValue = number.doubleValue();
+        long longValue = number.longValue();
+        if (number instanceof Double && doubleValue == 0 && 1 / doubleValue < 0) {
+            writeAscii("-0");
+        } else if (doubleValue == (double) longValue) {
+            writeLong(longValue);
+        } else {
+            writeAscii(number.toString());
+        }
+    }
+
+    private void beforeValue() {
+        if (mDepth > 0 && mArray[mDepth - 1]) {
+            if (mNonEmpty[mDepth - 1]) {
+                writeByte(',');
+            }
+            mNonEmpty[mDepth - 1] = true;
+        }
+    }
+
+    private void push(boolean array) {
+        mArray[mDepth] = array;
+        mNonEmpty[mDepth] = false;
+        mDepth++;
+    }
+
+    private void writeString(String value) {
+        writeByte('"');
+        final int length = value.length();
+        ensureCapacity(length + 2);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    writeByte('\\');
+                    writeByte(c);
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                case '\b':
+                    writeByte('\\');
+                    writeByte('b');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                case '\f':
+                    writeByte('\\');
+                    writeByte('f');
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        writeByte('\\');
+                        writeByte('u');
+                        writeByte(HEX[(c >> 12) & 0xF]);
+                        writeByte(HEX[(c >> 8) & 0xF]);
+                        writeByte(HEX[(c >> 4) & 0xF]);
+                        writeByte(HEX[c & 0xF]);
+                    } else if (c < 0x80) {
+                        writeByte(c);
+                    } else if (c < 0x800) {
+                        writeByte(0xC0 | (c >> 6));
+                        writeByte(0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        writeByte(0xF0 | (codePoint >> 18));
+                        writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                        writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                        writeByte(0x80 | (codePoint & 0x3F));
+                    } else if (c >= '\uD800' && c <= '\uDFFF') {
+                        // 与 String#getBytes("UTF-8") 一致，不成对的代理字符替换为 '?'
+                        writeByte('?');
+                    } else {
+                        writeByte(0xE0 | (c >> 12));
+                        writeByte(0x80 | ((c >> 6) & 0x3F));
+                        writeByte(0x80 | (c & 0x3F));
+                    }
+                    break;
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(LONG_MIN, 0, LONG_MIN.length);
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+        int start = mLength;
+        do {
+            mBuffer[mLength++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        // 倒序写入后再翻转
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte tmp = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = tmp;
+        }
+    }
+
+    private void writeAscii(String value) {
+        final int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mLength++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) {
+        if (mLength == mBuffer.length) {
+            ensureCapacity(1);
+        }
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, mBuffer, mLength, length);
+        mLength += length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length << 1, mLength + extra));
+        }
+    }
+}
@@ -59,6 +59,8 @@ public class NetworkUtils {
 
     private static SABroadcastReceiver mReceiver;
     private static SANetworkCallbackImpl networkCallback;
+    /* 网络是否断开过，断开后恢复时触发 flush */
+    private static volatile boolean mNetworkLost = false;
 
     /**
      * 获取网络类型
@@ -365,7 +367,13 @@ public class NetworkUtils {
             String action = intent.getAction();
             if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
                 NetworkUtils.cleanNetworkTypeCache();
-                SensorsDataAPI.getInstance().flush();
+                // 注册时收到的粘性广播不触发 flush，只在网络断开后恢复时 flush
+                if (!isNetworkAvailable(context)) {
+                    mNetworkLost = true;
+                } else if (mNetworkLost) {
+                    mNetworkLost = false;
+                    SensorsDataAPI.getInstance().flush();
+                }
                 SALog.i(TAG, "SABroadcastReceiver is receiving ConnectivityManager.CONNECTIVITY_ACTION broadcast");
             }
         }
@@ -378,7 +386,11 @@ public class NetworkUtils {
         public void onAvailable(Network network) {
             super.onAvailable(network);
             NetworkUtils.cleanNetworkTypeCache();
-            SensorsDataAPI.getInstance().flush();
+            // 注册时的回调不触发 flush，只在网络断开后恢复时 flush
+            if (mNetworkLost) {
+                mNetworkLost = false;
+                SensorsDataAPI.getInstance().flush();
+            }
             SALog.i(TAG, "onAvailable is calling");
         }
 
@@ -393,6 +405,7 @@ public class NetworkUtils {
         public void onLost(Network network) {
             super.onLost(network);
             NetworkUtils.cleanNetworkTypeCache();
+            mNetworkLost = true;
             SALog.i(TAG, "onLost is calling");
         }
     }
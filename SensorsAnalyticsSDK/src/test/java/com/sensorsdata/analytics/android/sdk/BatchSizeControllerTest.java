@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 批次大小按 AIMD 调整，并受网络类型上限约束。
+ * 用例中 onResult 不带字节数，压缩率保持初始的 1/4，未压缩的字节上限等于目标值的 4 倍
+ */
+public class BatchSizeControllerTest {
+    private static final int KB = 1024;
+    private static final int RATIO = 4;
+
+    @Test
+    public void fastSuccessGrowsLinearlyUpToNetworkCeiling() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("WIFI", false, false);
+        assertEquals(16 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 100, true);
+        assertEquals(24 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 100, true);
+        assertEquals(32 * KB * RATIO, controller.getByteLimit());
+        for (int i = 0; i < 100; i++) {
+            controller.onResult(0, 0, 100, true);
+        }
+        assertEquals(512 * KB * RATIO, controller.getByteLimit());
+    }
+
+    @Test
+    public void failureHalvesDownToMinimum() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("WIFI", false, false);
+        controller.onResult(0, 0, 100, true);
+        controller.onResult(0, 0, 100, true);
+        controller.onResult(0, 0, 0, false);
+        assertEquals(16 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 0, false);
+        assertEquals(8 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 0, false);
+        // 错误率超过一半后只发送最小批次
+        assertEquals(BatchSizeController.MIN_TARGET_BYTES * RATIO, controller.getByteLimit());
+        for (int i = 0; i < 10; i++) {
+            controller.onResult(0, 0, 0, false);
+        }
+        assertEquals(BatchSizeController.MIN_TARGET_BYTES * RATIO, controller.getByteLimit());
+    }
+
+    @Test
+    public void slowResponseHalvesAndModerateResponseHolds() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("WIFI", false, false);
+        controller.onResult(0, 0, 15 * 1000, true);
+        assertEquals(8 * KB * RATIO, controller.getByteLimit());
+        // RTT 在正常和过高之间时保持不变
+        controller.onResult(0, 0, 5 * 1000, true);
+        assertEquals(8 * KB * RATIO, controller.getByteLimit());
+    }
+
+    @Test
+    public void networkTypeClampsTarget() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("4G", false, false);
+        for (int i = 0; i < 100; i++) {
+            controller.onResult(0, 0, 100, true);
+        }
+        assertEquals(128 * KB * RATIO, controller.getByteLimit());
+        controller.beginFlush("3G", false, false);
+        assertEquals(32 * KB * RATIO, controller.getByteLimit());
+        controller.beginFlush("2G", false, false);
+        assertEquals(8 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 100, true);
+        assertEquals(8 * KB * RATIO, controller.getByteLimit());
+        // 网络变好后从当前值开始增加，不会直接跳到新的上限
+        controller.beginFlush("WIFI", false, false);
+        assertEquals(8 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 100, true);
+        assertEquals(16 * KB * RATIO, controller.getByteLimit());
+        // 未知网络类型按 3G 处理
+        controller.beginFlush(null, false, false);
+        assertEquals(16 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 100, true);
+        controller.onResult(0, 0, 100, true);
+        controller.onResult(0, 0, 100, true);
+        assertEquals(32 * KB * RATIO, controller.getByteLimit());
+    }
+
+    @Test
+    public void drainModeStartsAtCeilingAndStillHalvesOnFailure() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("4G", false, true);
+        assertEquals(128 * KB * RATIO, controller.getByteLimit());
+        // 排空模式下 RTT 过高也不减小
+        controller.onResult(0, 0, 15 * 1000, true);
+        assertEquals(128 * KB * RATIO, controller.getByteLimit());
+        controller.onResult(0, 0, 0, false);
+        assertEquals(64 * KB * RATIO, controller.getByteLimit());
+    }
+
+    @Test
+    public void throughputLimitsTarget() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("WIFI", false, false);
+        // 压缩后 1 KB 用了 1 秒，5 秒内只能发送 5 KB；观测到的压缩率与初始值相同
+        controller.onResult(4 * KB, KB, 1000, true);
+        assertEquals(5 * KB * RATIO, controller.getByteLimit());
+    }
+
+    @Test
+    public void debugModeSendsOneEventPerBatch() {
+        BatchSizeController controller = new BatchSizeController();
+        controller.beginFlush("WIFI", true, false);
+        assertEquals(1, controller.getRowLimit());
+        assertEquals(BatchSizeController.MAX_RAW_BYTES, controller.getByteLimit());
+        controller.beginFlush("WIFI", false, false);
+        assertEquals(BatchSizeController.MAX_ROWS, controller.getRowLimit());
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.data.PFEventBatch;
+import com.sensorsdata.analytics.android.sdk.exceptions.ResponseErrorException;
+import com.sensorsdata.analytics.android.sdk.util.Base64Coder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 使用本地 HttpServer 验证上报请求：各种格式的请求体、415 回退、重定向地址缓存和连接复用
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BatchUploaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String EVENTS = "[{\"event\":\"$AppClick\",\"_track_id\":1},{\"event\":\"$AppEnd\",\"_track_id\":2}]";
+
+    private HttpServer mServer;
+    private final List<Request> mRequests = new ArrayList<>();
+    /* 每个路径依次返回的状态码，用完后返回 200 */
+    private final Map<String, LinkedList<Response>> mResponses = new HashMap<>();
+    private BatchUploader mUploader;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Request request = new Request();
+                request.path = exchange.getRequestURI().getPath();
+                request.remotePort = exchange.getRemoteAddress().getPort();
+                request.contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                request.crc = exchange.getRequestHeaders().getFirst(BatchUploader.HEADER_CRC);
+                request.body = readAll(exchange.getRequestBody());
+                Response response;
+                synchronized (mRequests) {
+                    mRequests.add(request);
+                    LinkedList<Response> queue = mResponses.get(request.path);
+                    response = queue == null || queue.isEmpty() ? new Response(200, null) : queue.removeFirst();
+                }
+                if (response.location != null) {
+                    exchange.getResponseHeaders().set("Location", url(response.location));
+                }
+                if (response.emptyBody) {
+                    exchange.sendResponseHeaders(response.code, -1);
+                } else {
+                    byte[] body = "{}".getBytes(UTF_8);
+                    exchange.sendResponseHeaders(response.code, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUploader = new BatchUploader();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void formBodyDecodesToEvents() throws Exception {
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        Request request = requests().get(0);
+        assertNull(request.contentEncoding);
+        assertNull(request.crc);
+        assertEquals(EVENTS, decodeForm(request.body));
+    }
+
+    @Test
+    public void gzipBodyDecodesToSameEventsAsFormBody() throws Exception {
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        mUploader.send(url("/sa"), encode(SAUploadMode.GZIP_JSON));
+        Request form = requests().get(0);
+        Request gzip = requests().get(1);
+        assertEquals("gzip", gzip.contentEncoding);
+        assertEquals(decodeForm(form.body), new String(gunzip(gzip.body), UTF_8));
+        assertEquals(String.valueOf(crc32(EVENTS.getBytes(UTF_8))), gzip.crc);
+    }
+
+    @Test
+    public void dictionaryBodyDecodesToEvents() throws Exception {
+        mUploader.send(url("/sa"), encode(SAUploadMode.DEFLATE_DICTIONARY));
+        Request request = requests().get(0);
+        assertEquals("deflate", request.contentEncoding);
+        assertEquals(EVENTS, new String(inflate(request.body), UTF_8));
+        assertEquals(String.valueOf(crc32(EVENTS.getBytes(UTF_8))), request.crc);
+    }
+
+    @Test
+    public void gzipFallsBackToFormOn415() throws Exception {
+        assertFalse(mUploader.isBinaryRejected());
+        respond("/sa", 415, null);
+        mUploader.send(url("/sa"), encode(SAUploadMode.GZIP_JSON));
+        assertTrue(mUploader.isBinaryRejected());
+        // 已经编码好的二进制批次也转换成表单格式发送
+        mUploader.send(url("/sa"), encode(SAUploadMode.GZIP_JSON));
+        List<Request> requests = requests();
+        assertEquals(3, requests.size());
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        for (int i = 1; i < requests.size(); i++) {
+            assertNull(requests.get(i).contentEncoding);
+            assertEquals(EVENTS, decodeForm(requests.get(i).body));
+        }
+    }
+
+    @Test
+    public void dictionaryFallsBackToFormOn415() throws Exception {
+        respond("/sa", 415, null);
+        mUploader.send(url("/sa"), encode(SAUploadMode.DEFLATE_DICTIONARY));
+        List<Request> requests = requests();
+        assertEquals(2, requests.size());
+        assertEquals("deflate", requests.get(0).contentEncoding);
+        assertEquals(EVENTS, decodeForm(requests.get(1).body));
+    }
+
+    @Test
+    public void errorResponseWithoutBodyIsReported() throws Exception {
+        for (int code : new int[]{400, 413, 503}) {
+            synchronized (mRequests) {
+                mResponses.put("/sa", new LinkedList<Response>());
+                mResponses.get("/sa").add(new Response(code, null, true));
+            }
+            try {
+                mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+                fail("expected ResponseErrorException");
+            } catch (ResponseErrorException e) {
+                assertEquals(code, e.getHttpCode());
+            }
+        }
+    }
+
+    @Test
+    public void redirectLocationIsCached() throws Exception {
+        respond("/sa", 307, "/sa2");
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        assertEquals("[/sa, /sa2, /sa2]", paths().toString());
+    }
+
+    @Test
+    public void cachedLocationRedirectingAgainRetriesOriginalPath() throws Exception {
+        respond("/sa", 307, "/sa2");
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        // 缓存的地址也开始重定向，服务端地址改为重定向到新的地址
+        respond("/sa2", 302, "/sa3");
+        respond("/sa", 307, "/sa3");
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        assertEquals("[/sa, /sa2, /sa2, /sa, /sa3, /sa3]", paths().toString());
+    }
+
+    @Test
+    public void failedCachedLocationIsInvalidated() throws Exception {
+        respond("/sa", 307, "/sa2");
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        respond("/sa2", 500, null);
+        try {
+            mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+            fail("expected ResponseErrorException");
+        } catch (ResponseErrorException e) {
+            assertEquals(500, e.getHttpCode());
+        }
+        mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+        assertEquals("[/sa, /sa2, /sa2, /sa]", paths().toString());
+    }
+
+    @Test
+    public void connectionIsReused() throws Exception {
+        respond("/sa", 307, "/sa2");
+        respond("/sa2", 500, null);
+        for (int i = 0; i < 10; i++) {
+            try {
+                mUploader.send(url("/sa"), encode(SAUploadMode.FORM));
+            } catch (ResponseErrorException e) {
+                assertEquals(500, e.getHttpCode());
+            }
+        }
+        // 重定向和错误响应读完后同样可以复用连接
+        Set<Integer> ports = new HashSet<>();
+        for (Request request : requests()) {
+            ports.add(request.remotePort);
+        }
+        assertEquals(11, requests().size());
+        assertEquals(1, ports.size());
+    }
+
+    private EncodedBatch encode(int uploadMode) throws IOException {
+        PFEventBatch raw = new PFEventBatch();
+        byte[] data = EVENTS.getBytes(UTF_8);
+        raw.write(data, 0, data.length);
+        EncodedBatch batch = new EncodedBatch();
+        batch.encode(raw, new UploadBodyWriter(), uploadMode);
+        return batch;
+    }
+
+    /**
+     * 解码表单格式的请求体，同时校验 crc 参数
+     */
+    private static String decodeForm(byte[] body) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : new String(body, UTF_8).split("&")) {
+            int index = pair.indexOf('=');
+            params.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+        }
+        assertEquals("1", params.get("gzip"));
+        String dataList = params.get("data_list");
+        assertEquals(String.valueOf(dataList.hashCode()), params.get("crc"));
+        return new String(gunzip(Base64Coder.decode(dataList)), UTF_8);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] inflate(byte[] data) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+            int count = inflater.inflate(buffer);
+            if (count == 0 && inflater.needsDictionary()) {
+                byte[] dictionary = CompressionDictionary.get();
+                inflater.setDictionary(dictionary);
+            }
+            out.write(buffer, 0, count);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    private static long crc32(byte[] data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        return crc32.getValue();
+    }
+
+    private void respond(String path, int code, String location) {
+        synchronized (mRequests) {
+            LinkedList<Response> queue = mResponses.get(path);
+            if (queue == null) {
+                queue = new LinkedList<>();
+                mResponses.put(path, queue);
+            }
+            queue.add(new Response(code, location));
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private List<Request> requests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    private List<String> paths() {
+        List<String> paths = new ArrayList<>();
+        for (Request request : requests()) {
+            paths.add(request.path);
+        }
+        return paths;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Request {
+        String path;
+        int remotePort;
+        String contentEncoding;
+        String crc;
+        byte[] body;
+    }
+
+    private static final class Response {
+        final int code;
+        final String location;
+        final boolean emptyBody;
+
+        Response(int code, String location) {
+            this(code, location, false);
+        }
+
+        Response(int code, String location, boolean emptyBody) {
+            this.code = code;
+            this.location = location;
+            this.emptyBody = emptyBody;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventIdGeneratorTest {
+    private static final int THREADS = 4;
+    private static final int IDS_PER_THREAD = 20000;
+
+    @Test
+    public void idsAreSafeForDoubleParsing() {
+        for (int i = 0; i < 1000; i++) {
+            long id = EventIdGenerator.getInstance().nextId();
+            assertTrue(id > 0 && id <= EventIdGenerator.MAX_ID);
+            assertEquals(id, (long) (double) id);
+        }
+    }
+
+    @Test
+    public void idsAreUniqueAndIncreasingAcrossThreads() throws InterruptedException {
+        final long[][] ids = new long[THREADS][IDS_PER_THREAD];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long[] out = ids[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < out.length; i++) {
+                        out[i] = EventIdGenerator.getInstance().nextId();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<Long> unique = new HashSet<>();
+        for (long[] out : ids) {
+            for (int i = 0; i < out.length; i++) {
+                if (i > 0) {
+                    assertTrue(out[i] > out[i - 1]);
+                }
+                assertTrue(out[i] <= EventIdGenerator.MAX_ID);
+                unique.add(out[i]);
+            }
+        }
+        assertEquals(THREADS * IDS_PER_THREAD, unique.size());
+    }
+}
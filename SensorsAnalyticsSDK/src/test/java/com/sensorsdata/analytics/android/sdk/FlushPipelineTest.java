@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.content.Context;
+
+import com.sensorsdata.analytics.android.sdk.data.PFDataContentProvider;
+import com.sensorsdata.analytics.android.sdk.data.PFDbManager;
+import com.sensorsdata.analytics.android.sdk.data.PFDbParams;
+import com.sensorsdata.analytics.android.sdk.data.PFEventBatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * flush 流水线的各阶段衔接：读取受有界队列限制不会超前过多，编码或上报线程池不可用时结束本次 flush 且不删除数据；
+ * 并发的请求乱序完成时每个批次只删除自己的 _id 范围
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class FlushPipelineTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private PFDbManager mDbManager;
+    private FlushPipeline mPipeline;
+    private BatchSizeController mSizing;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        PFDbParams.getInstance(context.getPackageName());
+        Robolectric.setupContentProvider(PFDataContentProvider.class, context.getPackageName() + ".PFDataContentProvider");
+        // PFDbManager 是单例，每个用例使用新的数据库
+        Field instance = PFDbManager.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+        mDbManager = PFDbManager.getInstance(context, context.getPackageName());
+        mDbManager.deleteAllEvents();
+        mPipeline = new FlushPipeline(mDbManager);
+        mSizing = new BatchSizeController();
+        // debug 模式下每批 1 条，便于控制批次数
+        mSizing.beginFlush("WIFI", true, false);
+    }
+
+    @Test
+    public void sendsEveryBatchInOrder() {
+        addEvents(20);
+        final AtomicInteger expected = new AtomicInteger(1);
+        int sent = mPipeline.run(mSizing, 100, SAUploadMode.GZIP_JSON, 1, new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                // 并发数为 1 时按读取顺序发送
+                assertEquals(expected.getAndIncrement(), batch.firstId);
+                mDbManager.deleteEventRange(batch.firstId, batch.lastId);
+                return true;
+            }
+        });
+        assertEquals(20, sent);
+        assertEquals(0, mDbManager.getQueuedEventCount());
+    }
+
+    @Test
+    public void outOfOrderCompletionDeletesOnlyItsOwnRange() {
+        addEvents(10);
+        final CountDownLatch thirdDone = new CountDownLatch(1);
+        final List<Long> completed = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicBoolean secondKept = new AtomicBoolean(false);
+        int sent = mPipeline.run(mSizing, 100, SAUploadMode.GZIP_JSON, 4, new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                if (batch.firstId == 2) {
+                    // 第 2 批等第 3 批完成之后才完成
+                    await(thirdDone);
+                }
+                mDbManager.deleteEventRange(batch.firstId, batch.lastId);
+                completed.add(batch.firstId);
+                if (batch.firstId == 3) {
+                    // 第 3 批的确认不能删除仍在发送的第 2 批
+                    secondKept.set(remainingIds().contains(2L));
+                    thirdDone.countDown();
+                }
+                return true;
+            }
+        });
+        assertEquals(10, sent);
+        assertEquals(10, completed.size());
+        assertTrue(completed.indexOf(3L) < completed.indexOf(2L));
+        assertTrue(secondKept.get());
+        assertEquals(0, mDbManager.getQueuedEventCount());
+    }
+
+    @Test
+    public void failedMiddleBatchKeepsLaterAcks() {
+        addEvents(10);
+        final CountDownLatch thirdDone = new CountDownLatch(1);
+        final Set<Long> acked = Collections.synchronizedSet(new HashSet<Long>());
+        int sent = mPipeline.run(mSizing, 100, SAUploadMode.GZIP_JSON, 4, new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                if (batch.firstId == 2) {
+                    await(thirdDone);
+                    return false;
+                }
+                mDbManager.deleteEventRange(batch.firstId, batch.lastId);
+                acked.add(batch.firstId);
+                if (batch.firstId == 3) {
+                    thirdDone.countDown();
+                }
+                return true;
+            }
+        });
+        assertEquals(acked.size(), sent);
+        assertTrue(acked.contains(1L));
+        assertTrue(acked.contains(3L));
+        // 失败的批次保留，之后已经确认的批次不会因为失败而重发，其余批次在下次 flush 时发送
+        List<Long> remaining = remainingIds();
+        assertTrue(remaining.contains(2L));
+        for (long id = 1; id <= 10; id++) {
+            assertEquals(String.valueOf(id), !acked.contains(id), remaining.contains(id));
+        }
+    }
+
+    @Test
+    public void readerIsBoundedBySlowSender() {
+        // 不超过一个压缩块的条数，每条事件是一个批次
+        addEvents(30);
+        final int concurrency = 1;
+        int sent = mPipeline.run(mSizing, 100, SAUploadMode.GZIP_JSON, concurrency, new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                sleep(5);
+                return true;
+            }
+        });
+        assertEquals(30, sent);
+        // 编码完成的批次都会回收到缓存池中，缓存池的大小就是同时存在的批次数的峰值：
+        // 队列中的批次、读取线程正在放入的批次、等待发送的批次和正在发送的批次
+        int peak = mPipeline.mEncodedPool.size();
+        assertTrue("peak " + peak, peak <= mPipeline.mDepth + 2 + concurrency);
+    }
+
+    @Test
+    public void stopsWhenEncoderPoolIsShutDown() {
+        addEvents(10);
+        mPipeline.mEncoderExecutor.shutdownNow();
+        final AtomicInteger calls = new AtomicInteger();
+        int sent = runWithTimeout(new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                calls.incrementAndGet();
+                return true;
+            }
+        });
+        assertEquals(0, sent);
+        assertEquals(0, calls.get());
+        assertEquals(10, mDbManager.getQueuedEventCount());
+    }
+
+    @Test
+    public void stopsWhenUploadPoolIsShutDown() {
+        addEvents(10);
+        mPipeline.mUploadExecutor.shutdownNow();
+        final AtomicInteger calls = new AtomicInteger();
+        int sent = runWithTimeout(new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                calls.incrementAndGet();
+                return true;
+            }
+        });
+        assertEquals(0, sent);
+        assertEquals(0, calls.get());
+        assertEquals(10, mDbManager.getQueuedEventCount());
+        // 被拒绝的请求已经归还，流水线恢复后可以继续使用
+        FlushPipeline pipeline = new FlushPipeline(mDbManager);
+        assertEquals(10, pipeline.run(mSizing, 100, SAUploadMode.GZIP_JSON, 2, new FlushPipeline.BatchSender() {
+            @Override
+            public boolean send(EncodedBatch batch) {
+                return true;
+            }
+        }));
+    }
+
+    /**
+     * 在其他线程中执行 flush，超时说明流水线阻塞在某个队列上
+     */
+    private int runWithTimeout(final FlushPipeline.BatchSender sender) {
+        final AtomicInteger sent = new AtomicInteger(-1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sent.set(mPipeline.run(mSizing, 100, SAUploadMode.GZIP_JSON, 2, sender));
+            }
+        });
+        thread.start();
+        try {
+            thread.join(TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertTrue("flush did not finish", !thread.isAlive());
+        return sent.get();
+    }
+
+    private void addEvents(int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] data = String.format("{\"event\":\"$AppClick\",\"index\":%d}", i).getBytes(UTF_8);
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, data.length);
+            mDbManager.addEvent(data, 0, data.length, crc32.getValue(), 0, PFDbParams.PRIORITY_NORMAL, true);
+        }
+    }
+
+    /**
+     * @return 数据库中剩余事件的 _id，每批 1 条
+     */
+    private List<Long> remainingIds() {
+        List<Long> ids = new ArrayList<>();
+        PFEventBatch batch = new PFEventBatch();
+        long afterId = -1;
+        while (mDbManager.queryEventBatch(afterId, 1, 1024 * 1024, batch)) {
+            ids.add(batch.getFirstId());
+            afterId = batch.getLastId();
+        }
+        return ids;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
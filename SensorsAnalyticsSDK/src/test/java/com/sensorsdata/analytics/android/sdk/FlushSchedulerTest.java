@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 入库触发的 flush 按阈值、最长等待时间和最小间隔安排，多次触发合并为一次
+ */
+public class FlushSchedulerTest {
+    private static final long MIN_INTERVAL = 15 * 1000;
+    private static final long MAX_LATENCY = 60 * 1000;
+    private static final long MAX_PENDING_BYTES = 64 * 1024;
+    private static final int BULK_SIZE = 100;
+
+    @Test
+    public void bulkSizeFiresImmediately() {
+        FlushScheduler scheduler = newScheduler();
+        assertEquals(MAX_LATENCY, scheduler.onEventQueued(BULK_SIZE - 1, 100, 1000));
+        assertEquals(0, scheduler.onEventQueued(BULK_SIZE, 100, 2000));
+    }
+
+    @Test
+    public void pendingBytesFireImmediately() {
+        FlushScheduler scheduler = newScheduler();
+        assertEquals(0, scheduler.onEventQueued(1, MAX_PENDING_BYTES, 1000));
+    }
+
+    @Test
+    public void firstEventSetsTheLatencyDeadline() {
+        FlushScheduler scheduler = newScheduler();
+        assertEquals(MAX_LATENCY, scheduler.onEventQueued(1, 100, 1000));
+        // 之后入库的事件不会推迟第一条事件的发送时间
+        assertEquals(-1, scheduler.onEventQueued(2, 200, 30 * 1000));
+        assertEquals(-1, scheduler.onEventQueued(3, 300, 61 * 1000));
+    }
+
+    @Test
+    public void laterAndEqualRequestsAreCoalesced() {
+        FlushScheduler scheduler = newScheduler();
+        assertEquals(10 * 1000, scheduler.requestAt(11 * 1000, 1000));
+        assertEquals(-1, scheduler.requestAt(11 * 1000, 2000));
+        assertEquals(-1, scheduler.requestAt(20 * 1000, 2000));
+        // 更早的请求替换原来的安排
+        assertEquals(3000, scheduler.requestAt(5000, 2000));
+        assertEquals(-1, scheduler.onEventQueued(1, 100, 3000));
+        assertEquals(0, scheduler.onEventQueued(BULK_SIZE, 100, 4000));
+    }
+
+    @Test
+    public void minIntervalIsKeptAfterFlush() {
+        FlushScheduler scheduler = newScheduler();
+        scheduler.onFlush(10 * 1000);
+        // 达到阈值也要等到距离上一次 flush 满足最小间隔
+        assertEquals(MIN_INTERVAL - 1000, scheduler.onEventQueued(BULK_SIZE, 100, 11 * 1000));
+        assertEquals(-1, scheduler.onEventQueued(BULK_SIZE + 1, 100, 12 * 1000));
+        assertEquals(-1, scheduler.requestAt(12 * 1000, 12 * 1000));
+        scheduler.onFlush(25 * 1000);
+        // 已经满足最小间隔时立即发送
+        assertEquals(0, scheduler.onEventQueued(BULK_SIZE, 100, 45 * 1000));
+    }
+
+    @Test
+    public void flushClearsTheSchedule() {
+        FlushScheduler scheduler = newScheduler();
+        assertEquals(MAX_LATENCY, scheduler.onEventQueued(1, 100, 0));
+        scheduler.onFlush(1000);
+        assertEquals(MAX_LATENCY, scheduler.onEventQueued(1, 100, 2000));
+    }
+
+    @Test
+    public void maxLatencyIsNotShorterThanMinInterval() {
+        FlushScheduler scheduler = new FlushScheduler(30 * 1000, 10 * 1000, MAX_PENDING_BYTES, BULK_SIZE);
+        assertEquals(30 * 1000, scheduler.onEventQueued(1, 100, 0));
+    }
+
+    private static FlushScheduler newScheduler() {
+        return new FlushScheduler(MIN_INTERVAL, MAX_LATENCY, MAX_PENDING_BYTES, BULK_SIZE);
+    }
+}
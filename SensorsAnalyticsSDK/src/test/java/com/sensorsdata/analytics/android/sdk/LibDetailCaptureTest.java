@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LibDetailCaptureTest {
+
+    @Test
+    public void onlyFirstAndSampledEventsWalkTheStack() {
+        LibDetailCapture capture = new LibDetailCapture(SALibDetailMode.SAMPLED, 4);
+        assertNotNull(capture.capture("$AppClick", null));
+        // 未被采样的事件不能复用之前获取到的调用位置，它可能来自另一个调用点
+        assertNull(capture.capture("$AppClick", null));
+        assertNull(capture.capture("$AppClick", null));
+        assertNotNull(capture.capture("$AppClick", null));
+        assertNotNull(capture.capture("BuyProduct", null));
+        assertNull(capture.capture("BuyProduct", null));
+        assertNull(capture.capture("$AppClick", null));
+    }
+
+    @Test
+    public void otherModesDoNotWalkTheStack() {
+        assertNull(new LibDetailCapture(SALibDetailMode.OFF, 1).capture("$AppClick", null));
+        assertNull(new LibDetailCapture(SALibDetailMode.PLUGIN, 1).capture("$AppClick", null));
+    }
+
+    @Test
+    public void suppliedLibDetailIsKeptInEveryMode() {
+        String supplied = "com.example.MainActivity##onClick##MainActivity.java##42";
+        for (int mode : new int[]{SALibDetailMode.OFF, SALibDetailMode.SAMPLED, SALibDetailMode.PLUGIN}) {
+            LibDetailCapture capture = new LibDetailCapture(mode, 1);
+            assertEquals(supplied, capture.resolve(supplied, "captured"));
+            assertEquals(supplied, capture.resolve(supplied, null));
+        }
+    }
+
+    @Test
+    public void capturedLibDetailIsUsedUnlessOff() {
+        assertEquals("captured", new LibDetailCapture(SALibDetailMode.SAMPLED, 1).resolve(null, "captured"));
+        assertEquals("captured", new LibDetailCapture(SALibDetailMode.SAMPLED, 1).resolve("", "captured"));
+        assertNull(new LibDetailCapture(SALibDetailMode.OFF, 1).resolve("", "captured"));
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 配置项的默认值和取值范围
+ */
+public class SAConfigOptionsTest {
+
+    @Test
+    public void debugModeIsOffByDefault() {
+        SAConfigOptions previous = SensorsDataAPI.mSAConfigOptions;
+        try {
+            // debug 模式下每条事件立即单独发送、失败也删除，默认不能开启
+            SensorsDataAPI.mSAConfigOptions = new SAConfigOptions().clone();
+            assertFalse(SensorsDataAPI.getInstance().isDebugMode());
+            SensorsDataAPI.mSAConfigOptions = new SAConfigOptions().setDebugMode(true).clone();
+            assertTrue(SensorsDataAPI.getInstance().isDebugMode());
+        } finally {
+            SensorsDataAPI.mSAConfigOptions = previous;
+        }
+    }
+
+    @Test
+    public void flushIntervalHasLowerBound() {
+        SAConfigOptions options = new SAConfigOptions();
+        assertEquals(FlushScheduler.DEFAULT_MIN_INTERVAL_MS, options.mFlushInterval);
+        assertEquals(FlushScheduler.DEFAULT_MAX_LATENCY_MS, options.mFlushMaxLatency);
+        options.setFlushInterval(1000);
+        assertEquals(FlushScheduler.MIN_INTERVAL_LOWER_BOUND_MS, options.mFlushInterval);
+    }
+}
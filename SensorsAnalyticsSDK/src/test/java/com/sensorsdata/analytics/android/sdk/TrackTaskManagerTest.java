@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 队列已满时任务入队最多等待配置的阻塞时间，消费线程自己入队时不等待
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TrackTaskManagerTest {
+    private static final int CAPACITY = 4;
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private TrackTaskManager mTaskManager;
+
+    @Before
+    public void setUp() {
+        mTaskManager = TrackTaskManager.getInstance();
+        drain();
+    }
+
+    @Test
+    public void taskWaitsAtMostBlockTimeout() {
+        mTaskManager.configure(CAPACITY, SAQueuePolicy.DROP_NEWEST, 50);
+        fill();
+        long rejected = mTaskManager.getMetrics().getRejectedTaskCount();
+        long start = System.nanoTime();
+        assertFalse(mTaskManager.addTrackEventTask(NOOP));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("waited " + elapsedMs + " ms", elapsedMs >= 40 && elapsedMs < 2000);
+        assertEquals(rejected + 1, mTaskManager.getMetrics().getRejectedTaskCount());
+        assertEquals(0, mTaskManager.getMetrics().getDroppedCount());
+    }
+
+    @Test
+    public void taskIsEnqueuedWhenConsumerCatchesUp() throws InterruptedException {
+        mTaskManager.configure(CAPACITY, SAQueuePolicy.DROP_NEWEST, 5000);
+        fill();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                TrackEventRingBuffer ringBuffer = mTaskManager.getRingBuffer();
+                ringBuffer.claim(ringBuffer.getConsumedSequence() + 1);
+            }
+        });
+        consumer.start();
+        assertTrue(mTaskManager.addTrackEventTask(NOOP));
+        consumer.join();
+    }
+
+    @Test
+    public void consumerThreadDoesNotWait() throws InterruptedException {
+        mTaskManager.configure(CAPACITY, SAQueuePolicy.DROP_NEWEST, 10000);
+        fill();
+        final AtomicBoolean enqueued = new AtomicBoolean(true);
+        final AtomicLong elapsedMs = new AtomicLong();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TrackEventRingBuffer ringBuffer = mTaskManager.getRingBuffer();
+                // 等待已发布的序号会立即返回，同时把当前线程标记为消费线程
+                ringBuffer.waitFor(ringBuffer.getConsumedSequence() + 1);
+                long start = System.nanoTime();
+                enqueued.set(mTaskManager.addTrackEventTask(NOOP));
+                elapsedMs.set((System.nanoTime() - start) / 1000000);
+            }
+        });
+        consumer.start();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertFalse(enqueued.get());
+        assertTrue("waited " + elapsedMs.get() + " ms", elapsedMs.get() < 1000);
+    }
+
+    private void fill() {
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(mTaskManager.addTrackEventTask(NOOP));
+        }
+    }
+
+    private void drain() {
+        TrackEventRingBuffer ringBuffer = mTaskManager.getRingBuffer();
+        while (ringBuffer.size() > 0) {
+            ringBuffer.claim(ringBuffer.getConsumedSequence() + 1);
+        }
+    }
+}
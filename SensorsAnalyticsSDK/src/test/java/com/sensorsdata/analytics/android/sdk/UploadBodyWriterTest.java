@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * gzip 与预置字典两种二进制请求体的往返校验，以及不同批次大小下的压缩率和 CPU 耗时对比
+ */
+public class UploadBodyWriterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int[] BATCH_ROWS = {1, 10, 50, 200};
+    private static final int BENCHMARK_ITERATIONS = 200;
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    @Test
+    public void dictionaryBodyRoundTrips() throws IOException {
+        UploadBodyWriter writer = new UploadBodyWriter();
+        for (int rows : BATCH_ROWS) {
+            byte[] data = batch(rows);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            writer.writeDictionaryBody(data, 0, data.length, compressed);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            writer.inflateDictionaryBody(compressed.toByteArray(), 0, compressed.size(), inflated);
+            assertArrayEquals(data, inflated.toByteArray());
+        }
+    }
+
+    @Test
+    public void gzipBodyRoundTrips() throws IOException {
+        UploadBodyWriter writer = new UploadBodyWriter();
+        for (int rows : BATCH_ROWS) {
+            byte[] data = batch(rows);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            writer.writeGzipBody(data, 0, data.length, writer.crc32(data, 0, data.length), compressed);
+            assertArrayEquals(data, gunzip(compressed.toByteArray()));
+        }
+    }
+
+    /**
+     * 在 JVM 上测得的 CPU 耗时只用于比较两种格式的相对差异，真机上的绝对值不同
+     */
+    @Test
+    public void benchmarkGzipAgainstDictionary() throws IOException {
+        UploadBodyWriter writer = new UploadBodyWriter();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int rows : BATCH_ROWS) {
+            byte[] data = batch(rows);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            long gzipCost = Long.MAX_VALUE;
+            long dictionaryCost = Long.MAX_VALUE;
+            int gzipSize = 0;
+            int dictionarySize = 0;
+            // 交替执行多轮取最小值，排除预热和执行顺序的影响
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                long start = cpuTime(threads);
+                for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                    out.reset();
+                    writer.writeGzipBody(data, 0, data.length, writer.crc32(data, 0, data.length), out);
+                }
+                gzipCost = Math.min(gzipCost, cpuTime(threads) - start);
+                gzipSize = out.size();
+                start = cpuTime(threads);
+                for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                    out.reset();
+                    writer.writeDictionaryBody(data, 0, data.length, out);
+                }
+                dictionaryCost = Math.min(dictionaryCost, cpuTime(threads) - start);
+                dictionarySize = out.size();
+            }
+            System.out.println(String.format("Upload body %d rows, %d bytes: gzip %d bytes (%.1f%%) %d us, dictionary %d bytes (%.1f%%) %d us",
+                    rows, data.length, gzipSize, gzipSize * 100.0 / data.length, gzipCost / BENCHMARK_ITERATIONS / 1000,
+                    dictionarySize, dictionarySize * 100.0 / data.length, dictionaryCost / BENCHMARK_ITERATIONS / 1000));
+            if (rows == 1) {
+                // 预置字典主要改善单条和小批次的压缩率
+                assertTrue(dictionarySize < gzipSize);
+            }
+        }
+    }
+
+    private static long cpuTime(ThreadMXBean threads) {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * 生成与 SDK 上报内容相近的 JSON 数组，事件名、页面和时间等字段随事件变化
+     */
+    private static byte[] batch(int rows) {
+        final String[] events = {"$AppClick", "$AppViewScreen", "$AppStart", "$AppEnd", "BuyProduct"};
+        final Random random = new Random(rows);
+        long time = 1666000000000L;
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < rows; i++) {
+            time += random.nextInt(5000);
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(String.format("{\"_track_id\":%d,\"time\":%d,\"type\":\"track\",\"distinct_id\":\"7d2f0c1e8a3b4f56\","
+                            + "\"lib\":{\"$lib_method\":\"autoTrack\",\"$lib\":\"Android\",\"$lib_version\":\"6.2.7\"},"
+                            + "\"properties\":{\"$os\":\"Android\",\"$brand\":\"Xiaomi\",\"$model\":\"M2102J2SC\",\"$manufacturer\":\"Xiaomi\","
+                            + "\"$os_version\":\"12\",\"$app_version\":\"3.4.1\",\"$app_name\":\"Demo\",\"$app_id\":\"com.example.demo\","
+                            + "\"$screen_width\":1080,\"$screen_height\":2340,\"$timezone_offset\":-480,\"$network_type\":\"WIFI\",\"$wifi\":true,"
+                            + "\"$carrier\":\"中国移动\",\"$device_id\":\"a1b2c3d4e5f60718\",\"$is_first_day\":false,"
+                            + "\"$screen_name\":\"com.example.demo.Page%dActivity\",\"$title\":\"页面 %d\","
+                            + "\"$element_id\":\"button_%d\",\"$element_type\":\"Button\",\"$element_content\":\"确定 %d\"},"
+                            + "\"event\":\"%s\",\"_flush_time\":%d}",
+                    random.nextInt(Integer.MAX_VALUE), time, i % 7, i % 7, random.nextInt(30), random.nextInt(100),
+                    events[random.nextInt(events.length)], time + 15000));
+        }
+        return builder.append(']').toString().getBytes(UTF_8);
+    }
+}
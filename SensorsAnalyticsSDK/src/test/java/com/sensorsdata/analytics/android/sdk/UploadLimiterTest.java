@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 并发数从 1 开始，连续成功时逐步增加，失败时减半，不超过设置的上限
+ */
+public class UploadLimiterTest {
+
+    @Test
+    public void growsByOneAfterAFullWindowOfSuccesses() {
+        UploadLimiter limiter = new UploadLimiter();
+        limiter.setMaxConcurrency(4);
+        assertEquals(1, limiter.getLimit());
+        succeed(limiter, 1);
+        assertEquals(2, limiter.getLimit());
+        succeed(limiter, 1);
+        assertEquals(2, limiter.getLimit());
+        succeed(limiter, 1);
+        assertEquals(3, limiter.getLimit());
+        succeed(limiter, 3);
+        assertEquals(4, limiter.getLimit());
+        succeed(limiter, 20);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void failureHalvesTheLimit() {
+        UploadLimiter limiter = new UploadLimiter();
+        limiter.setMaxConcurrency(UploadLimiter.MAX_CONCURRENCY);
+        succeed(limiter, 1 + 2 + 3 + 4 + 5 + 6 + 7);
+        assertEquals(8, limiter.getLimit());
+        fail(limiter);
+        assertEquals(4, limiter.getLimit());
+        fail(limiter);
+        fail(limiter);
+        assertEquals(1, limiter.getLimit());
+        fail(limiter);
+        assertEquals(1, limiter.getLimit());
+        // 失败后重新累计成功次数
+        succeed(limiter, 1);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void maxConcurrencyIsClamped() {
+        UploadLimiter limiter = new UploadLimiter();
+        limiter.setMaxConcurrency(100);
+        succeed(limiter, 200);
+        assertEquals(UploadLimiter.MAX_CONCURRENCY, limiter.getLimit());
+        limiter.setMaxConcurrency(2);
+        assertEquals(2, limiter.getLimit());
+        limiter.setMaxConcurrency(0);
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void cancelDoesNotChangeTheLimit() {
+        UploadLimiter limiter = new UploadLimiter();
+        limiter.setMaxConcurrency(4);
+        succeed(limiter, 1);
+        limiter.acquire();
+        limiter.cancel();
+        assertEquals(2, limiter.getLimit());
+        limiter.awaitIdle();
+    }
+
+    @Test
+    public void acquireBlocksAtTheLimit() throws InterruptedException {
+        final UploadLimiter limiter = new UploadLimiter();
+        limiter.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                limiter.acquire();
+                acquired.countDown();
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        limiter.release(true);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+        limiter.release(true);
+        limiter.awaitIdle();
+    }
+
+    @Test
+    public void awaitIdleWaitsForRequestsInFlight() throws InterruptedException {
+        final UploadLimiter limiter = new UploadLimiter();
+        limiter.acquire();
+        final CountDownLatch idle = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                limiter.awaitIdle();
+                idle.countDown();
+            }
+        });
+        thread.start();
+        assertFalse(idle.await(200, TimeUnit.MILLISECONDS));
+        limiter.release(false);
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    private static void succeed(UploadLimiter limiter, int requests) {
+        for (int i = 0; i < requests; i++) {
+            limiter.acquire();
+            limiter.release(true);
+        }
+    }
+
+    private static void fail(UploadLimiter limiter) {
+        limiter.acquire();
+        limiter.release(false);
+    }
+}
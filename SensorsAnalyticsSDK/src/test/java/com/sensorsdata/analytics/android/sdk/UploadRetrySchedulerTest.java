@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 退避时间的增长、上限和抖动范围，熔断、试探和恢复，以及状态在进程重启后的恢复
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class UploadRetrySchedulerTest {
+    /* 计算退避时间和读取剩余时间之间允许经过的时间 */
+    private static final long ELAPSED_SLOP_MS = 1000;
+    private Context mContext;
+    private UploadRetryScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.getSharedPreferences(UploadRetryScheduler.PREFERENCE_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+        mScheduler = new UploadRetryScheduler(mContext);
+    }
+
+    @Test
+    public void backoffGrowsUntilCapped() {
+        for (int failures = 1; failures <= 12; failures++) {
+            mScheduler.onFailure(false);
+            long expected = Math.min(UploadRetryScheduler.MAX_BACKOFF_MS, UploadRetryScheduler.BASE_BACKOFF_MS << (failures - 1));
+            assertDelayBetween(expected / 2, expected);
+        }
+        // 退避期间入库不触发上报，主动调用 flush() 时仍然发送
+        assertFalse(mScheduler.isFlushAllowed(false));
+        assertTrue(mScheduler.isFlushAllowed(true));
+        assertFalse(mScheduler.isProbing());
+        mScheduler.onSuccess();
+        assertEquals(0, mScheduler.getRetryDelay());
+        assertTrue(mScheduler.isFlushAllowed(false));
+    }
+
+    @Test
+    public void jitterStaysWithinBounds() {
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            mScheduler.onFailure(false);
+            assertDelayBetween(UploadRetryScheduler.BASE_BACKOFF_MS / 2, UploadRetryScheduler.BASE_BACKOFF_MS);
+            delays.add(mScheduler.getRetryDelay() / 100);
+            mScheduler.onSuccess();
+        }
+        // 不同客户端的重试时间需要分散开
+        assertTrue(delays.size() > 10);
+    }
+
+    @Test
+    public void stateSurvivesRestart() {
+        mScheduler.onFailure(false);
+        mScheduler.onFailure(false);
+        mScheduler.onFailure(false);
+        long delay = mScheduler.getRetryDelay();
+        UploadRetryScheduler restarted = new UploadRetryScheduler(mContext);
+        assertTrue(restarted.getRetryDelay() <= delay);
+        assertTrue(restarted.getRetryDelay() >= delay - ELAPSED_SLOP_MS);
+        assertFalse(restarted.isFlushAllowed(false));
+        // 重启后继续累计失败次数
+        restarted.onFailure(false);
+        mScheduler = restarted;
+        assertDelayBetween(UploadRetryScheduler.BASE_BACKOFF_MS * 4, UploadRetryScheduler.BASE_BACKOFF_MS * 8);
+    }
+
+    @Test
+    public void circuitOpensProbesAndCloses() {
+        for (int i = 0; i < UploadRetryScheduler.CIRCUIT_FAILURE_THRESHOLD; i++) {
+            mScheduler.onFailure(true);
+        }
+        assertDelayBetween(UploadRetryScheduler.BASE_OPEN_MS / 2, UploadRetryScheduler.BASE_OPEN_MS);
+        // 熔断期间入库和主动调用 flush() 都不发起请求
+        assertFalse(mScheduler.isFlushAllowed(false));
+        assertFalse(mScheduler.isFlushAllowed(true));
+        assertFalse(mScheduler.isProbing());
+
+        expire();
+        assertTrue(mScheduler.isFlushAllowed(false));
+        assertTrue(mScheduler.isProbing());
+        // 试探失败，以更长的时间再次熔断
+        mScheduler.onFailure(true);
+        assertDelayBetween(UploadRetryScheduler.BASE_OPEN_MS, UploadRetryScheduler.BASE_OPEN_MS * 2);
+        assertFalse(mScheduler.isFlushAllowed(true));
+
+        expire();
+        assertTrue(mScheduler.isProbing());
+        mScheduler.onSuccess();
+        assertFalse(mScheduler.isProbing());
+        assertEquals(0, mScheduler.getRetryDelay());
+        // 恢复后重新计数，一次失败只退避
+        mScheduler.onFailure(true);
+        assertDelayBetween(UploadRetryScheduler.BASE_BACKOFF_MS / 2, UploadRetryScheduler.BASE_BACKOFF_MS);
+        assertTrue(mScheduler.isFlushAllowed(true));
+    }
+
+    @Test
+    public void otherFailuresResetCircuitCount() {
+        for (int i = 0; i < UploadRetryScheduler.CIRCUIT_FAILURE_THRESHOLD - 1; i++) {
+            mScheduler.onFailure(true);
+        }
+        mScheduler.onFailure(false);
+        mScheduler.onFailure(true);
+        assertTrue(mScheduler.getRetryDelay() <= UploadRetryScheduler.MAX_BACKOFF_MS);
+        assertTrue(mScheduler.isFlushAllowed(true));
+    }
+
+    @Test
+    public void onlyServerErrorsCountTowardsCircuit() {
+        for (int code : new int[]{403, 404, 500, 502, 503, 599}) {
+            assertTrue(String.valueOf(code), UploadRetryScheduler.isCircuitFailure(code));
+        }
+        // 没有跟随的重定向和其他客户端错误不熔断
+        for (int code : new int[]{200, 301, 302, 307, 400, 413, 429}) {
+            assertFalse(String.valueOf(code), UploadRetryScheduler.isCircuitFailure(code));
+        }
+    }
+
+    private void assertDelayBetween(long min, long max) {
+        long delay = mScheduler.getRetryDelay();
+        assertTrue(delay + " < " + min, delay >= min - ELAPSED_SLOP_MS);
+        assertTrue(delay + " > " + max, delay <= max);
+    }
+
+    /**
+     * 模拟等待到期：改写保存的下次重试时间后按重启处理
+     */
+    private void expire() {
+        mContext.getSharedPreferences(UploadRetryScheduler.PREFERENCE_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(UploadRetryScheduler.KEY_NEXT_RETRY_TIME, System.currentTimeMillis() - 1).commit();
+        mScheduler = new UploadRetryScheduler(mContext);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 读取上报数据时，引用了静态属性的事件按配置展开到 properties 中或者放入批次信封
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PFBatchAssemblerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long COMMON_ID = 7;
+    private static final byte[] COMMON_BLOCK = "\"$os\":\"Android\",\"$model\":\"Pixel\"".getBytes(UTF_8);
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private Uri mUri;
+    private PFEventDataOperation mOperation;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        PFDbParams.getInstance(context.getPackageName());
+        mUri = PFDbParams.getInstance().getEventUri();
+        Robolectric.setupContentProvider(PFDataContentProvider.class, mUri.getAuthority());
+        mOperation = new PFEventDataOperation(context);
+        mOperation.saveCommonProperties(COMMON_ID, COMMON_BLOCK);
+    }
+
+    @Test
+    public void commonPropertiesAreExpandedIntoEachEvent() throws Exception {
+        mOperation.insert(new ContentValues[]{
+                event("{\"event\":\"$AppClick\",\"properties\":{\"$element_id\":\"button\"}}", COMMON_ID),
+                event("{\"event\":\"$AppStart\",\"properties\":{}}", COMMON_ID),
+                event("{\"event\":\"$AppEnd\",\"properties\":{\"$os\":\"iOS\"}}", 0)});
+        JSONArray events = new JSONArray(read());
+        assertEquals(3, events.length());
+        JSONObject click = events.getJSONObject(0).getJSONObject("properties");
+        assertEquals("button", click.getString("$element_id"));
+        assertCommonProperties(click);
+        // properties 为空时展开后不能多出逗号
+        assertCommonProperties(events.getJSONObject(1).getJSONObject("properties"));
+        // 内联保存的事件保持原样
+        JSONObject inline = events.getJSONObject(2).getJSONObject("properties");
+        assertEquals("iOS", inline.getString("$os"));
+        assertFalse(inline.has("$model"));
+        for (int i = 0; i < events.length(); i++) {
+            assertFalse(events.getJSONObject(i).has("_common"));
+            assertTrue(events.getJSONObject(i).has("_flush_time"));
+        }
+    }
+
+    @Test
+    public void compactedEventsAreExpanded() throws Exception {
+        ContentValues[] values = new ContentValues[PFEventBlock.MAX_EVENTS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = event("{\"event\":\"$AppClick\",\"properties\":{\"index\":" + i + "}}", COMMON_ID);
+        }
+        mOperation.insert(values);
+        PFEventBatch batch = query();
+        // 所有事件已经合并成一行
+        assertEquals(batch.getFirstId(), batch.getLastId());
+        JSONArray events = new JSONArray(new String(batch.getBuffer(), 0, batch.size(), UTF_8));
+        assertEquals(values.length, events.length());
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject properties = events.getJSONObject(i).getJSONObject("properties");
+            assertEquals(i, properties.getInt("index"));
+            assertCommonProperties(properties);
+        }
+    }
+
+    @Test
+    public void envelopeSendsCommonPropertiesOnce() throws Exception {
+        mOperation.setCommonEnvelope(true);
+        mOperation.insert(new ContentValues[]{
+                event("{\"event\":\"$AppClick\",\"properties\":{\"$element_id\":\"button\"}}", COMMON_ID),
+                event("{\"event\":\"$AppStart\",\"properties\":{}}", COMMON_ID),
+                event("{\"event\":\"$AppEnd\",\"properties\":{\"$os\":\"iOS\"}}", 0)});
+        JSONObject envelope = new JSONObject(read());
+        JSONArray events = envelope.getJSONArray("data_list");
+        assertEquals(3, events.length());
+        assertEquals(String.valueOf(COMMON_ID), events.getJSONObject(0).getString("_common"));
+        assertEquals(String.valueOf(COMMON_ID), events.getJSONObject(1).getString("_common"));
+        assertFalse(events.getJSONObject(2).has("_common"));
+        assertFalse(events.getJSONObject(0).getJSONObject("properties").has("$os"));
+        JSONObject common = envelope.getJSONObject("common");
+        assertEquals(1, common.length());
+        assertCommonProperties(common.getJSONObject(String.valueOf(COMMON_ID)));
+    }
+
+    @Test
+    public void missingCommonPropertiesAreSkipped() throws Exception {
+        mOperation.insert(new ContentValues[]{event("{\"event\":\"$AppClick\",\"properties\":{\"index\":1}}", COMMON_ID + 1)});
+        JSONArray events = new JSONArray(read());
+        assertEquals(1, events.length());
+        JSONObject properties = events.getJSONObject(0).getJSONObject("properties");
+        assertEquals(1, properties.length());
+    }
+
+    private PFEventBatch query() {
+        PFEventBatch batch = new PFEventBatch();
+        assertTrue(mOperation.queryData(mUri, -1, 100, MAX_BYTES, batch));
+        return batch;
+    }
+
+    private String read() {
+        PFEventBatch batch = query();
+        return new String(batch.getBuffer(), 0, batch.size(), UTF_8);
+    }
+
+    private ContentValues event(String json, long commonId) {
+        byte[] data = json.getBytes(UTF_8);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        return mOperation.buildContentValues(data, 0, data.length, crc32.getValue(), commonId, PFDbParams.PRIORITY_NORMAL);
+    }
+
+    private static void assertCommonProperties(JSONObject properties) throws Exception {
+        assertEquals("Android", properties.getString("$os"));
+        assertEquals("Pixel", properties.getString("$model"));
+    }
+}
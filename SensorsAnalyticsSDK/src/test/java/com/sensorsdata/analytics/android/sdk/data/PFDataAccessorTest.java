@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 同进程直接访问与 ContentResolver 访问的结果一致性，以及两种方式的写入、读取耗时对比
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PFDataAccessorTest {
+    private static final int BENCHMARK_EVENTS = 5000;
+    private static final int BENCHMARK_ROUNDS = 5;
+    private Context mContext;
+    private Uri mUri;
+    private PFDataContentProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        PFDbParams.getInstance(mContext.getPackageName());
+        mUri = PFDbParams.getInstance().getEventUri();
+        mProvider = Robolectric.setupContentProvider(PFDataContentProvider.class, mUri.getAuthority());
+    }
+
+    @Test
+    public void createInProviderProcess() {
+        assertTrue(PFDataAccessor.create(mContext, mUri) instanceof PFDataAccessor.DirectAccessor);
+    }
+
+    @Test
+    public void bothPathsSeeSameRows() {
+        PFDataAccessor direct = new PFDataAccessor.DirectAccessor(mProvider.getProviderHelper());
+        PFDataAccessor resolver = new PFDataAccessor.ResolverAccessor(mContext);
+        direct.insert(mUri, event(1));
+        resolver.insert(mUri, event(2));
+        assertEquals(2, direct.bulkInsert(mUri, new ContentValues[]{event(3), event(4)}));
+        assertEquals(2, resolver.bulkInsert(mUri, new ContentValues[]{event(5), event(6)}));
+        assertEquals(6, count(direct));
+        assertEquals(6, count(resolver));
+
+        assertEquals(3, resolver.delete(mUri, "_id <= ?", new String[]{"3"}));
+        assertEquals(3, count(direct));
+        assertEquals(3, direct.delete(mUri, null, null));
+        assertEquals(0, count(resolver));
+    }
+
+    /**
+     * Robolectric 中 ContentResolver 不经过 Binder，测得的差异只包含 Uri 匹配、ContentValues 拷贝和 Cursor 包装，
+     * 真机上跨进程的开销更大
+     */
+    @Test
+    public void benchmarkAccessPaths() {
+        PFDataAccessor direct = new PFDataAccessor.DirectAccessor(mProvider.getProviderHelper());
+        PFDataAccessor resolver = new PFDataAccessor.ResolverAccessor(mContext);
+        long[] directCost = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] resolverCost = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        // 交替执行多轮取最小值，排除预热和执行顺序的影响
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            min(directCost, run(direct, BENCHMARK_EVENTS));
+            min(resolverCost, run(resolver, BENCHMARK_EVENTS));
+        }
+        System.out.println(String.format("PFDataAccessor %d events, insert/query/delete ms: direct %d/%d/%d, resolver %d/%d/%d",
+                BENCHMARK_EVENTS, directCost[0], directCost[1], directCost[2], resolverCost[0], resolverCost[1], resolverCost[2]));
+    }
+
+    private long[] run(PFDataAccessor accessor, int events) {
+        long[] cost = new long[3];
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            accessor.insert(mUri, event(i));
+        }
+        cost[0] = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        int read = 0;
+        for (int i = 0; i < events / 50; i++) {
+            Cursor cursor = accessor.query(mUri, new String[]{"_id", PFDbParams.KEY_DATA}, "_id > ?", new String[]{String.valueOf(i * 50)}, "_id ASC LIMIT 50");
+            while (cursor.moveToNext()) {
+                read += cursor.getBlob(1).length;
+            }
+            cursor.close();
+        }
+        cost[1] = (System.nanoTime() - start) / 1000000;
+        assertTrue(read > 0);
+        start = System.nanoTime();
+        Cursor cursor = accessor.query(mUri, new String[]{"MAX(_id)"}, null, null, null);
+        cursor.moveToFirst();
+        long maxId = cursor.getLong(0);
+        cursor.close();
+        for (long id = 50; id < maxId + 50; id += 50) {
+            accessor.delete(mUri, "_id <= ?", new String[]{String.valueOf(id)});
+        }
+        cost[2] = (System.nanoTime() - start) / 1000000;
+        assertEquals(0, count(accessor));
+        return cost;
+    }
+
+    private static void min(long[] best, long[] cost) {
+        for (int i = 0; i < best.length; i++) {
+            best[i] = Math.min(best[i], cost[i]);
+        }
+    }
+
+    private static int count(PFDataAccessor accessor) {
+        Cursor cursor = accessor.query(PFDbParams.getInstance().getEventUri(), new String[]{"COUNT(*)"}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues event(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PFDbParams.KEY_DATA, ("{\"event\":\"$AppClick\",\"index\":" + i + ",\"properties\":{\"$element_content\":\"button\"}}").getBytes());
+        values.put(PFDbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        return values;
+    }
+}
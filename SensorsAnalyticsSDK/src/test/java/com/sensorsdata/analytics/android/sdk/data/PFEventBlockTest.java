@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * 压缩块的帧格式、CRC 校验和条数边界
+ */
+public class PFEventBlockTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void framesRoundTrip() throws IOException {
+        PFEventBlock block = new PFEventBlock();
+        long[] commonIds = {0, 1, 0x123456789AL, Long.MAX_VALUE};
+        byte[][] events = new byte[commonIds.length][];
+        block.begin();
+        int eventBytes = 0;
+        for (int i = 0; i < events.length; i++) {
+            events[i] = event(i);
+            eventBytes += events[i].length;
+            block.add(events[i], commonIds[i]);
+        }
+        byte[] compressed = block.finish();
+        PFEventBlock reader = new PFEventBlock();
+        reader.decode(compressed, block.getCrc());
+        assertEquals(events.length, reader.getCount());
+        assertEquals(eventBytes, reader.getEventBytes());
+        for (int i = 0; i < events.length; i++) {
+            assertArrayEquals(events[i], Arrays.copyOfRange(reader.getBuffer(), reader.getOffset(i), reader.getOffset(i) + reader.getLength(i)));
+            assertEquals(commonIds[i], reader.getCommonId(i));
+        }
+    }
+
+    @Test
+    public void crcCoversUncompressedFrames() throws IOException {
+        PFEventBlock block = new PFEventBlock();
+        block.begin();
+        block.add(event(0), 7);
+        block.finish();
+        // 帧头为 长度(4) + 静态属性版本号(8)，大端序
+        byte[] data = event(0);
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(new byte[]{0, 0, 0, (byte) data.length, 0, 0, 0, 0, 0, 0, 0, 7});
+        frames.write(data);
+        CRC32 crc32 = new CRC32();
+        crc32.update(frames.toByteArray());
+        assertEquals(crc32.getValue(), block.getCrc());
+    }
+
+    @Test
+    public void crcMismatchIsRejected() {
+        PFEventBlock block = new PFEventBlock();
+        block.begin();
+        block.add(event(0), 0);
+        byte[] compressed = block.finish();
+        assertCorrupt(compressed, block.getCrc() + 1);
+    }
+
+    @Test
+    public void truncatedBlockIsRejected() {
+        PFEventBlock block = new PFEventBlock();
+        block.begin();
+        for (int i = 0; i < PFEventBlock.MAX_EVENTS; i++) {
+            block.add(event(i), 0);
+        }
+        byte[] compressed = block.finish();
+        assertCorrupt(Arrays.copyOf(compressed, compressed.length / 2), block.getCrc());
+        byte[] flipped = compressed.clone();
+        flipped[flipped.length / 2] ^= 0xff;
+        assertCorrupt(flipped, block.getCrc());
+    }
+
+    @Test
+    public void frameLongerThanBlockIsRejected() {
+        byte[] data = event(0);
+        byte[] frames = new byte[12 + data.length];
+        frames[3] = (byte) (data.length + 1);
+        System.arraycopy(data, 0, frames, 12, data.length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(frames);
+        // CRC 正确但帧长度越界
+        assertCorrupt(deflate(frames), crc32.getValue());
+    }
+
+    @Test
+    public void maxEventsAndBeyondDecode() throws IOException {
+        PFEventBlock block = new PFEventBlock();
+        PFEventBlock reader = new PFEventBlock();
+        // 合并时每块不超过 MAX_EVENTS 条，读取时不依赖这个上限
+        for (int count : new int[]{1, PFEventBlock.MAX_EVENTS - 1, PFEventBlock.MAX_EVENTS, PFEventBlock.MAX_EVENTS + 1, 3 * PFEventBlock.MAX_EVENTS}) {
+            block.begin();
+            for (int i = 0; i < count; i++) {
+                block.add(event(i), i);
+            }
+            assertEquals(count, block.getCount());
+            reader.decode(block.finish(), block.getCrc());
+            assertEquals(count, reader.getCount());
+            int last = count - 1;
+            assertArrayEquals(event(last), Arrays.copyOfRange(reader.getBuffer(), reader.getOffset(last), reader.getOffset(last) + reader.getLength(last)));
+            assertEquals(last, reader.getCommonId(last));
+        }
+    }
+
+    @Test
+    public void largeEventGrowsBuffer() throws IOException {
+        StringBuilder builder = new StringBuilder("{\"event\":\"BuyProduct\",\"properties\":{\"items\":\"");
+        for (int i = 0; i < 40 * 1024; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        byte[] large = builder.append("\"}}").toString().getBytes(UTF_8);
+        PFEventBlock block = new PFEventBlock();
+        block.begin();
+        block.add(event(0), 0);
+        block.add(large, 0);
+        PFEventBlock reader = new PFEventBlock();
+        reader.decode(block.finish(), block.getCrc());
+        assertEquals(2, reader.getCount());
+        assertArrayEquals(large, Arrays.copyOfRange(reader.getBuffer(), reader.getOffset(1), reader.getOffset(1) + reader.getLength(1)));
+    }
+
+    private static void assertCorrupt(byte[] compressed, long crc) {
+        try {
+            new PFEventBlock().decode(compressed, crc);
+            fail("Corrupt block was decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static byte[] event(int i) {
+        return String.format("{\"event\":\"$AppClick\",\"index\":%d}", i).getBytes(UTF_8);
+    }
+}
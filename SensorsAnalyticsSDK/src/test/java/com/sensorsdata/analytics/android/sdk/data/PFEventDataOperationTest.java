@@ -0,0 +1,371 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 内存中的事件计数只按实际写入、删除的数据更新，与数据库中的聚合结果保持一致；
+ * 淘汰和拒绝写入只依据核对过的计数
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PFEventDataOperationTest {
+    private static final Pattern INDEX_PATTERN = Pattern.compile("\"index\":(\\d+)");
+
+    private Context mContext;
+    private Uri mUri;
+    private PFDataContentProvider mProvider;
+    private PFEventDataOperation mOperation;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        PFDbParams.getInstance(mContext.getPackageName());
+        mUri = PFDbParams.getInstance().getEventUri();
+        mProvider = Robolectric.setupContentProvider(PFDataContentProvider.class, mUri.getAuthority());
+        mOperation = new PFEventDataOperation(mContext);
+    }
+
+    @Test
+    public void countsInsertedEvents() {
+        assertEquals(0, mOperation.insert(new ContentValues[]{event(1)}));
+        assertEquals(0, mOperation.insert(new ContentValues[]{event(2), event(3), event(4)}));
+        assertDepthMatchesDatabase(4);
+    }
+
+    @Test
+    public void failedInsertIsNotCounted() {
+        mOperation.insert(new ContentValues[]{event(1)});
+        ContentValues broken = event(2);
+        broken.remove(PFDbParams.KEY_CREATED_AT);
+        mOperation.insert(new ContentValues[]{broken});
+        assertDepthMatchesDatabase(1);
+    }
+
+    @Test
+    public void partiallyFailedBulkInsertIsRecounted() {
+        ContentValues broken = event(2);
+        broken.remove(PFDbParams.KEY_CREATED_AT);
+        mOperation.insert(new ContentValues[]{event(1), broken, event(3)});
+        assertDepthMatchesDatabase(2);
+    }
+
+    @Test
+    public void crossProcessDepthIsReseeded() {
+        mOperation.dataAccessor = new PFDataAccessor.ResolverAccessor(mContext);
+        mOperation.insert(new ContentValues[]{event(1)});
+        assertEquals(1, mOperation.count().getCount());
+        // 其他进程写入的数据，本进程的计数看不到
+        mProvider.getProviderHelper().bulkInsertEvents(mUri, new ContentValues[]{event(2), event(3)});
+        assertEquals(1, mOperation.count().getCount());
+        SystemClock.setCurrentTimeMillis(SystemClock.elapsedRealtime() + 61 * 1000);
+        assertEquals(3, mOperation.count().getCount());
+    }
+
+    @Test
+    public void staleCounterInSecondaryProcessDoesNotEvict() {
+        mOperation.dataAccessor = new PFDataAccessor.ResolverAccessor(mContext);
+        for (int i = 0; i < 10; i++) {
+            mOperation.insert(new ContentValues[]{event(i)});
+        }
+        long bytes = mOperation.count().getBytes();
+        // 主进程上报后删除了一半数据，本进程的计数仍然偏大
+        mProvider.getProviderHelper().deleteEvents("_id <= ?", new String[]{"5"});
+        mOperation.mMaxCacheSize = bytes * 2 / 3;
+        assertEquals(0, mOperation.insert(new ContentValues[]{event(10)}));
+        assertDepthMatchesDatabase(6);
+    }
+
+    @Test
+    public void staleCounterDoesNotRefuseWrites() {
+        mOperation.dataAccessor = new PFDataAccessor.ResolverAccessor(mContext);
+        for (int i = 0; i < 10; i++) {
+            mOperation.insert(new ContentValues[]{event(i)});
+        }
+        mOperation.mMaxCacheSize = mOperation.count().getBytes() / 2;
+        mProvider.getProviderHelper().deleteEvents(null, null);
+        assertEquals(0, mOperation.insert(new ContentValues[]{event(10)}));
+        assertDepthMatchesDatabase(1);
+    }
+
+    @Test
+    public void evictKeepsCriticalEvents() {
+        for (int i = 0; i < 10; i++) {
+            mOperation.insert(new ContentValues[]{event(i, i % 2 == 0 ? PFDbParams.PRIORITY_CRITICAL : PFDbParams.PRIORITY_LOW)});
+        }
+        assertEquals(5, mOperation.evict(mOperation.count().getBytes() / 2));
+        assertDepthMatchesDatabase(5);
+        Cursor cursor = mOperation.dataAccessor.query(mUri, new String[]{"MIN(" + PFDbParams.KEY_PRIORITY + ")"}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            assertEquals(PFDbParams.PRIORITY_CRITICAL, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void ackDuringEvictIsNotSubtractedTwice() {
+        final PFDataAccessor direct = mOperation.dataAccessor;
+        for (int i = 0; i < 10; i++) {
+            mOperation.insert(new ContentValues[]{event(i, PFDbParams.PRIORITY_LOW)});
+        }
+        // 淘汰统计完要删除的数据之后、执行删除之前，上报成功确认删除了其中一部分
+        mOperation.dataAccessor = new ForwardingAccessor(direct) {
+            @Override
+            int delete(Uri uri, String selection, String[] selectionArgs) {
+                if (selection != null && selection.startsWith(PFDbParams.KEY_PRIORITY)) {
+                    mOperation.dataAccessor = direct;
+                    mOperation.ack(1, 3);
+                }
+                return super.delete(uri, selection, selectionArgs);
+            }
+        };
+        mOperation.evict(mOperation.count().getBytes() / 2);
+        assertDepthMatchesDatabase(5);
+    }
+
+    @Test
+    public void overlappingAcksAreCountedOnce() {
+        for (int i = 0; i < 10; i++) {
+            mOperation.insert(new ContentValues[]{event(i)});
+        }
+        mOperation.ack(1, 6);
+        mOperation.ack(4, 8);
+        assertDepthMatchesDatabase(2);
+    }
+
+    @Test
+    public void compactsOnceMaxEventsAreQueued() {
+        for (int i = 0; i < PFEventBlock.MAX_EVENTS - 1; i++) {
+            mOperation.insert(new ContentValues[]{event(i)});
+        }
+        assertEquals(0, countEvents(PFDbParams.KEY_EVENT_COUNT + " IS NOT NULL"));
+        mOperation.insert(new ContentValues[]{event(PFEventBlock.MAX_EVENTS - 1)});
+        assertEquals(PFEventBlock.MAX_EVENTS, countEvents(PFDbParams.KEY_EVENT_COUNT + " IS NOT NULL"));
+        mOperation.insert(new ContentValues[]{event(PFEventBlock.MAX_EVENTS)});
+        assertEquals(1, countEvents(PFDbParams.KEY_EVENT_COUNT + " IS NULL"));
+        assertEquals(PFEventBlock.MAX_EVENTS + 1, mOperation.count().getCount());
+    }
+
+    @Test
+    public void compactedBlockDoesNotMixPriorities() {
+        for (int i = 0; i < 100; i++) {
+            mOperation.insert(new ContentValues[]{event(i, i % 10 == 0 ? PFDbParams.PRIORITY_NORMAL : PFDbParams.PRIORITY_LOW)});
+        }
+        // 每段连续的低优先级事件合并为一个块，块之间的高优先级事件保持单条
+        assertEquals(81, countEvents(PFDbParams.KEY_EVENT_COUNT + " IS NOT NULL AND " + PFDbParams.KEY_PRIORITY + " = ?",
+                String.valueOf(PFDbParams.PRIORITY_LOW)));
+        assertEquals(10, countEvents(PFDbParams.KEY_EVENT_COUNT + " IS NULL AND " + PFDbParams.KEY_PRIORITY + " = ?",
+                String.valueOf(PFDbParams.PRIORITY_NORMAL)));
+        // 淘汰一半数据，只能删除低优先级的事件
+        mOperation.evict(mOperation.count().getBytes() / 2);
+        assertEquals(10, countEvents(PFDbParams.KEY_PRIORITY + " = ?", String.valueOf(PFDbParams.PRIORITY_NORMAL)));
+        assertEquals(0, countEvents("_id <= ? AND " + PFDbParams.KEY_PRIORITY + " = ?", "60", String.valueOf(PFDbParams.PRIORITY_LOW)));
+    }
+
+    @Test
+    public void corruptEventDoesNotRaiseBlockPriority() {
+        for (int i = 0; i < PFEventBlock.MAX_EVENTS; i++) {
+            ContentValues value = event(i, i == 5 ? PFDbParams.PRIORITY_CRITICAL : PFDbParams.PRIORITY_LOW);
+            if (i == 5) {
+                value.put(PFDbParams.KEY_CRC, value.getAsLong(PFDbParams.KEY_CRC) + 1);
+            }
+            mOperation.insert(new ContentValues[]{value});
+        }
+        Cursor cursor = mOperation.dataAccessor.query(mUri, new String[]{PFDbParams.KEY_PRIORITY, PFDbParams.KEY_EVENT_COUNT}, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(PFDbParams.PRIORITY_LOW, cursor.getInt(0));
+            assertEquals(PFEventBlock.MAX_EVENTS - 1, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void corruptBlockIsSkippedOnRead() throws Exception {
+        mOperation.insert(new ContentValues[]{event(0)});
+        PFEventBlock block = new PFEventBlock();
+        block.begin();
+        block.add(event(1).getAsByteArray(PFDbParams.KEY_DATA), 0);
+        block.add(event(2).getAsByteArray(PFDbParams.KEY_DATA), 0);
+        ContentValues corrupt = new ContentValues();
+        corrupt.put(PFDbParams.KEY_DATA, block.finish());
+        corrupt.put(PFDbParams.KEY_CRC, block.getCrc() + 1);
+        corrupt.put(PFDbParams.KEY_EVENT_COUNT, 2);
+        corrupt.put(PFDbParams.KEY_PRIORITY, PFDbParams.PRIORITY_NORMAL);
+        corrupt.put(PFDbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        mProvider.getProviderHelper().bulkInsertEvents(mUri, new ContentValues[]{corrupt});
+        mOperation.insert(new ContentValues[]{event(3)});
+
+        PFEventBatch batch = new PFEventBatch();
+        assertTrue(mOperation.peekBatch(-1, 100, 1024 * 1024, batch));
+        assertEquals(Arrays.asList(0, 3), indexes(batch));
+        // 损坏的块在本批的 _id 范围内，随本批一起确认删除
+        mOperation.ack(batch.getFirstId(), batch.getLastId());
+        assertEquals(0, countEvents(null));
+        assertFalse(mOperation.peekBatch(-1, 100, 1024 * 1024, batch));
+    }
+
+    @Test
+    public void blockIsNotSplitAcrossBatches() throws Exception {
+        mOperation.insert(new ContentValues[]{event(0, PFDbParams.PRIORITY_LOW)});
+        for (int i = 1; i <= PFEventBlock.MAX_EVENTS; i++) {
+            mOperation.insert(new ContentValues[]{event(i)});
+        }
+        assertEquals(PFEventBlock.MAX_EVENTS, countEvents(PFDbParams.KEY_EVENT_COUNT + " IS NOT NULL"));
+        PFEventBatch batch = new PFEventBatch();
+        // 放不下的块整块留给下一批
+        assertTrue(mOperation.peekBatch(-1, 10, 1024 * 1024, batch));
+        assertEquals(Arrays.asList(0), indexes(batch));
+        // 块是一批中的第一行时，即使超过条数限制也整块读出
+        assertTrue(mOperation.peekBatch(batch.getLastId(), 10, 1024 * 1024, batch));
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1; i <= PFEventBlock.MAX_EVENTS; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, indexes(batch));
+    }
+
+    @Test
+    public void eventWithBadCrcIsSkippedOnRead() throws Exception {
+        ContentValues corrupt = event(1);
+        corrupt.put(PFDbParams.KEY_CRC, corrupt.getAsLong(PFDbParams.KEY_CRC) + 1);
+        mOperation.insert(new ContentValues[]{event(0), corrupt, event(2)});
+        PFEventBatch batch = new PFEventBatch();
+        assertTrue(mOperation.peekBatch(-1, 100, 1024 * 1024, batch));
+        assertEquals(Arrays.asList(0, 2), indexes(batch));
+        assertEquals(3, batch.getLastId() - batch.getFirstId() + 1);
+    }
+
+    /**
+     * 按顺序取出批次中各事件的 index，事件数据中的 index 带前导零，不能交给 JSON 解析（会按八进制读取）
+     */
+    private static List<Integer> indexes(PFEventBatch batch) throws Exception {
+        String json = new String(batch.getBuffer(), 0, batch.size(), Charset.forName("UTF-8"));
+        assertEquals(batch.getEventCount(), new JSONArray(json).length());
+        List<Integer> indexes = new ArrayList<>();
+        Matcher matcher = INDEX_PATTERN.matcher(json);
+        while (matcher.find()) {
+            indexes.add(Integer.parseInt(matcher.group(1)));
+        }
+        return indexes;
+    }
+
+    /**
+     * 按事件数统计，合并后的块计为其中的事件条数
+     */
+    private int countEvents(String selection, String... selectionArgs) {
+        Cursor cursor = mOperation.dataAccessor.query(mUri, new String[]{"SUM(IFNULL(" + PFDbParams.KEY_EVENT_COUNT + ", 1))"},
+                selection, selectionArgs, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertDepthMatchesDatabase(int expectedEvents) {
+        Cursor cursor = mOperation.dataAccessor.query(mUri, new String[]{"COUNT(*)", "SUM(LENGTH(" + PFDbParams.KEY_DATA + "))"}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            assertEquals(expectedEvents, cursor.getInt(0));
+            assertEquals(expectedEvents, mOperation.count().getCount());
+            assertEquals(cursor.getLong(1), mOperation.count().getBytes());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues event(int i) {
+        return event(i, PFDbParams.PRIORITY_NORMAL);
+    }
+
+    private ContentValues event(int i, int priority) {
+        byte[] data = String.format("{\"event\":\"$AppClick\",\"index\":%03d}", i).getBytes();
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        return mOperation.buildContentValues(data, 0, data.length, crc32.getValue(), 0, priority);
+    }
+
+    private static class ForwardingAccessor extends PFDataAccessor {
+        private final PFDataAccessor mTarget;
+
+        ForwardingAccessor(PFDataAccessor target) {
+            this.mTarget = target;
+        }
+
+        @Override
+        Uri insert(Uri uri, ContentValues values) {
+            return mTarget.insert(uri, values);
+        }
+
+        @Override
+        int bulkInsert(Uri uri, ContentValues[] values) {
+            return mTarget.bulkInsert(uri, values);
+        }
+
+        @Override
+        Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            return mTarget.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mTarget.delete(uri, selection, selectionArgs);
+        }
+
+        @Override
+        int compact(Uri uri, ContentValues block, long firstId, long lastId) {
+            return mTarget.compact(uri, block, firstId, lastId);
+        }
+
+        @Override
+        boolean isCrossProcess() {
+            return mTarget.isCrossProcess();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 旧版本数据库升级到当前版本后数据和 _id 保持不变，新增的列取默认值；
+ * 以及 WAL + synchronous=NORMAL 与回滚日志 + FULL 的写入、上报耗时对比
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PFSQLiteOpenHelperTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long[] LEGACY_IDS = {3, 7, 8, 20};
+    private static final int BENCHMARK_SINGLE_EVENTS = 1000;
+    private static final int BENCHMARK_BATCHED_EVENTS = 5000;
+    private static final int BENCHMARK_BATCH_SIZE = 50;
+    private static final int BENCHMARK_ROUNDS = 3;
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        PFDbParams.getInstance(mContext.getPackageName());
+    }
+
+    @Test
+    public void upgradeFromVersion1KeepsEvents() throws Exception {
+        SQLiteDatabase legacy = openLegacy();
+        legacy.execSQL("CREATE TABLE analytics_events (_id INTEGER PRIMARY KEY AUTOINCREMENT, data TEXT NOT NULL, created_at INTEGER NOT NULL);");
+        legacy.execSQL("CREATE INDEX IF NOT EXISTS time_idx ON analytics_events (created_at);");
+        for (long id : LEGACY_IDS) {
+            // 版本 1 的数据格式为 "json\thashCode"
+            String json = legacyJson(id);
+            ContentValues values = new ContentValues();
+            values.put("_id", id);
+            values.put(PFDbParams.KEY_DATA, json + "\t" + json.hashCode());
+            values.put(PFDbParams.KEY_CREATED_AT, 1000 + id);
+            legacy.insert(PFDbParams.TABLE_EVENTS, null, values);
+        }
+        legacy.setVersion(1);
+        legacy.close();
+
+        PFSQLiteOpenHelper helper = new PFSQLiteOpenHelper(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertEquals(PFDbParams.DATABASE_VERSION, db.getVersion());
+        assertMigratedRows(db);
+        String sql = querySingle(db, "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?", PFDbParams.TABLE_EVENTS);
+        assertFalse(sql, sql.toUpperCase().contains("AUTOINCREMENT"));
+        assertEquals("0", querySingle(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ?", "time_idx"));
+        assertEquals("0", querySingle(db, "SELECT COUNT(*) FROM " + PFDbParams.TABLE_COMMON_PROPERTIES));
+        helper.close();
+
+        // 升级后的数据可以正常读出，新写入的 _id 接在已有数据之后
+        PFEventDataOperation operation = newOperation(new PFSQLiteOpenHelper(mContext));
+        PFEventBatch batch = new PFEventBatch();
+        assertTrue(operation.queryData(PFDbParams.getInstance().getEventUri(), -1, 100, 1024 * 1024, batch));
+        JSONArray events = new JSONArray(new String(batch.getBuffer(), 0, batch.size(), UTF_8));
+        assertEquals(LEGACY_IDS.length, events.length());
+        for (int i = 0; i < LEGACY_IDS.length; i++) {
+            assertEquals(LEGACY_IDS[i], events.getJSONObject(i).getLong("index"));
+        }
+        assertEquals(LEGACY_IDS[0], batch.getFirstId());
+        assertEquals(LEGACY_IDS[LEGACY_IDS.length - 1], batch.getLastId());
+        operation.insert(new ContentValues[]{event(operation, 100)});
+        batch.reset();
+        assertTrue(operation.queryData(PFDbParams.getInstance().getEventUri(), LEGACY_IDS[LEGACY_IDS.length - 1], 100, 1024 * 1024, batch));
+        assertEquals(LEGACY_IDS[LEGACY_IDS.length - 1] + 1, batch.getFirstId());
+    }
+
+    @Test
+    public void upgradeFromVersion4AddsColumns() throws Exception {
+        SQLiteDatabase legacy = openLegacy();
+        legacy.execSQL("CREATE TABLE analytics_events (_id INTEGER PRIMARY KEY, data TEXT NOT NULL, created_at INTEGER NOT NULL, crc INTEGER, common_id INTEGER);");
+        legacy.execSQL("CREATE TABLE IF NOT EXISTS common_properties (_id INTEGER PRIMARY KEY, data BLOB NOT NULL, created_at INTEGER NOT NULL);");
+        for (long id : LEGACY_IDS) {
+            String json = legacyJson(id);
+            ContentValues values = new ContentValues();
+            values.put("_id", id);
+            values.put(PFDbParams.KEY_DATA, json + "\t" + json.hashCode());
+            values.put(PFDbParams.KEY_CREATED_AT, 1000 + id);
+            legacy.insert(PFDbParams.TABLE_EVENTS, null, values);
+        }
+        legacy.setVersion(4);
+        legacy.close();
+
+        PFSQLiteOpenHelper helper = new PFSQLiteOpenHelper(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertEquals(PFDbParams.DATABASE_VERSION, db.getVersion());
+        assertMigratedRows(db);
+        helper.close();
+    }
+
+    @Test
+    public void synchronousIsRelaxedOnlyInWalMode() {
+        PFSQLiteOpenHelper helper = new PFSQLiteOpenHelper(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertEquals("wal", querySingle(db, "PRAGMA journal_mode").toLowerCase());
+        // NORMAL
+        assertEquals("1", querySingle(db, "PRAGMA synchronous"));
+        helper.close();
+
+        PFSQLiteOpenHelper rollback = new PFSQLiteOpenHelper(mContext) {
+            {
+                setWriteAheadLoggingEnabled(false);
+            }
+        };
+        db = rollback.getWritableDatabase();
+        assertFalse("wal".equals(querySingle(db, "PRAGMA journal_mode").toLowerCase()));
+        // 保持连接的默认值（真机上为 FULL），不能改成 NORMAL
+        assertFalse("1".equals(querySingle(db, "PRAGMA synchronous")));
+        rollback.close();
+    }
+
+    /**
+     * Robolectric 使用宿主机的 SQLite，文件系统和 fsync 的开销与真机不同，结果只用于比较两种配置的相对差异
+     */
+    @Test
+    public void benchmarkJournalModes() {
+        long[] tunedCost = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] legacyCost = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        // 交替执行多轮取最小值，排除预热和执行顺序的影响
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            min(tunedCost, run(new PFSQLiteOpenHelper(mContext)));
+            min(legacyCost, run(new RollbackJournalHelper(mContext)));
+        }
+        System.out.println(String.format("PFSQLiteOpenHelper single insert x%d / batched insert x%d / flush ms: WAL+NORMAL %d/%d/%d, rollback+FULL %d/%d/%d",
+                BENCHMARK_SINGLE_EVENTS, BENCHMARK_BATCHED_EVENTS, tunedCost[0], tunedCost[1], tunedCost[2],
+                legacyCost[0], legacyCost[1], legacyCost[2]));
+    }
+
+    private long[] run(PFSQLiteOpenHelper helper) {
+        mContext.deleteDatabase(PFDbParams.DATABASE_NAME);
+        PFEventDataOperation operation = newOperation(helper);
+        long[] cost = new long[3];
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_SINGLE_EVENTS; i++) {
+            // 需要同步落库的事件，每条一个事务
+            operation.insert(new ContentValues[]{event(operation, i)});
+        }
+        cost[0] = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        ContentValues[] batch = new ContentValues[BENCHMARK_BATCH_SIZE];
+        for (int i = 0; i < BENCHMARK_BATCHED_EVENTS; i += BENCHMARK_BATCH_SIZE) {
+            for (int j = 0; j < BENCHMARK_BATCH_SIZE; j++) {
+                batch[j] = event(operation, i + j);
+            }
+            operation.insert(batch);
+        }
+        cost[1] = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        PFEventBatch events = new PFEventBatch();
+        int flushed = 0;
+        while (operation.queryData(PFDbParams.getInstance().getEventUri(), -1, 100, 64 * 1024, events)) {
+            flushed += events.getEventCount();
+            operation.ack(events.getFirstId(), events.getLastId());
+        }
+        cost[2] = (System.nanoTime() - start) / 1000000;
+        assertEquals(BENCHMARK_SINGLE_EVENTS + BENCHMARK_BATCHED_EVENTS, flushed);
+        helper.close();
+        return cost;
+    }
+
+    private PFEventDataOperation newOperation(PFSQLiteOpenHelper helper) {
+        PFEventDataOperation operation = new PFEventDataOperation(mContext);
+        operation.dataAccessor = new PFDataAccessor.DirectAccessor(new PFProviderHelper(mContext, helper));
+        return operation;
+    }
+
+    private SQLiteDatabase openLegacy() {
+        File path = mContext.getDatabasePath(PFDbParams.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        return SQLiteDatabase.openOrCreateDatabase(path, null);
+    }
+
+    private static void assertMigratedRows(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT _id, data, created_at, crc, common_id, event_count, priority FROM "
+                + PFDbParams.TABLE_EVENTS + " ORDER BY _id", null);
+        try {
+            assertEquals(LEGACY_IDS.length, cursor.getCount());
+            for (long id : LEGACY_IDS) {
+                assertTrue(cursor.moveToNext());
+                String json = legacyJson(id);
+                assertEquals(id, cursor.getLong(0));
+                assertEquals(json + "\t" + json.hashCode(), cursor.getString(1));
+                assertEquals(1000 + id, cursor.getLong(2));
+                assertTrue(cursor.isNull(3));
+                assertTrue(cursor.isNull(4));
+                assertTrue(cursor.isNull(5));
+                assertEquals(PFDbParams.PRIORITY_NORMAL, cursor.getInt(6));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String querySingle(SQLiteDatabase db, String sql, String... args) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String legacyJson(long id) {
+        return "{\"event\":\"$AppClick\",\"index\":" + id + ",\"properties\":{}}";
+    }
+
+    private static ContentValues event(PFEventDataOperation operation, int i) {
+        byte[] data = ("{\"event\":\"$AppClick\",\"index\":" + i + ",\"properties\":{\"$element_content\":\"button\"}}").getBytes(UTF_8);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        return operation.buildContentValues(data, 0, data.length, crc32.getValue(), 0, PFDbParams.PRIORITY_NORMAL);
+    }
+
+    private static void min(long[] best, long[] cost) {
+        for (int i = 0; i < best.length; i++) {
+            best[i] = Math.min(best[i], cost[i]);
+        }
+    }
+
+    /**
+     * 调优前的配置：回滚日志，synchronous 保持默认的 FULL
+     */
+    private static class RollbackJournalHelper extends PFSQLiteOpenHelper {
+        RollbackJournalHelper(Context context) {
+            super(context);
+            setWriteAheadLoggingEnabled(false);
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            db.execSQL("PRAGMA synchronous = FULL");
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2015－2022 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+
+import com.sensorsdata.analytics.android.sdk.SAStorageEngine;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowPackageManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分段日志的崩溃恢复、读游标持久化、乱序确认和淘汰，多进程 App 的引擎选择，以及与 SQLite 引擎的写入、上报耗时对比
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PFSegmentLogStoreTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 16;
+    private static final int SEGMENT_SIZE = 1024;
+    private static final long MAX_CACHE_SIZE = 4 * SEGMENT_SIZE;
+    private static final int MAX_BYTES = 1024 * 1024;
+    private static final int BENCHMARK_SINGLE_EVENTS = 1000;
+    private static final int BENCHMARK_BATCHED_EVENTS = 5000;
+    private static final int BENCHMARK_BATCH_SIZE = 50;
+    private static final int BENCHMARK_ROUNDS = 3;
+    private Context mContext;
+    private File mDirectory;
+    private PFSegmentLogStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+        mDirectory = new File(mContext.getFilesDir(), PFSegmentLogStore.DIRECTORY_NAME);
+        deleteDirectory(mDirectory);
+        mStore = PFSegmentLogStore.open(mDirectory, SEGMENT_SIZE, MAX_CACHE_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @Test
+    public void zeroLengthTornRecordIsOverwritten() throws Exception {
+        insert(0, 3);
+        int end = endOfRecords(segmentFile(0));
+        mStore.close();
+        // 进程在写入长度之前退出：数据已经写入，长度仍为 0
+        RandomAccessFile file = new RandomAccessFile(segmentFile(0), "rw");
+        file.seek(end + 4);
+        file.writeInt(12345);
+        file.seek(end + HEADER_SIZE);
+        file.write("{\"event\":\"torn\"}".getBytes(UTF_8));
+        file.close();
+
+        reopen();
+        assertEquals(3, mStore.count().getCount());
+        insert(3, 1);
+        assertEquals(Arrays.asList(0, 1, 2, 3), indexes());
+        reopen();
+        assertEquals(Arrays.asList(0, 1, 2, 3), indexes());
+        assertEquals(4, mStore.count().getCount());
+    }
+
+    @Test
+    public void tornRecordWithBadCrcIsDropped() throws Exception {
+        insert(0, 3);
+        int end = endOfRecords(segmentFile(0));
+        mStore.close();
+        // 长度已经写入，数据只写了一部分
+        RandomAccessFile file = new RandomAccessFile(segmentFile(0), "rw");
+        file.seek(end);
+        file.writeInt(40);
+        file.writeInt(12345);
+        file.seek(end + HEADER_SIZE);
+        file.write("{\"event\":".getBytes(UTF_8));
+        file.close();
+
+        reopen();
+        assertEquals(3, mStore.count().getCount());
+        assertEquals(Arrays.asList(0, 1, 2), indexes());
+        // 损坏的记录之后的内容已清空，新记录从这里继续写入
+        insert(3, 2);
+        reopen();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), indexes());
+        assertEquals(5, mStore.count().getCount());
+    }
+
+    @Test
+    public void damagedSealedSegmentKeepsRecordsBeforeDamage() throws Exception {
+        int total = 0;
+        while (segmentOf(lastId()) < 1) {
+            insert(total++, 1);
+        }
+        insert(total, 2);
+        total += 2;
+        List<long[]> records = records();
+        int inFirstSegment = 0;
+        while (segmentOf(records.get(inFirstSegment)[0]) == 0) {
+            inFirstSegment++;
+        }
+        mStore.close();
+        // 已写满的段中第 3 条记录的数据损坏
+        int damaged = 2;
+        RandomAccessFile file = new RandomAccessFile(segmentFile(0), "rw");
+        file.seek((int) records.get(damaged)[0] + HEADER_SIZE + 2);
+        file.write('X');
+        file.close();
+
+        reopen();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            if (i < damaged || i >= inFirstSegment) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, indexes());
+        assertEquals(expected.size(), mStore.count().getCount());
+    }
+
+    @Test
+    public void cursorSurvivesReopen() throws Exception {
+        insert(0, 10);
+        List<long[]> records = records();
+        mStore.ack(records.get(0)[0], records.get(3)[0]);
+        reopen();
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8, 9), indexes());
+        assertEquals(6, mStore.count().getCount());
+    }
+
+    @Test
+    public void outOfOrderAckAdvancesCursorWhenContiguous() throws Exception {
+        insert(0, 10);
+        List<long[]> records = records();
+        mStore.ack(records.get(5)[0], records.get(9)[0]);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), indexes());
+        assertEquals(5, mStore.count().getCount());
+        mStore.ack(records.get(0)[0], records.get(4)[0]);
+        assertEquals(0, mStore.count().getCount());
+        reopen();
+        assertEquals(new ArrayList<Integer>(), indexes());
+    }
+
+    @Test
+    public void outOfOrderAckIsRedeliveredAfterRestart() throws Exception {
+        insert(0, 10);
+        List<long[]> records = records();
+        mStore.ack(records.get(0)[0], records.get(1)[0]);
+        mStore.ack(records.get(5)[0], records.get(7)[0]);
+        assertEquals(Arrays.asList(2, 3, 4, 8, 9), indexes());
+        // 乱序确认的范围不持久化，重启后只按读游标恢复，这部分数据会再发送一次
+        reopen();
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9), indexes());
+        assertEquals(8, mStore.count().getCount());
+    }
+
+    @Test
+    public void evictionKeepsSegmentsWithCriticalRecords() throws Exception {
+        // 第 0 段包含一条重要事件，第 1 段全部是普通事件
+        int total = 0;
+        mStore.insert(new ContentValues[]{record(total++, PFDbParams.PRIORITY_CRITICAL)});
+        while (segmentOf(lastId()) < 1) {
+            insert(total++, 1);
+        }
+        while (segmentOf(lastId()) < 2) {
+            insert(total++, 1);
+        }
+        List<long[]> records = records();
+        List<Integer> expected = new ArrayList<>();
+        for (long[] record : records) {
+            if (segmentOf(record[0]) != 1) {
+                expected.add((int) record[1]);
+            }
+        }
+        mStore.evict(mStore.count().getBytes() - 1);
+        assertEquals(expected, indexes());
+        assertEquals(expected.size(), mStore.count().getCount());
+        reopen();
+        assertEquals(expected, indexes());
+        assertEquals(0, indexes().get(0).intValue());
+    }
+
+    @Test
+    public void rollOverEvictsNormalSegmentsFirst() throws Exception {
+        int total = 0;
+        mStore.insert(new ContentValues[]{record(total++, PFDbParams.PRIORITY_CRITICAL)});
+        // 写满所有段之后继续写入，超出容量时淘汰不包含重要事件的段
+        while (segmentOf(lastId()) < MAX_CACHE_SIZE / SEGMENT_SIZE + 2) {
+            insert(total++, 1);
+        }
+        assertEquals(0, indexes().get(0).intValue());
+        assertTrue(mStore.count().getBytes() <= mStore.capacity());
+    }
+
+    @Test
+    public void singleProcessAppUsesSegmentLog() throws Exception {
+        mStore.close();
+        PFEventStore store = PFDbManager.createEventStore(mContext, SAStorageEngine.SEGMENT_LOG);
+        try {
+            assertTrue(store instanceof PFSegmentLogStore);
+        } finally {
+            ((PFSegmentLogStore) store).close();
+            mStore = PFSegmentLogStore.open(mDirectory, SEGMENT_SIZE, MAX_CACHE_SIZE);
+        }
+    }
+
+    @Test
+    public void multiProcessAppDoesNotStrandEvents() throws Exception {
+        PFDbParams.getInstance(mContext.getPackageName());
+        Robolectric.setupContentProvider(PFDataContentProvider.class, PFDbParams.getInstance().getEventUri().getAuthority());
+        ServiceInfo service = new ServiceInfo();
+        service.name = "com.example.PushService";
+        service.packageName = mContext.getPackageName();
+        service.processName = mContext.getPackageName() + ":push";
+        service.applicationInfo = mContext.getApplicationInfo();
+        ShadowPackageManager packageManager = Shadow.extract(mContext.getPackageManager());
+        packageManager.addOrUpdateService(service);
+        // 主进程和推送进程各自打开一次，只有主进程上报，推送进程写入的事件必须能被主进程读到
+        PFEventStore mainProcess = PFDbManager.createEventStore(mContext, SAStorageEngine.SEGMENT_LOG);
+        PFEventStore pushProcess = PFDbManager.createEventStore(mContext, SAStorageEngine.SEGMENT_LOG);
+        assertFalse(mainProcess instanceof PFSegmentLogStore);
+        assertFalse(pushProcess instanceof PFSegmentLogStore);
+        mainProcess.clear();
+        mainProcess.insert(new ContentValues[]{record(mainProcess, 0, PFDbParams.PRIORITY_NORMAL)});
+        pushProcess.insert(new ContentValues[]{record(pushProcess, 1, PFDbParams.PRIORITY_NORMAL)});
+        assertEquals(Arrays.asList(0, 1), indexes(mainProcess));
+    }
+
+    /**
+     * Robolectric 使用宿主机的 SQLite，文件系统和 fsync 的开销与真机不同，结果只用于比较两种引擎的相对差异
+     */
+    @Test
+    public void benchmarkAgainstSQLite() throws Exception {
+        PFDbParams.getInstance(mContext.getPackageName());
+        Robolectric.setupContentProvider(PFDataContentProvider.class, PFDbParams.getInstance().getEventUri().getAuthority());
+        mStore.close();
+        long[] segmentCost = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] sqliteCost = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        // 交替执行多轮取最小值，排除预热和执行顺序的影响
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            deleteDirectory(mDirectory);
+            PFSegmentLogStore store = PFSegmentLogStore.open(mDirectory, PFSegmentLogStore.DEFAULT_SEGMENT_SIZE,
+                    PFSegmentLogStore.DEFAULT_MAX_CACHE_SIZE);
+            min(segmentCost, run(store));
+            store.close();
+            PFEventDataOperation operation = new PFEventDataOperation(mContext);
+            operation.clear();
+            min(sqliteCost, run(operation));
+        }
+        mStore = PFSegmentLogStore.open(mDirectory, SEGMENT_SIZE, MAX_CACHE_SIZE);
+        System.out.println(String.format("PFEventStore single insert x%d / batched insert x%d / flush ms: segment log %d/%d/%d, SQLite %d/%d/%d",
+                BENCHMARK_SINGLE_EVENTS, BENCHMARK_BATCHED_EVENTS, segmentCost[0], segmentCost[1], segmentCost[2],
+                sqliteCost[0], sqliteCost[1], sqliteCost[2]));
+    }
+
+    private static long[] run(PFEventStore store) {
+        long[] cost = new long[3];
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_SINGLE_EVENTS; i++) {
+            // 需要同步落库的事件，每条单独提交
+            store.insert(new ContentValues[]{record(store, i, PFDbParams.PRIORITY_NORMAL)});
+        }
+        cost[0] = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        ContentValues[] batch = new ContentValues[BENCHMARK_BATCH_SIZE];
+        for (int i = 0; i < BENCHMARK_BATCHED_EVENTS; i += BENCHMARK_BATCH_SIZE) {
+            for (int j = 0; j < BENCHMARK_BATCH_SIZE; j++) {
+                batch[j] = record(store, i + j, PFDbParams.PRIORITY_NORMAL);
+            }
+            store.insert(batch);
+        }
+        cost[1] = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        PFEventBatch events = new PFEventBatch();
+        int flushed = 0;
+        while (store.peekBatch(-1, 100, 64 * 1024, events)) {
+            flushed += events.getEventCount();
+            store.ack(events.getFirstId(), events.getLastId());
+        }
+        cost[2] = (System.nanoTime() - start) / 1000000;
+        assertEquals(BENCHMARK_SINGLE_EVENTS + BENCHMARK_BATCHED_EVENTS, flushed);
+        return cost;
+    }
+
+    private void insert(int from, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = record(from + i, PFDbParams.PRIORITY_NORMAL);
+        }
+        assertEquals(0, mStore.insert(values));
+    }
+
+    private ContentValues record(int index, int priority) {
+        return record(mStore, index, priority);
+    }
+
+    private static ContentValues record(PFEventStore store, int index, int priority) {
+        byte[] data = String.format("{\"event\":\"$AppClick\",\"index\":%d,\"properties\":{\"$element_content\":\"button\"}}", index).getBytes(UTF_8);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        return store.buildContentValues(data, 0, data.length, crc32.getValue(), 0, priority);
+    }
+
+    /**
+     * @return 每条未确认记录的 [_id, index]
+     */
+    private List<long[]> records() throws Exception {
+        List<long[]> records = new ArrayList<>();
+        PFEventBatch batch = new PFEventBatch();
+        long afterId = -1;
+        while (mStore.peekBatch(afterId, 1, MAX_BYTES, batch)) {
+            JSONArray events = new JSONArray(new String(batch.getBuffer(), 0, batch.size(), UTF_8));
+            records.add(new long[]{batch.getFirstId(), events.getJSONObject(0).getInt("index")});
+            afterId = batch.getLastId();
+        }
+        return records;
+    }
+
+    private List<Integer> indexes() throws Exception {
+        return indexes(mStore);
+    }
+
+    private static List<Integer> indexes(PFEventStore store) throws Exception {
+        List<Integer> indexes = new ArrayList<>();
+        PFEventBatch batch = new PFEventBatch();
+        long afterId = -1;
+        while (store.peekBatch(afterId, 100, MAX_BYTES, batch)) {
+            JSONArray events = new JSONArray(new String(batch.getBuffer(), 0, batch.size(), UTF_8));
+            for (int i = 0; i < events.length(); i++) {
+                indexes.add(events.getJSONObject(i).getInt("index"));
+            }
+            afterId = batch.getLastId();
+        }
+        return indexes;
+    }
+
+    private long lastId() throws Exception {
+        List<long[]> records = records();
+        return records.isEmpty() ? -1 : records.get(records.size() - 1)[0];
+    }
+
+    private static long segmentOf(long id) {
+        return id < 0 ? -1 : id >>> 32;
+    }
+
+    private void reopen() throws IOException {
+        mStore.close();
+        mStore = PFSegmentLogStore.open(mDirectory, SEGMENT_SIZE, MAX_CACHE_SIZE);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(mDirectory, String.format("%020d", seq) + ".seg");
+    }
+
+    /**
+     * @return 段文件中已写入记录的结尾位置
+     */
+    private static int endOfRecords(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            int offset = 0;
+            while (offset + HEADER_SIZE <= SEGMENT_SIZE) {
+                file.seek(offset);
+                int length = file.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                offset += HEADER_SIZE + length;
+            }
+            return offset;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void min(long[] best, long[] cost) {
+        for (int i = 0; i < best.length; i++) {
+            best[i] = Math.min(best[i], cost[i]);
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}